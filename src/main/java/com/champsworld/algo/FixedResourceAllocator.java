@@ -1,91 +1,112 @@
 package com.champsworld.algo;
 
-import com.google.common.collect.TreeMultimap;
-
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
 
 /**
  * A simple usage count based load balancer strategy implementation, when number of common resources are fixed
- * it uses lru mapping to keep purging the oldest used resourceUserId
+ * it uses an approximated lru (clock, second chance) to keep purging the oldest used resourceUserId
+ * optionally a live load probe can be supplied, then a new resourceUserId is allotted the least loaded resource
+ * the resources in use can be resized up to the number of resources given at construction, only the first
+ * activeSize resources are allotted, users mapped to a resource beyond it stay mapped until reassigned
+ * looking up a mapped resourceUserId takes no lock, a new resourceUserId is mapped under the lock of its stripe
+ * and only the eviction of the eldest users is serialized
  */
 public class FixedResourceAllocator {
 
+    private static final int STRIPES = 64;
+
+    /**
+     * resourceUserId vs its mapping; lookups are lock free, a mapping is added or changed only under the lock of its stripe
+     */
+    private final ConcurrentHashMap<Integer, Mapping> mappings = new ConcurrentHashMap<>();
+
+    /**
+     * the clock of the second chance eviction, mappings in insertion order; a mapping used since it was last passed
+     * by the clock hand is moved to the tail instead of being evicted, so a recently used resourceUserId survives
+     * a mapping no longer in mappings is just dropped when reached
+     */
+    private final ConcurrentLinkedQueue<Mapping> clock = new ConcurrentLinkedQueue<>();
+
     /**
-     * resourceUserId vs resource Index; a lru cache implementation ensuring least used resourceUserId is removed from cache
-     * to prevent memory leak
+     * locks for adding, reassigning and evicting the mapping of a resourceUserId, chosen by its hash
      */
-    private final LinkedHashMap<Integer, Integer> lruMap;
+    private final Object[] stripeLocks = new Object[STRIPES];
 
     /**
-     * used to ensure O(1) time complexity, while allotting index for a resourceUserId
-     * count vs list of indexes to keep the index on count with a tree map, we know the least allotted index
-     * so fairness is ensured by keeping count of each index, then we update the reverse map indexCount array
+     * serializes the evictions, taken before any stripe lock
      */
-    private final TreeMultimap<Integer, Integer> countVsIndexMap;
+    private final Object evictionLock = new Object();
 
     /**
-     * used to ensure O(1) time complexity, while removing resourceUserId from lruCache
-     * reverse map to quickly decrease the count for an index
-     * after this we update the reverse mapping
+     * number of resourceUserIds mapped to each index, an index is allotted by a CAS on its count
+     * so concurrent new resourceUserIds seeing the same least used index get different ones
      */
-    private final int[] indexCount;
+    private final AtomicIntegerArray indexCount;
     private final int size;
+    /**
+     * number of resources allotted to new users
+     */
+    private volatile int activeSize;
     private final int eldestSize;
     private final ConcurrentHashMap<Integer, AtomicInteger> resourceUserSeqIdGenerators = new ConcurrentHashMap<>();
+    /**
+     * current load of a resource index, null when resources are allotted on user count only
+     */
+    private final IntToLongFunction resourceLoad;
+    /**
+     * notified of each resourceUserId removed by lru, null if not needed
+     */
+    private final IntConsumer evictionListener;
+    /**
+     * incremented only while evictionLock is held
+     */
+    private volatile long evictionCount = 0;
 
     public FixedResourceAllocator(final int resourceSize, final int maxUniqueResourceUsers) {
+        this(resourceSize, maxUniqueResourceUsers, null);
+    }
+
+    /**
+     * @param resourceSize, number of resources
+     * @param maxUniqueResourceUsers, the lru capacity of the resourceUserId mapping
+     * @param resourceLoad, live load of a resource index, a new resourceUserId is allotted the least loaded one
+     *                      ties are broken by the resourceUserId count; null to allot on resourceUserId count only
+     */
+    public FixedResourceAllocator(final int resourceSize, final int maxUniqueResourceUsers, final IntToLongFunction resourceLoad) {
+        this(resourceSize, maxUniqueResourceUsers, resourceLoad, null);
+    }
+
+    /**
+     * @param resourceSize, number of resources
+     * @param maxUniqueResourceUsers, the lru capacity of the resourceUserId mapping
+     * @param resourceLoad, live load of a resource index; null to allot on resourceUserId count only
+     * @param evictionListener, notified of each resourceUserId removed by lru, its update id sequence restarts after that
+     *                          it is called while the mapping is locked, so it must not block or call back this allocator
+     */
+    public FixedResourceAllocator(final int resourceSize, final int maxUniqueResourceUsers, final IntToLongFunction resourceLoad,
+                                  final IntConsumer evictionListener) {
         this.size = resourceSize;
-        this.indexCount = new int[resourceSize];
+        this.activeSize = resourceSize;
+        this.resourceLoad = resourceLoad;
+        this.evictionListener = evictionListener;
+        this.indexCount = new AtomicIntegerArray(resourceSize);
         // since we are removing the eldest entry,
         // we are assuming twice the size is safe to remove no task is posted
         // for very long for the eldest entry
         this.eldestSize = 2 * maxUniqueResourceUsers;
-        this.countVsIndexMap = TreeMultimap.create();
-        fillDefaultCountWithAllIndexes(resourceSize);
-        lruMap = new LinkedHashMap<Integer, Integer>(Math.min(maxUniqueResourceUsers, 1000), 0.85f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
-                // this method is called when we put something inside map
-                // which already have lock on lruMap and countvsIndexMap
-                // decrease count for the index of this ordering Id
-                boolean remove = size() > eldestSize;
-                if (remove) {
-                    // when we call this we must have a lock on lruMap, which is done through synchronized
-                    // lruMap is modified after lock is released
-                    decreaseCountForIndex(eldest.getValue());
-                    resourceUserSeqIdGenerators.remove(eldest.getKey());
-                }
-                return remove;
-            }
-        };
+        for (int i = 0; i < STRIPES; i++) stripeLocks[i] = new Object();
     }
 
-    private void fillDefaultCountWithAllIndexes(int size) {
-        countVsIndexMap.clear();
-        for (int i = 0; i < size; i++) {
-            //initially all counts are zero
-            countVsIndexMap.put(0, i);
-            indexCount[i] = 0;
-        }
+    private Object stripeLock(final int resourceUserId) {
+        return stripeLocks[(resourceUserId ^ (resourceUserId >>> 16)) & (STRIPES - 1)];
     }
 
-    private void decreaseCountForIndex(Integer index) {
-        // this is called from remove the eldest entry, which in turn called from put or put all,
-        // which is called from getThreadPoolExecIndex
-        // hence we always lock lruMap first
-        synchronized (countVsIndexMap) {
-            final int count = indexCount[index];
-            if (countVsIndexMap.containsKey(count))
-                countVsIndexMap.remove(count, index);
-            int newCount = count - 1;
-            countVsIndexMap.put(newCount, index);
-            indexCount[index] = newCount;
-        }
-    }
-
-
     /**
      * Helper method; It keeps the number of times user has used the resourceUserId
      * It is reset when a resourceUserId is deleted from the mapping (resourceUserId --> resourceIndex)
@@ -94,8 +115,19 @@ public class FixedResourceAllocator {
      * @return the total next update seq of the specified resourceUserId
      */
     public Integer getNextUpdatedId(Integer resourceUserId) {
-        AtomicInteger generator = resourceUserSeqIdGenerators.computeIfAbsent(resourceUserId, id -> new AtomicInteger(1));
-        return generator.getAndIncrement();
+        return getNextUpdatedId(resourceUserId.intValue());
+    }
+
+    /**
+     * like {@link #getNextUpdatedId(Integer)} without boxing the result
+     *
+     * @param resourceUserId, the unique resourceUserId on which seq id is generated
+     * @return the total next update seq of the specified resourceUserId
+     */
+    public int getNextUpdatedId(final int resourceUserId) {
+        final AtomicInteger generator = resourceUserSeqIdGenerators.get(resourceUserId);
+        if (generator != null) return generator.getAndIncrement();
+        return resourceUserSeqIdGenerators.computeIfAbsent(resourceUserId, id -> new AtomicInteger(1)).getAndIncrement();
     }
 
     /**
@@ -105,65 +137,265 @@ public class FixedResourceAllocator {
      * @return index of the resource mapped to specified resourceUserId
      */
     public Integer getResourceIndex(final Integer resourceUserId) {
-        synchronized (lruMap) {
-            if (lruMap.containsKey(resourceUserId)) {
-                return lruMap.get(resourceUserId);
-            } else {
-                //generate index for a new Ordering ID
-                synchronized (countVsIndexMap) {
-                    // least used index is allotted
-                    if (countVsIndexMap.isEmpty()) {
-                        fillDefaultCountWithAllIndexes(this.size);
-                    }
-                    final int lowestCount = countVsIndexMap.keySet().first();
-                    final NavigableSet<Integer> indexes = countVsIndexMap.get(lowestCount);
-                    // this removes the index from the value set
-                    Integer index = indexes.pollFirst();
-                    if (index == null) index = 0;
-                    // we put the index back with a different count
-                    final int newCount = lowestCount + 1;
-                    //double check deletion of index from multiMap, it will ret false if already removed
-                    boolean removed = countVsIndexMap.remove(lowestCount, index);
-                    if (removed)
-                        //TODO: log
-                        System.out.println("REMOVED IN second attempt");
-                    countVsIndexMap.put(newCount, index);
-                    indexCount[index] = newCount;
-                    lruMap.put(resourceUserId, index);
-                    return index;
+        return getResourceIndex(resourceUserId.intValue());
+    }
+
+    /**
+     * like {@link #getResourceIndex(Integer)} without boxing the result, for the submit path of the executors
+     * the map lookup still boxes a resourceUserId outside the Integer cache
+     *
+     * @param resourceUserId, the user of resources
+     * @return index of the resource mapped to specified resourceUserId
+     */
+    public int getResourceIndex(final int resourceUserId) {
+        final Mapping mapping = mappings.get(resourceUserId);
+        if (mapping != null) return mapping.use();
+        final int index;
+        synchronized (stripeLock(resourceUserId)) {
+            final Mapping current = mappings.get(resourceUserId);
+            if (current != null) return current.use();
+            //generate index for a new Ordering ID
+            index = resourceLoad != null ? allotLeastLoadedIndex() : allotLeastUsedIndex();
+            final Mapping added = new Mapping(resourceUserId, index);
+            mappings.put(resourceUserId, added);
+            clock.offer(added);
+        }
+        if (mappings.size() > eldestSize) evictEldest();
+        return index;
+    }
+
+    /**
+     * O(resourceSize); called only when a new resourceUserId arrives
+     */
+    private int allotLeastUsedIndex() {
+        while (true) {
+            final int active = activeSize;
+            int best = 0;
+            int bestCount = Integer.MAX_VALUE;
+            for (int i = 0; i < active; i++) {
+                final int count = indexCount.get(i);
+                if (count < bestCount) {
+                    best = i;
+                    bestCount = count;
                 }
             }
+            // lost to another new resourceUserId or an eviction, look again
+            if (indexCount.compareAndSet(best, bestCount, bestCount + 1)) return best;
         }
     }
 
-    public void clear() {
-        synchronized (lruMap) {
-            synchronized (countVsIndexMap) {
-                lruMap.clear();
-                countVsIndexMap.clear();
-                Arrays.fill(indexCount, 0);
+    /**
+     * O(resourceSize); called only when a new resourceUserId arrives
+     */
+    private int allotLeastLoadedIndex() {
+        final int active = activeSize;
+        int best = 0;
+        long bestLoad = Long.MAX_VALUE;
+        for (int i = 0; i < active; i++) {
+            final long load = resourceLoad.applyAsLong(i);
+            if (load < bestLoad || (load == bestLoad && indexCount.get(i) < indexCount.get(best))) {
+                best = i;
+                bestLoad = load;
+            }
+        }
+        indexCount.incrementAndGet(best);
+        return best;
+    }
+
+    /**
+     * advances the clock hand till the mappings fit, a mapping used since it was last passed gets a second chance
+     */
+    private void evictEldest() {
+        synchronized (evictionLock) {
+            while (mappings.size() > eldestSize) {
+                final Mapping eldest = clock.poll();
+                if (eldest == null) return;
+                if (eldest.referenced) {
+                    eldest.referenced = false;
+                    clock.offer(eldest);
+                    continue;
+                }
+                synchronized (stripeLock(eldest.resourceUserId)) {
+                    if (!mappings.remove(eldest.resourceUserId, eldest)) continue;
+                    indexCount.decrementAndGet(eldest.index);
+                    resourceUserSeqIdGenerators.remove(eldest.resourceUserId);
+                    evictionCount++;
+                    if (evictionListener != null) evictionListener.accept(eldest.resourceUserId);
+                }
             }
         }
     }
 
+    /**
+     * unlike getResourceIndex, never allots a resource
+     *
+     * @param resourceUserId, the user of resources
+     * @return index of the resource mapped to specified resourceUserId, null if not mapped
+     */
+    public Integer getMappedResourceIndex(final Integer resourceUserId) {
+        final Mapping mapping = mappings.get(resourceUserId);
+        return mapping == null ? null : mapping.use();
+    }
+
+    /**
+     * like {@link #getMappedResourceIndex(Integer)} without boxing the result
+     *
+     * @param resourceUserId, the user of resources
+     * @param notMapped, returned if the resourceUserId is not mapped
+     * @return index of the resource mapped to specified resourceUserId, notMapped if not mapped
+     */
+    public int getMappedResourceIndex(final int resourceUserId, final int notMapped) {
+        final Mapping mapping = mappings.get(resourceUserId);
+        return mapping == null ? notMapped : mapping.use();
+    }
+
+    /**
+     * moves the resourceUserId to another resource, only if it is still mapped to the expected resource
+     *
+     * @param resourceUserId, the user of resources
+     * @param fromIndex, the resource index the user is expected to be mapped to
+     * @param toIndex, the new resource index
+     * @return false if the resourceUserId is not mapped to fromIndex or toIndex is beyond the active resources
+     */
+    public boolean reassign(final Integer resourceUserId, final int fromIndex, final int toIndex) {
+        if (toIndex < 0 || toIndex >= size) throw new IllegalArgumentException("Invalid resource index " + toIndex);
+        synchronized (stripeLock(resourceUserId)) {
+            if (toIndex >= activeSize) return false;
+            final Mapping current = mappings.get(resourceUserId);
+            if (current == null || current.index != fromIndex) return false;
+            current.referenced = true;
+            if (fromIndex == toIndex) return true;
+            indexCount.decrementAndGet(fromIndex);
+            indexCount.incrementAndGet(toIndex);
+            current.index = toIndex;
+            return true;
+        }
+    }
+
+    /**
+     * @param index, the resource index
+     * @param limit, maximum number of resourceUserIds returned
+     * @return resourceUserIds mapped to the index, approximately least recently used first
+     */
+    public List<Integer> getLeastRecentResourceUsers(final int index, final int limit) {
+        final List<Integer> users = new ArrayList<>(Math.min(limit, 16));
+        // not referenced since the clock hand passed them, before the referenced ones
+        for (int pass = 0; pass < 2; pass++) {
+            for (Mapping mapping : clock) {
+                if (users.size() >= limit) return users;
+                if (mapping.referenced == (pass == 1) && mapping.index == index && mappings.get(mapping.resourceUserId) == mapping)
+                    users.add(mapping.resourceUserId);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * changes the number of resources allotted to new users, no existing mapping is changed
+     * the users of the resources beyond newSize must be reassigned by the caller
+     *
+     * @param newSize, between 1 and the number of resources given at construction
+     */
+    public void resize(final int newSize) {
+        if (newSize <= 0 || newSize > size)
+            throw new IllegalArgumentException("newSize must be between 1 and " + size + " " + newSize);
+        // a resource coming back keeps the count of users still mapped to it
+        activeSize = newSize;
+    }
+
+    public int getActiveResourceCount() {
+        return activeSize;
+    }
+
+    /**
+     * @return the active resource index having fewest users
+     */
+    public int getLeastUsedResourceIndex() {
+        final int active = activeSize;
+        int best = 0;
+        for (int i = 1; i < active; i++) {
+            if (indexCount.get(i) < indexCount.get(best)) best = i;
+        }
+        return best;
+    }
+
+    /**
+     * removes every mapping, atomically with respect to allotment, reassignment and eviction
+     */
+    public void clear() {
+        synchronized (evictionLock) {
+            clearStripes(0);
+        }
+    }
+
+    /**
+     * takes the stripe locks in index order, so no mapping is added or changed while the counts are reset
+     */
+    private void clearStripes(final int stripe) {
+        if (stripe == STRIPES) {
+            mappings.clear();
+            clock.clear();
+            for (int i = 0; i < size; i++) indexCount.set(i, 0);
+            return;
+        }
+        synchronized (stripeLocks[stripe]) {
+            clearStripes(stripe + 1);
+        }
+    }
+
     /**
      * current state of resource usage
      *
      * @return resUserCount for each index of resource index
      */
     public List<Integer> getCountMap(){
-        return Collections.unmodifiableList(Arrays.asList(Arrays.stream(indexCount).boxed().toArray(Integer[]::new)));
+        final Integer[] counts = new Integer[size];
+        for (int i = 0; i < size; i++) counts[i] = indexCount.get(i);
+        return Collections.unmodifiableList(Arrays.asList(counts));
     }
 
     /**
      *
-     * @return map of resourceUser id to resource index
+     * @return snapshot of resourceUser id to resource index
      */
     public Map<Integer, Integer> getResourceMapping(){
-        return Collections.unmodifiableMap(lruMap);
+        final Map<Integer, Integer> res = new HashMap<>();
+        for (Mapping mapping : mappings.values()) res.put(mapping.resourceUserId, mapping.index);
+        return Collections.unmodifiableMap(res);
     }
 
     public int getResourceUserCount(){
-        return lruMap.size();
+        return mappings.size();
+    }
+
+    /**
+     * @return number of resourceUserIds removed by lru so far
+     */
+    public long getEvictionCount(){
+        return evictionCount;
+    }
+
+    /**
+     * index is changed only under the lock of the stripe of the resourceUserId
+     */
+    private static final class Mapping {
+        private final int resourceUserId;
+        private volatile int index;
+        /**
+         * the second chance bit, set on each use and cleared by the clock hand; set when added, so a new mapping is
+         * never the next one evicted
+         */
+        private volatile boolean referenced = true;
+
+        private Mapping(int resourceUserId, int index) {
+            this.resourceUserId = resourceUserId;
+            this.index = index;
+        }
+
+        private int use() {
+            // the bit is written only when it was cleared, so a hot mapping is only read
+            if (!referenced) referenced = true;
+            return index;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,173 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * An {@link ExecutorEventListener} which only buffers the events on the calling thread, a daemon thread formats
+ * them and hands the lines over to the sink; the buffer is bounded, an event arriving when it is full is dropped and counted
+ * so a slow sink never slows down the executor
+ * @author agrsachin81
+ */
+public class AsyncBufferedEventListener implements ExecutorEventListener {
+
+    private final ConcurrentLinkedQueue<Event> buffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger buffered = new AtomicInteger(0);
+    private final LongAdder dropped = new LongAdder();
+    private final int capacity;
+    private final Consumer<String> sink;
+    private final Thread writer;
+    /**
+     * the writer while it is parked, null when it is writing
+     */
+    private volatile Thread parkedWriter;
+    private volatile boolean closed = false;
+
+    /**
+     * writes the events to System.out
+     *
+     * @param capacity, maximum number of buffered events
+     */
+    public AsyncBufferedEventListener(int capacity) {
+        this(capacity, System.out::println);
+    }
+
+    /**
+     * @param capacity, maximum number of buffered events
+     * @param sink, receives the formatted events on the writer thread
+     */
+    public AsyncBufferedEventListener(int capacity, Consumer<String> sink) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive " + capacity);
+        if (sink == null) throw new NullPointerException("sink can not be null");
+        this.capacity = capacity;
+        this.sink = sink;
+        this.writer = new Thread(this::writeLoop, "AsyncBufferedEventListener-" + System.identityHashCode(this));
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void executorCreated(int executorId) {
+        offer(EventType.CREATED, executorId, 0, 0, false);
+    }
+
+    @Override
+    public void laneCreated(int executorId, int laneIndex, int assignmentId, boolean used) {
+        offer(EventType.LANE_CREATED, executorId, laneIndex, assignmentId, used);
+    }
+
+    @Override
+    public void orderingIdCount(int executorId, int orderingId, int count) {
+        offer(EventType.ORDERING_ID_COUNT, executorId, orderingId, count, false);
+    }
+
+    @Override
+    public void shutdown(int executorId, boolean now) {
+        offer(EventType.SHUTDOWN, executorId, 0, 0, now);
+    }
+
+    @Override
+    public void reaperStarted(int executorId) {
+        offer(EventType.REAPER_STARTED, executorId, 0, 0, false);
+    }
+
+    @Override
+    public void reaperExited(int executorId) {
+        offer(EventType.REAPER_EXITED, executorId, 0, 0, false);
+    }
+
+    private void offer(final EventType type, final int executorId, final int first, final int second, final boolean flag) {
+        if (closed || buffered.incrementAndGet() > capacity) {
+            buffered.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        buffer.offer(new Event(type, executorId, first, second, flag));
+        final Thread parked = parkedWriter;
+        if (parked != null) LockSupport.unpark(parked);
+    }
+
+    /**
+     * @return number of events dropped as the buffer was full or the listener closed
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * stops accepting events, the buffered ones are still written
+     *
+     * @param timeoutMillis, maximum time to wait for the writer
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join(timeoutMillis);
+    }
+
+    private void writeLoop() {
+        while (true) {
+            final Event event = buffer.poll();
+            if (event == null) {
+                if (closed && buffered.get() == 0) return;
+                parkedWriter = writer;
+                try {
+                    // an event offered before parkedWriter was visible is seen here, a later one unparks
+                    if (buffer.isEmpty() && !closed) LockSupport.park(this);
+                } finally {
+                    parkedWriter = null;
+                }
+                continue;
+            }
+            buffered.decrementAndGet();
+            try {
+                sink.accept(event.format());
+            } catch (Throwable ignored) {
+                //TODO: ERROR LOG; a failing sink must not stop the writer
+            }
+        }
+    }
+
+    private enum EventType {
+        CREATED, LANE_CREATED, ORDERING_ID_COUNT, SHUTDOWN, REAPER_STARTED, REAPER_EXITED
+    }
+
+    private static final class Event {
+        private final EventType type;
+        private final int executorId;
+        private final int first;
+        private final int second;
+        private final boolean flag;
+
+        private Event(EventType type, int executorId, int first, int second, boolean flag) {
+            this.type = type;
+            this.executorId = executorId;
+            this.first = first;
+            this.second = second;
+            this.flag = flag;
+        }
+
+        /**
+         * the lines formerly printed by the executor itself
+         */
+        private String format() {
+            switch (type) {
+                case CREATED:
+                    return "OrderedTaskExecutor CREATED " + executorId;
+                case LANE_CREATED:
+                    return "EXEC INDEX " + first + (flag ? " SUCCESSFULLY USED for ID " : " already USED for ID ") + second;
+                case ORDERING_ID_COUNT:
+                    return "CURRENT COUNT for ID [" + first + "] is [" + second + "]";
+                case SHUTDOWN:
+                    return (flag ? "OrderedTaskExecutor ShutdownNow " : "OrderedTaskExecutor Shutdown ") + executorId;
+                case REAPER_STARTED:
+                    return "OrderedTaskExecutor REAPER THREAD STARTED " + executorId;
+                default:
+                    return "OrderedTaskExecutor REAPER THREAD EXITED " + executorId;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.champsworld.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Runnable queued for batched submissions of an orderingId, while it is queued newer items of the orderingId
+ * are appended to it (up to its maximum size), so the lane hands over all of them to the {@link OrderedBatchTask} at once
+ * no time of the lane is spent waiting for items, a batch holds whatever arrived while it was waiting in the lane
+ * @author agrsachin81
+ */
+class BatchingTask<T, R> implements Runnable, OrderedTaskSpec<Object>, TaskMetrics.Timed {
+
+    private final int orderingId;
+    private final OrderedBatchTask<T, R> handler;
+    private final int maxBatchSize;
+    /**
+     * queued task of each orderingId, accepting newer submissions
+     */
+    private final ConcurrentHashMap<Integer, Runnable> openTasks;
+    /**
+     * guarded by this until sealed, never modified afterwards
+     */
+    private final List<T> items = new ArrayList<>();
+    private final List<CompletableFuture<R>> futures = new ArrayList<>();
+    private boolean sealed = false;
+    /**
+     * for the queue wait metric, the wait of the first item
+     */
+    private final long queuedNanos = System.nanoTime();
+    /**
+     * items executed by run, written and read by the executing thread
+     */
+    private int executedCount = 0;
+
+    /**
+     * @param orderingId, of the items
+     * @param handler, executing the items
+     * @param maxBatchSize, maximum number of items
+     * @param openTasks, this is removed from it once executed
+     */
+    BatchingTask(final int orderingId, final OrderedBatchTask<T, R> handler, final int maxBatchSize,
+                 final ConcurrentHashMap<Integer, Runnable> openTasks) {
+        this.orderingId = orderingId;
+        this.handler = handler;
+        this.maxBatchSize = maxBatchSize;
+        this.openTasks = openTasks;
+    }
+
+    @Override
+    public int orderingId() {
+        return orderingId;
+    }
+
+    @Override
+    public long queuedNanos() {
+        return queuedNanos;
+    }
+
+    @Override
+    public int taskCount() {
+        return executedCount;
+    }
+
+    /**
+     * @param handler, must be the handler of this batch
+     * @param item, to append
+     * @param future, completed with the result of the item
+     * @return false if the batch is already started, full or of another handler; the item is not appended then
+     */
+    synchronized boolean add(final OrderedBatchTask<?, ?> handler, final T item, final CompletableFuture<R> future) {
+        if (sealed || this.handler != handler || items.size() >= maxBatchSize) return false;
+        items.add(item);
+        futures.add(future);
+        return true;
+    }
+
+    private synchronized boolean seal() {
+        if (sealed) return false;
+        sealed = true;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        openTasks.remove(orderingId, this);
+        if (!seal()) return;
+        executedCount = items.size();
+        final List<R> results;
+        try {
+            results = handler.execute(orderingId, Collections.unmodifiableList(items));
+        } catch (Throwable t) {
+            for (CompletableFuture<R> future : futures) OrderedFutureTask.completeThrowable(future, t);
+            return;
+        }
+        if (results == null || results.size() != items.size()) {
+            final IllegalStateException mismatch = new IllegalStateException("Batch of " + items.size() + " items returned "
+                    + (results == null ? null : results.size()) + " results, orderingId " + orderingId);
+            for (CompletableFuture<R> future : futures) OrderedFutureTask.completeThrowable(future, mismatch);
+            return;
+        }
+        for (int i = 0; i < futures.size(); i++) futures.get(i).complete(results.get(i));
+    }
+
+    /**
+     * completes every item exceptionally, the batch will never be executed
+     *
+     * @param t, the reason
+     */
+    void fail(final Throwable t) {
+        openTasks.remove(orderingId, this);
+        if (!seal()) return;
+        for (CompletableFuture<R> future : futures) future.completeExceptionally(t);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchingTask{" +
+                "orderingId=" + orderingId +
+                ", handler=" + handler +
+                '}';
+    }
+}
@@ -0,0 +1,87 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The Runnable queued for conflating submissions of an orderingId, it holds only the latest submitted task
+ * while it is queued, a newer conflating submission replaces the held task, the replaced future completes with CancellationException
+ * once the worker takes the held task it can not be replaced anymore, a newer submission queues a new ConflatingTask
+ * @author agrsachin81
+ */
+class ConflatingTask implements Runnable, OrderedTaskSpec<Object>, TaskMetrics.Timed {
+
+    private final int orderingId;
+    /**
+     * null once taken by the worker
+     */
+    private final AtomicReference<OrderedFutureTask<?>> latest;
+    /**
+     * queued task of each orderingId, accepting newer submissions
+     */
+    private final ConcurrentHashMap<Integer, Runnable> openTasks;
+    /**
+     * for the queue wait metric, the wait of the first held task
+     */
+    private final long queuedNanos = System.nanoTime();
+
+    /**
+     * @param orderingId, of the tasks
+     * @param first, the task held initially
+     * @param openTasks, this is removed from it once executed
+     */
+    ConflatingTask(final int orderingId, final OrderedFutureTask<?> first, final ConcurrentHashMap<Integer, Runnable> openTasks) {
+        this.orderingId = orderingId;
+        this.latest = new AtomicReference<>(first);
+        this.openTasks = openTasks;
+    }
+
+    @Override
+    public int orderingId() {
+        return orderingId;
+    }
+
+    @Override
+    public long queuedNanos() {
+        return queuedNanos;
+    }
+
+    /**
+     * @param newer, the task replacing the held one
+     * @return false if the held task is already taken by the worker, newer is not held then
+     */
+    boolean replace(final OrderedFutureTask<?> newer) {
+        while (true) {
+            final OrderedFutureTask<?> held = latest.get();
+            if (held == null) return false;
+            if (latest.compareAndSet(held, newer)) {
+                held.completeExceptionally(new CancellationException("Conflated by a newer task of " + orderingId));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the held task, no task can be held after this call
+     */
+    OrderedFutureTask<?> take() {
+        return latest.getAndSet(null);
+    }
+
+    @Override
+    public void run() {
+        // a submission arriving after the removal queues a new ConflatingTask behind this one
+        openTasks.remove(orderingId, this);
+        final OrderedFutureTask<?> task = take();
+        if (task != null) task.run();
+    }
+
+    @Override
+    public String toString() {
+        return "ConflatingTask{" +
+                "orderingId=" + orderingId +
+                ", latest=" + latest.get() +
+                '}';
+    }
+}
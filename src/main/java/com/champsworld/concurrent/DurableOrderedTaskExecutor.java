@@ -0,0 +1,188 @@
+package com.champsworld.concurrent;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable mode of {@link OrderedTaskExecutor}, each submitted task is encoded by the codec and appended to a write ahead
+ * journal of memory mapped segments before it is handed over to the executor; tasks are forced to the disk in groups,
+ * by a single commit for all the tasks appended meanwhile, and handed over in their append order once committed
+ * the completion of a task is journaled as well; when created on the directory of a previous instance,
+ * the tasks which never completed are replayed first, per orderingId in their original order
+ * a task is executed at least once, it may execute again after a crash if its completion was not yet on the disk
+ * a pending task the codec fails to decode is not replayed, its payload is kept in a quarantine file of the directory
+ * and its replayed future fails with the cause, see {@link #getQuarantinedFiles()}
+ * @param <T> the result type of the tasks
+ * @author agrsachin81
+ */
+public class DurableOrderedTaskExecutor<T> {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final OrderedTaskExecutor executor;
+    private final OrderedTaskCodec<T> codec;
+    private final TaskJournal journal;
+    private final List<CompletableFuture<T>> replayed;
+    private final List<Path> quarantined;
+
+    /**
+     * @param executor, executes the tasks; it must not be shutdown while this is in use
+     * @param directory, of the journal segments, tasks pending in it are replayed
+     * @param codec, encodes the tasks, and decodes them for replay
+     * @throws IOException if the journal can not be recovered, or an undecodable task can not be quarantined
+     */
+    public DurableOrderedTaskExecutor(OrderedTaskExecutor executor, Path directory, OrderedTaskCodec<T> codec) throws IOException {
+        this(executor, directory, DEFAULT_SEGMENT_SIZE, codec);
+    }
+
+    /**
+     * @param executor, executes the tasks; it must not be shutdown while this is in use
+     * @param directory, of the journal segments, tasks pending in it are replayed
+     * @param segmentSize, size of each segment file in bytes, an encoded task must fit in a segment
+     * @param codec, encodes the tasks, and decodes them for replay
+     * @throws IOException if the journal can not be recovered, or an undecodable task can not be quarantined
+     */
+    public DurableOrderedTaskExecutor(OrderedTaskExecutor executor, Path directory, int segmentSize, OrderedTaskCodec<T> codec) throws IOException {
+        if (executor == null || directory == null || codec == null) throw new NullPointerException("executor, directory and codec can not be null");
+        this.executor = executor;
+        this.codec = codec;
+        this.journal = new TaskJournal(directory, segmentSize);
+        final List<TaskJournal.RecoveredRecord> recovered = journal.getRecovered();
+        // decoded before any task is replayed, so a failed quarantine leaves the journal untouched
+        final List<OrderedTask<T>> tasks = new ArrayList<>(recovered.size());
+        final List<Path> quarantinedFiles = new ArrayList<>();
+        final List<IOException> decodeFailures = new ArrayList<>();
+        for (TaskJournal.RecoveredRecord record : recovered) {
+            try {
+                tasks.add(codec.decode(record.getOrderingId(), record.getPayload()));
+            } catch (Exception e) {
+                //TODO: ERROR LOG; the undecodable task is kept in its quarantine file, the recovered segments are deleted below
+                final Path file = quarantine(record, e);
+                quarantinedFiles.add(file);
+                tasks.add(null);
+                decodeFailures.add(new IOException("Unable to decode the task of sequence " + record.getSequence() + ", quarantined in " + file, e));
+            }
+        }
+        final List<CompletableFuture<T>> futures = new ArrayList<>(recovered.size());
+        int failed = 0;
+        for (int i = 0; i < recovered.size(); i++) {
+            final CompletableFuture<T> result = new CompletableFuture<>();
+            futures.add(result);
+            final OrderedTask<T> task = tasks.get(i);
+            if (task == null) result.completeExceptionally(decodeFailures.get(failed++));
+            else journal.append(recovered.get(i), (entry, failure) -> dispatch(task, failure, entry, result));
+        }
+        journal.retireRecovered();
+        this.replayed = Collections.unmodifiableList(futures);
+        this.quarantined = Collections.unmodifiableList(quarantinedFiles);
+    }
+
+    private Path quarantine(final TaskJournal.RecoveredRecord record, final Exception decodeFailure) throws IOException {
+        try {
+            return journal.quarantine(record);
+        } catch (IOException e) {
+            e.addSuppressed(decodeFailure);
+            // nothing is appended yet and the recovered segments are kept, the next instance recovers the task again
+            try {
+                journal.close(0);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Journals the task, it is executed after all the tasks previously submitted with the same orderingId,
+     * once it is durable; cancelling the returned future does not stop the task
+     *
+     * @param task, to execute
+     * @return future of the task
+     */
+    public CompletableFuture<T> submit(OrderedTask<T> task) {
+        if (task == null) throw new NullPointerException("Unable to execute null");
+        final byte[] payload;
+        try {
+            payload = codec.encode(task);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to encode " + task, e);
+        }
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        journal.append(task.orderingId(), payload, (entry, failure) -> dispatch(task, failure, entry, result));
+        return result;
+    }
+
+    /**
+     * called on the journal handover thread, in append order
+     */
+    private void dispatch(final OrderedTask<T> task, final Throwable commitFailure, final TaskJournal.Entry entry, final CompletableFuture<T> result) {
+        if (commitFailure != null) {
+            result.completeExceptionally(commitFailure);
+            return;
+        }
+        final CompletableFuture<T> execution;
+        try {
+            execution = executor.submit(task);
+        } catch (Throwable t) {
+            // stays pending in the journal, it is replayed by the next instance
+            result.completeExceptionally(t);
+            return;
+        }
+        execution.whenComplete((value, error) -> {
+            journal.markCompleted(entry);
+            if (error != null) result.completeExceptionally(error);
+            else result.complete(value);
+        });
+    }
+
+    /**
+     * @return futures of the tasks replayed from the journal at creation, in their original order
+     */
+    public List<CompletableFuture<T>> getReplayedTasks() {
+        return replayed;
+    }
+
+    /**
+     * @return quarantine files of the tasks recovered at creation which the codec failed to decode, each holds the
+     * encoded task; they are never replayed, a fixed codec may decode them again
+     */
+    public List<Path> getQuarantinedFiles() {
+        return quarantined;
+    }
+
+    /**
+     * @return number of group commits, each one forcing all the tasks journaled meanwhile
+     */
+    public long getCommitCount() {
+        return journal.getCommitCount();
+    }
+
+    /**
+     * @return number of journaled tasks not yet completed
+     */
+    public int getPendingCount() {
+        return journal.getPendingCount();
+    }
+
+    /**
+     * stops accepting tasks, hands over the journaled ones and shuts down the executor once they are executed
+     * the completions are forced to the disk, so a new instance replays nothing
+     *
+     * @param timeout, maximum time to wait
+     * @param unit, of the timeout
+     * @return false if the timeout elapsed first, unfinished tasks are replayed by the next instance
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!journal.close(deadline - System.nanoTime())) return false;
+        executor.shutdown();
+        final boolean terminated = executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        journal.sync();
+        return terminated;
+    }
+}
@@ -0,0 +1,52 @@
+package com.champsworld.concurrent;
+
+/**
+ * Receives the lifecycle and bookkeeping events of {@link OrderedTaskExecutorRaw}
+ * events are called on the submitting thread, so an implementation must neither block nor do I/O;
+ * every argument is a primitive, so nothing is formatted or allocated when the listener ignores an event
+ * all methods do nothing by default, see {@link #NO_OP} and {@link AsyncBufferedEventListener}
+ * @author agrsachin81
+ */
+public interface ExecutorEventListener {
+
+    /**
+     * ignores every event, the default of the executor
+     */
+    ExecutorEventListener NO_OP = new ExecutorEventListener() {
+    };
+
+    default void executorCreated(int executorId) {
+    }
+
+    /**
+     * @param executorId, System.identityHashCode of the executor
+     * @param laneIndex, index of the created lane
+     * @param assignmentId, sequence of the orderingId assignment creating the lane
+     * @param used, false if another lane was created concurrently for the index and this one is discarded
+     */
+    default void laneCreated(int executorId, int laneIndex, int assignmentId, boolean used) {
+    }
+
+    /**
+     * @param executorId, System.identityHashCode of the executor
+     * @param orderingId, whose count is read or increased
+     * @param count, of submitted tasks of the orderingId not yet garbage collected
+     */
+    default void orderingIdCount(int executorId, int orderingId, int count) {
+    }
+
+    /**
+     * reported once the reaper thread has exited, so it follows {@link #reaperExited(int)}
+     *
+     * @param executorId, System.identityHashCode of the executor
+     * @param now, true for shutdownNow
+     */
+    default void shutdown(int executorId, boolean now) {
+    }
+
+    default void reaperStarted(int executorId) {
+    }
+
+    default void reaperExited(int executorId) {
+    }
+}
@@ -0,0 +1,53 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the tasks of each orderingId which never executed, because they expired or were cancelled
+ * an orderingId gets its counters on its first such task, and loses them when it is evicted
+ * @author agrsachin81
+ */
+class KeyOutcomeCounters {
+
+    private final ConcurrentHashMap<Integer, Counters> counters = new ConcurrentHashMap<>();
+    private final LongAdder totalExpired = new LongAdder();
+    private final LongAdder totalCancelled = new LongAdder();
+
+    void recordExpired(final int orderingId) {
+        totalExpired.increment();
+        counters.computeIfAbsent(orderingId, id -> new Counters()).expired.increment();
+    }
+
+    void recordCancelled(final int orderingId) {
+        totalCancelled.increment();
+        counters.computeIfAbsent(orderingId, id -> new Counters()).cancelled.increment();
+    }
+
+    long getExpired(final int orderingId) {
+        final Counters current = counters.get(orderingId);
+        return current == null ? 0 : current.expired.sum();
+    }
+
+    long getCancelled(final int orderingId) {
+        final Counters current = counters.get(orderingId);
+        return current == null ? 0 : current.cancelled.sum();
+    }
+
+    long getTotalExpired() {
+        return totalExpired.sum();
+    }
+
+    long getTotalCancelled() {
+        return totalCancelled.sum();
+    }
+
+    void remove(final int orderingId) {
+        if (!counters.isEmpty()) counters.remove(orderingId);
+    }
+
+    private static final class Counters {
+        private final LongAdder expired = new LongAdder();
+        private final LongAdder cancelled = new LongAdder();
+    }
+}
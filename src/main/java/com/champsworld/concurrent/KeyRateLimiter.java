@@ -0,0 +1,360 @@
+package com.champsworld.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Admission control capping the task rate of each orderingId, so that a noisy orderingId can not monopolize its lane
+ * each active orderingId gets its own token bucket, every task handed over to the executor costs one token
+ * an orderingId idle for the idle timeout, or evicted from the lanes of the executor, loses its bucket (and its counters),
+ * it starts again with a full one
+ * held submissions are handed over by the limiter thread outside the bucket lock and never wait for a full lane,
+ * they are held again and retried shortly, so a full lane never stalls the other orderingIds
+ * set on an {@link OrderedTaskExecutor} by {@link OrderedTaskExecutor#setRateLimiter(KeyRateLimiter)}
+ * @author agrsachin81
+ */
+public class KeyRateLimiter {
+
+    /**
+     * delay before a held submission refused by a full lane is handed over again
+     */
+    private static final long FULL_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * hands over a submission to the executor
+     */
+    interface Admission {
+        /**
+         * @param mayBlock, false on the limiter thread, a full lane or orderingId must not be waited for then
+         * @return false if not handed over as the lane or the orderingId is full, only when mayBlock is false
+         */
+        boolean admit(boolean mayBlock);
+    }
+
+    private final int maxTokens;
+    private final RateLimitPolicy policy;
+    private final long idleTimeoutNanos;
+    private final long nanosPerPermit;
+    private final ConcurrentHashMap<Integer, KeyBucket> buckets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final LongAdder totalRejected = new LongAdder();
+    private final LongAdder totalDelayed = new LongAdder();
+    private final LongAdder totalQueued = new LongAdder();
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param maxTokens, burst size of each orderingId, it earns maxTokens every period of seconds
+     * @param seconds, period in which an orderingId earns maxTokens
+     * @param policy, applied to a submission of an orderingId having no token
+     * @param idleTimeout, after which the bucket of an idle orderingId is evicted
+     * @param unit, of the idleTimeout
+     */
+    public KeyRateLimiter(int maxTokens, int seconds, RateLimitPolicy policy, long idleTimeout, TimeUnit unit) {
+        if (maxTokens <= 0 || seconds <= 0) throw new IllegalArgumentException("maxTokens and seconds must be positive " + maxTokens + " ," + seconds);
+        if (policy == null || unit == null) throw new NullPointerException("policy and unit can not be null");
+        if (idleTimeout <= 0) throw new IllegalArgumentException("idleTimeout must be positive " + idleTimeout);
+        this.maxTokens = maxTokens;
+        this.policy = policy;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.nanosPerPermit = Math.max(1, TimeUnit.SECONDS.toNanos(seconds) / maxTokens);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "KeyRateLimiter-" + System.identityHashCode(this));
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::evictIdle, idleTimeoutNanos, idleTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * runs the admission inline if allowed, else applies the policy
+     *
+     * @param orderingId, of the submission
+     * @param charged, false for submissions costing no token, which still wait behind the held ones of the orderingId
+     * @param admission, hands over the submission to the executor
+     * @param onFailure, receives the failure of an admission run later by the limiter thread
+     */
+    void admit(final int orderingId, final boolean charged, final Admission admission, final Consumer<Throwable> onFailure) {
+        if (shutdown) throw new RejectedExecutionException("Rate limiter is already shutdown; rejected " + orderingId);
+        if (policy == RateLimitPolicy.QUEUE) {
+            admitOrQueue(orderingId, charged, admission, onFailure);
+            return;
+        }
+        if (charged) {
+            final KeyBucket bucket = getBucket(orderingId);
+            if (!bucket.acquire(maxTokens, nanosPerPermit)) {
+                if (policy == RateLimitPolicy.REJECT) {
+                    bucket.rejected.increment();
+                    totalRejected.increment();
+                    throw new RejectedExecutionException("Rate limit exceeded for orderingId " + orderingId);
+                }
+                totalDelayed.increment();
+                do {
+                    LockSupport.parkNanos(this, nanosPerPermit);
+                    if (shutdown || Thread.currentThread().isInterrupted())
+                        throw new RejectedExecutionException("Interrupted while delayed by the rate limit " + orderingId);
+                    bucket.lastUsedNanos = System.nanoTime();
+                } while (!bucket.acquire(maxTokens, nanosPerPermit));
+            }
+        }
+        admission.admit(true);
+    }
+
+    /**
+     * a submission is held while the orderingId has held submissions or some are being handed over, so a held
+     * submission can never be overtaken by a later one; the admission itself runs outside the bucket lock
+     */
+    private void admitOrQueue(final int orderingId, final boolean charged, final Admission admission, final Consumer<Throwable> onFailure) {
+        while (true) {
+            final KeyBucket bucket = getBucket(orderingId);
+            synchronized (bucket) {
+                if (bucket.evicted) continue;
+                if (bucket.held.isEmpty() && !bucket.releasing && (!charged || bucket.acquire(maxTokens, nanosPerPermit))) break;
+                bucket.held.add(new HeldAdmission(charged, admission, onFailure));
+                totalQueued.increment();
+                if (bucket.held.size() == 1 && !bucket.releasing) scheduleRelease(orderingId, bucket, nanosPerPermit);
+                return;
+            }
+        }
+        admission.admit(true);
+    }
+
+    private void scheduleRelease(final int orderingId, final KeyBucket bucket, final long delayNanos) {
+        try {
+            timer.schedule(() -> release(orderingId, bucket), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutdown meanwhile, it fails the held admissions
+        }
+    }
+
+    /**
+     * runs on the timer thread, hands over the held submissions of the orderingId as tokens are earned
+     * the ready ones are handed over outside the bucket lock without waiting, the ones refused by a full lane are held
+     * again in front, their token already paid
+     */
+    private void release(final int orderingId, final KeyBucket bucket) {
+        final List<HeldAdmission> ready = new ArrayList<>();
+        synchronized (bucket) {
+            HeldAdmission next;
+            while ((next = bucket.held.peek()) != null) {
+                if (next.charged && !bucket.acquire(maxTokens, nanosPerPermit)) break;
+                ready.add(bucket.held.poll());
+            }
+            bucket.releasing = !ready.isEmpty();
+            if (ready.isEmpty()) {
+                if (!bucket.held.isEmpty()) scheduleRelease(orderingId, bucket, nanosPerPermit);
+                return;
+            }
+        }
+        int admitted = 0;
+        for (; admitted < ready.size(); admitted++) {
+            final HeldAdmission next = ready.get(admitted);
+            try {
+                if (!next.admission.admit(false)) break;
+            } catch (Throwable t) {
+                failSafely(next, t);
+            }
+        }
+        final boolean full = admitted < ready.size();
+        synchronized (bucket) {
+            for (int i = ready.size() - 1; i >= admitted; i--) bucket.held.addFirst(ready.get(i).paid());
+            bucket.releasing = false;
+            bucket.lastUsedNanos = System.nanoTime();
+            if (shutdown) {
+                failHeld(bucket, new RejectedExecutionException("Rate limiter is shutdown"));
+            } else if (!bucket.held.isEmpty()) {
+                scheduleRelease(orderingId, bucket, full ? Math.min(FULL_RETRY_NANOS, nanosPerPermit) : nanosPerPermit);
+            }
+        }
+    }
+
+    private KeyBucket getBucket(final int orderingId) {
+        final KeyBucket bucket = buckets.computeIfAbsent(orderingId, id -> new KeyBucket(maxTokens));
+        bucket.lastUsedNanos = System.nanoTime();
+        return bucket;
+    }
+
+    private void evictIdle() {
+        final long now = System.nanoTime();
+        for (Map.Entry<Integer, KeyBucket> entry : buckets.entrySet()) {
+            final KeyBucket bucket = entry.getValue();
+            synchronized (bucket) {
+                if (bucket.held.isEmpty() && !bucket.releasing && now - bucket.lastUsedNanos > idleTimeoutNanos) {
+                    bucket.evicted = true;
+                    buckets.remove(entry.getKey(), bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * forgets the bucket of an orderingId no longer known to the executor, unless it has held submissions
+     * must not block, called while the allocator of the executor is locked
+     *
+     * @param orderingId, evicted by the executor
+     */
+    void evict(final int orderingId) {
+        final KeyBucket bucket = buckets.get(orderingId);
+        if (bucket == null) return;
+        synchronized (bucket) {
+            if (bucket.held.isEmpty() && !bucket.releasing) {
+                bucket.evicted = true;
+                buckets.remove(orderingId, bucket);
+            }
+        }
+    }
+
+    private static void failHeld(final KeyBucket bucket, final Throwable t) {
+        HeldAdmission held;
+        while ((held = bucket.held.poll()) != null) {
+            failSafely(held, t);
+        }
+    }
+
+    private static void failSafely(final HeldAdmission held, final Throwable t) {
+        try {
+            held.onFailure.accept(t);
+        } catch (Throwable ignored) {
+            //TODO: ERROR LOG; must not stop releasing the other held submissions
+        }
+    }
+
+    /**
+     * @param orderingId, whose count is needed
+     * @return submissions of the orderingId rejected since its bucket was created
+     */
+    public long getRejectedCount(final int orderingId) {
+        final KeyBucket bucket = buckets.get(orderingId);
+        return bucket == null ? 0 : bucket.rejected.sum();
+    }
+
+    /**
+     * @return rejected submissions of each orderingId currently having a bucket, only the ones having any
+     */
+    public Map<Integer, Long> getRejectedCounts() {
+        final Map<Integer, Long> counts = new HashMap<>();
+        for (Map.Entry<Integer, KeyBucket> entry : buckets.entrySet()) {
+            final long rejected = entry.getValue().rejected.sum();
+            if (rejected > 0) counts.put(entry.getKey(), rejected);
+        }
+        return counts;
+    }
+
+    public long getTotalRejectedCount() {
+        return totalRejected.sum();
+    }
+
+    /**
+     * @return submissions whose producer had to wait for a token, with DELAY
+     */
+    public long getTotalDelayedCount() {
+        return totalDelayed.sum();
+    }
+
+    /**
+     * @return submissions held until a token was earned, with QUEUE
+     */
+    public long getTotalQueuedCount() {
+        return totalQueued.sum();
+    }
+
+    /**
+     * @return number of orderingIds currently having a bucket
+     */
+    public int getTrackedOrderingIdCount() {
+        return buckets.size();
+    }
+
+    public RateLimitPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * stops the limiter, further submissions are rejected and the held ones fail with RejectedExecutionException
+     */
+    public void shutdown() {
+        shutdown = true;
+        timer.shutdownNow();
+        final RejectedExecutionException rejected = new RejectedExecutionException("Rate limiter is shutdown");
+        for (KeyBucket bucket : buckets.values()) {
+            synchronized (bucket) {
+                failHeld(bucket, rejected);
+            }
+        }
+    }
+
+    /**
+     * the tokens and the held admissions are guarded by the bucket itself
+     */
+    private static final class KeyBucket {
+        private int tokens;
+        /**
+         * when the last whole token was earned, or when the bucket was last full
+         */
+        private long refillNanos;
+        private final ArrayDeque<HeldAdmission> held = new ArrayDeque<>();
+        private final LongAdder rejected = new LongAdder();
+        private volatile long lastUsedNanos;
+        private boolean evicted = false;
+        /**
+         * true while the limiter thread hands over the released submissions outside the lock
+         */
+        private boolean releasing = false;
+
+        private KeyBucket(int maxTokens) {
+            this.tokens = maxTokens;
+            this.refillNanos = System.nanoTime();
+        }
+
+        /**
+         * earns the tokens due since the last refill, the part of a token not yet earned is kept for the next call
+         *
+         * @return false if no token is left
+         */
+        private synchronized boolean acquire(final int maxTokens, final long nanosPerPermit) {
+            final long now = System.nanoTime();
+            final long earned = (now - refillNanos) / nanosPerPermit;
+            if (earned > 0) {
+                if (tokens + earned >= maxTokens) {
+                    tokens = maxTokens;
+                    refillNanos = now;
+                } else {
+                    tokens += (int) earned;
+                    refillNanos += earned * nanosPerPermit;
+                }
+            }
+            if (tokens == 0) return false;
+            tokens--;
+            return true;
+        }
+    }
+
+    private static final class HeldAdmission {
+        private final boolean charged;
+        private final Admission admission;
+        private final Consumer<Throwable> onFailure;
+
+        private HeldAdmission(boolean charged, Admission admission, Consumer<Throwable> onFailure) {
+            this.charged = charged;
+            this.admission = admission;
+            this.onFailure = onFailure;
+        }
+
+        /**
+         * @return this held again after its token was taken, it costs no other token
+         */
+        private HeldAdmission paid() {
+            return charged ? new HeldAdmission(false, admission, onFailure) : this;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.champsworld.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the tasks of each orderingId on its own lightweight serial queue (an actor),
+ * all actors share a single work stealing ForkJoinPool, or an executor starting a virtual thread per actor run.
+ * An actor exists only while its orderingId has pending tasks, it is removed as soon as its queue drains
+ * so a slow orderingId never blocks other orderingIds and an idle worker can always pick up a runnable actor
+ * An actor executing an asynchronous task ({@link OrderedAsyncFutureTask}) releases its worker until the task completes,
+ * the next task of the orderingId is started only after that
+ * Alternatively the actors can be run by an {@link ActorRunner} instead of the pool, used to hold orderingIds of lanes
+ * @author agrsachin81
+ */
+class KeyedActorScheduler {
+
+    /**
+     * maximum number of tasks an actor executes in a single run before yielding its worker to other actors
+     */
+    static final int DEFAULT_THROUGHPUT = 64;
+
+    /**
+     * runs the actors when there is no pool
+     */
+    interface ActorRunner {
+        /**
+         * @param orderingId, of the actor
+         * @param actor, to run
+         * @param resumed, true if the actor already has run; it must then neither block nor be refused for capacity,
+         * as its tasks were already admitted and the caller may be any thread completing an asynchronous task
+         * @throws RejectedExecutionException if the actor can not be run, a resumed actor only once shutdown
+         */
+        void run(int orderingId, Runnable actor, boolean resumed);
+    }
+
+    /**
+     * null when actors are run by the actorRunner
+     */
+    private final ExecutorService pool;
+    private final ActorRunner actorRunner;
+    private final ConcurrentHashMap<Integer, KeyActor> actors = new ConcurrentHashMap<>();
+    private final int throughput;
+    private final OrderedTaskErrorHandler errorHandler;
+    private volatile boolean stopped = false;
+    /**
+     * records every executed task, may be null
+     */
+    private final TaskMetrics metrics;
+
+    KeyedActorScheduler(final int parallelism, final int throughput, final OrderedTaskErrorHandler errorHandler) {
+        this(parallelism, throughput, errorHandler, null);
+    }
+
+    /**
+     * @param parallelism, of the pool running the actors
+     * @param throughput, maximum number of tasks an actor executes in a single run
+     * @param errorHandler, receives failures of tasks executed without a future
+     * @param metrics, records each executed task, may be null
+     */
+    KeyedActorScheduler(final int parallelism, final int throughput, final OrderedTaskErrorHandler errorHandler, final TaskMetrics metrics) {
+        // async mode is FIFO for forked tasks, better suited for event style tasks that are never joined
+        this(new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true), throughput, errorHandler, metrics);
+    }
+
+    /**
+     * @param pool, runs the actors, it is owned and shutdown by this scheduler
+     * @param throughput, maximum number of tasks an actor executes in a single run
+     * @param errorHandler, receives failures of tasks executed without a future
+     * @param metrics, records each executed task, may be null
+     */
+    KeyedActorScheduler(final ExecutorService pool, final int throughput, final OrderedTaskErrorHandler errorHandler, final TaskMetrics metrics) {
+        if (throughput <= 0) throw new IllegalArgumentException("throughput must be positive " + throughput);
+        if (pool == null) throw new NullPointerException("pool can not be null");
+        this.pool = pool;
+        this.actorRunner = null;
+        this.throughput = throughput;
+        this.errorHandler = errorHandler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param actorRunner, runs each actor, a run must never be concurrent with another run of the same actor
+     * @param throughput, maximum number of tasks an actor executes in a single run
+     * @param errorHandler, receives failures of tasks executed without a future
+     */
+    KeyedActorScheduler(final ActorRunner actorRunner, final int throughput, final OrderedTaskErrorHandler errorHandler) {
+        this(actorRunner, throughput, errorHandler, null);
+    }
+
+    /**
+     * @param actorRunner, runs each actor, a run must never be concurrent with another run of the same actor
+     * @param throughput, maximum number of tasks an actor executes in a single run
+     * @param errorHandler, receives failures of tasks executed without a future
+     * @param metrics, records each executed task, may be null
+     */
+    KeyedActorScheduler(final ActorRunner actorRunner, final int throughput, final OrderedTaskErrorHandler errorHandler, final TaskMetrics metrics) {
+        if (throughput <= 0) throw new IllegalArgumentException("throughput must be positive " + throughput);
+        if (actorRunner == null) throw new NullPointerException("actorRunner can not be null");
+        this.pool = null;
+        this.actorRunner = actorRunner;
+        this.throughput = throughput;
+        this.errorHandler = errorHandler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * an {@link ActorRunner} running the actors of another scheduler on the pool of this one
+     *
+     * @param orderingId, of the actor
+     * @param actor, to run
+     * @param resumed, ignored, the pool is never full
+     */
+    void runOnPool(final int orderingId, final Runnable actor, final boolean resumed) {
+        if (pool == null) throw new IllegalStateException("No pool, actors are run by the actorRunner " + orderingId);
+        pool.execute(actor);
+    }
+
+    /**
+     * @param orderingId, the key
+     * @return true if the orderingId has pending tasks in its actor
+     */
+    boolean hasActor(final int orderingId) {
+        return !actors.isEmpty() && actors.containsKey(orderingId);
+    }
+
+    boolean hasActors() {
+        return !actors.isEmpty();
+    }
+
+    int getActorCount() {
+        return actors.size();
+    }
+
+    /**
+     * @return tasks accepted and not yet completed, including the executing ones; O(number of actors)
+     */
+    int getPendingTaskCount() {
+        int pending = 0;
+        for (KeyActor actor : actors.values()) pending += actor.pending.get();
+        return pending;
+    }
+
+    private boolean isShutdown() {
+        return stopped || (pool != null && pool.isShutdown());
+    }
+
+    private void schedule(final KeyActor actor, final boolean resumed) {
+        actor.queuedNanos = System.nanoTime();
+        if (pool != null) pool.execute(actor);
+        else actorRunner.run(actor.orderingId, actor, resumed);
+    }
+
+    /**
+     * queues the task at the end of the actor of the specified orderingId, creates and schedules the actor if it is idle
+     *
+     * @param orderingId, the key whose tasks are executed serially
+     * @param task        to execute
+     */
+    void execute(final int orderingId, final Runnable task) {
+        if (task == null) throw new NullPointerException("Unable to execute null-" + orderingId);
+        if (isShutdown()) throw new RejectedExecutionException("Already shutdown " + orderingId);
+        final boolean[] idle = new boolean[1];
+        final Runnable stamped = metrics == null ? task : TaskMetrics.stamp(task);
+        // enqueue happens inside compute so that it is atomic with the removal of an idle actor
+        final KeyActor scheduled = actors.compute(orderingId, (id, actor) -> {
+            final KeyActor current = actor == null ? new KeyActor(id) : actor;
+            current.queue.offer(stamped);
+            idle[0] = current.pending.getAndIncrement() == 0;
+            return current;
+        });
+        if (!idle[0]) return;
+        // scheduled outside compute, an actor runner may block for capacity
+        try {
+            schedule(scheduled, false);
+        } catch (RejectedExecutionException e) {
+            // tasks queued meanwhile by other producers are never run either
+            final List<Runnable> notScheduled = new ArrayList<>();
+            actors.computeIfPresent(orderingId, (id, actor) -> {
+                if (actor != scheduled) return actor;
+                Runnable queued;
+                while ((queued = actor.queue.poll()) != null) notScheduled.add(TaskMetrics.unwrap(queued));
+                actor.pending.set(0);
+                return null;
+            });
+            for (Runnable queued : notScheduled) {
+                if (queued != task) LaneBackpressure.discardTask(queued, e, errorHandler);
+            }
+            throw e;
+        }
+    }
+
+    void shutdown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    /**
+     * @param timeoutNanos, maximum time to wait for the pool after shutdown
+     * @return false if the timeout elapsed first; always true when actors are run by the actorRunner
+     */
+    boolean awaitTermination(final long timeoutNanos) throws InterruptedException {
+        return pool == null || pool.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * stops all the actors and interrupts the running tasks
+     *
+     * @return tasks that never commenced execution
+     */
+    List<Runnable> shutdownNow() {
+        stopped = true;
+        final List<Runnable> notExecuted = new ArrayList<>();
+        for (KeyActor actor : actors.values()) {
+            Runnable task;
+            while ((task = actor.queue.poll()) != null) {
+                notExecuted.add(TaskMetrics.unwrap(task));
+            }
+        }
+        actors.clear();
+        if (pool != null) pool.shutdownNow();
+        return notExecuted;
+    }
+
+    private void reportError(Runnable task, Throwable t) {
+        try {
+            errorHandler.uncaughtError(TaskMetrics.unwrap(task), t);
+        } catch (Throwable ignored) {
+            //TODO: ERROR LOG; error handler itself failed
+        }
+    }
+
+    /**
+     * serial queue of a single orderingId, it is executed by at most one worker at a time
+     * an actor run by an {@link ActorRunner} on a lane is recorded by the lane, as the tasks executed by the run
+     */
+    private final class KeyActor implements Runnable, TaskMetrics.Timed {
+        private final int orderingId;
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        /**
+         * number of tasks queued and not yet completed; transition from zero to one schedules the actor
+         */
+        private final AtomicInteger pending = new AtomicInteger(0);
+        /**
+         * when the actor was last scheduled, runs of an actor are serial and happen after its scheduling
+         */
+        private volatile long queuedNanos;
+        /**
+         * tasks executed by the last run, written and read by the thread running it
+         */
+        private int ranCount;
+
+        private KeyActor(int orderingId) {
+            this.orderingId = orderingId;
+        }
+
+        @Override
+        public long queuedNanos() {
+            return queuedNanos;
+        }
+
+        @Override
+        public int taskCount() {
+            return ranCount;
+        }
+
+        @Override
+        public void run() {
+            int executed = 0;
+            ranCount = 0;
+            while (!stopped) {
+                final Runnable task = queue.poll();
+                // task is null only when queue is drained by shutdownNow
+                if (task != null) {
+                    ranCount++;
+                    final long start = metrics == null ? 0 : System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        reportError(task, t);
+                    }
+                    if (metrics != null) metrics.record(task, start, System.nanoTime());
+                    if (task instanceof OrderedAsyncFutureTask && !((OrderedAsyncFutureTask<?>) task).isDone()) {
+                        // the orderingId stays held, the worker is released to other actors
+                        ((OrderedAsyncFutureTask<?>) task).whenComplete((result, error) -> resume());
+                        return;
+                    }
+                }
+                if (!completeTask()) return;
+                if (++executed >= throughput && !isShutdown()) {
+                    try {
+                        // yield the worker so that other actors are not starved by a busy orderingId
+                        schedule(this, true);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        executed = 0;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false if no task is pending and the actor is removed
+         */
+        private boolean completeTask() {
+            if (pending.decrementAndGet() == 0) {
+                // a concurrent execute may have already revived this actor, in that case it stays mapped
+                actors.computeIfPresent(orderingId, (id, actor) -> (actor == this && actor.pending.get() == 0) ? null : actor);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * called on the thread completing an asynchronous task, which never runs the actor itself
+         */
+        private void resume() {
+            if (stopped || !completeTask()) return;
+            try {
+                schedule(this, true);
+            } catch (RejectedExecutionException e) {
+                // shutdown meanwhile, the accepted tasks are still executed in order, off the completing thread
+                ForkJoinPool.commonPool().execute(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Applies the {@link OverflowPolicy} when a bounded lane is full or an orderingId has reached its capacity
+ * When a per orderingId capacity or a key aware policy (CALLER_RUNS, DROP_OLDEST) is configured,
+ * every queued task is tracked with an in-flight counter of its orderingId, the counter is lock free on the hot path
+ * and the orderingId is forgotten as soon as its counter reaches zero
+ * @author agrsachin81
+ */
+class LaneBackpressure {
+
+    /**
+     * set on the in-flight counter while a producer executes a task of the orderingId itself
+     */
+    private static final int CALLER_RUNNING = 1 << 30;
+    private static final int COUNT_MASK = CALLER_RUNNING - 1;
+    /**
+     * in-flight counter of a KeyState which is no longer mapped, it can never be acquired again
+     */
+    private static final int RETIRED = -1;
+
+    private final int perKeyCapacity;
+    private final OverflowPolicy policy;
+    private final OrderedTaskErrorHandler errorHandler;
+    private final LongAdder[] policyCounts;
+    /**
+     * null when neither a per orderingId capacity nor a key aware policy is configured
+     */
+    private final ConcurrentHashMap<Integer, KeyState> keys;
+
+    /**
+     * @param perKeyCapacity, maximum queued and executing tasks of a single orderingId; Integer.MAX_VALUE for unlimited
+     * @param policy, applied on overflow
+     * @param errorHandler, receives failures of tasks executed by the producer and discarded tasks without a future
+     */
+    LaneBackpressure(final int perKeyCapacity, final OverflowPolicy policy, final OrderedTaskErrorHandler errorHandler) {
+        if (perKeyCapacity <= 0) throw new IllegalArgumentException("perKeyCapacity must be positive " + perKeyCapacity);
+        if (policy == null) throw new NullPointerException("policy can not be null");
+        this.perKeyCapacity = Math.min(perKeyCapacity, COUNT_MASK);
+        this.policy = policy;
+        this.errorHandler = errorHandler;
+        this.policyCounts = new LongAdder[OverflowPolicy.values().length];
+        for (int i = 0; i < policyCounts.length; i++) policyCounts[i] = new LongAdder();
+        final boolean trackKeys = perKeyCapacity < Integer.MAX_VALUE || policy == OverflowPolicy.CALLER_RUNS || policy == OverflowPolicy.DROP_OLDEST;
+        this.keys = trackKeys ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * @param policy, whose count is needed
+     * @return how many times the policy has been applied, a key aware policy falling back to BLOCK is counted as BLOCK
+     */
+    long getCount(final OverflowPolicy policy) {
+        return policyCounts[policy.ordinal()].sum();
+    }
+
+    /**
+     * queues the task to the lane, applying the overflow policy if needed
+     *
+     * @param lane, the lane of the orderingId
+     * @param orderingId, of the task
+     * @param task, to execute
+     */
+    void execute(final OrderedLane lane, final int orderingId, final Runnable task) {
+        if (keys == null) {
+            if (lane.tryExecute(task)) return;
+            if (policy == OverflowPolicy.REJECT) reject(orderingId);
+            block(lane, task);
+            return;
+        }
+        final KeyState state = acquire(lane, orderingId, OrderedLane.priorityOf(task));
+        final TrackedTask tracked = new TrackedTask(orderingId, state, task);
+        try {
+            if (lane.tryExecute(tracked)) return;
+            laneFull(lane, tracked);
+        } catch (Throwable t) {
+            // the task is neither queued nor executed
+            release(state);
+            throw t;
+        }
+    }
+
+    /**
+     * queues a task which has no int orderingId to the lane, only the lane capacity applies;
+     * a key aware policy falls back to BLOCK as the task has no orderingId to drop or run for
+     *
+     * @param lane, picked for the task
+     * @param task, to execute
+     */
+    void executeUntracked(final OrderedLane lane, final Runnable task) {
+        if (lane.tryExecute(task)) return;
+        if (policy == OverflowPolicy.REJECT) {
+            policyCounts[OverflowPolicy.REJECT.ordinal()].increment();
+            throw new RejectedExecutionException("Lane capacity reached; rejected untracked task");
+        }
+        block(lane, task);
+    }
+
+    /**
+     * queues the task to the lane only if neither the lane nor the orderingId is full, never waits;
+     * only REJECT is applied, a full lane or orderingId is reported to the caller for any other policy
+     *
+     * @param lane, the lane of the orderingId
+     * @param orderingId, of the task
+     * @param task, to execute
+     * @return false if the task is not queued as the lane or the orderingId is full
+     */
+    boolean tryExecute(final OrderedLane lane, final int orderingId, final Runnable task) {
+        if (keys == null) {
+            if (lane.tryExecute(task)) return true;
+            if (policy == OverflowPolicy.REJECT) reject(orderingId);
+            return false;
+        }
+        final KeyState state = tryAcquire(orderingId);
+        if (state == null) {
+            if (policy == OverflowPolicy.REJECT) reject(orderingId);
+            return false;
+        }
+        try {
+            if (lane.tryExecute(new TrackedTask(orderingId, state, task))) return true;
+            if (policy == OverflowPolicy.REJECT) reject(orderingId);
+        } catch (Throwable t) {
+            release(state);
+            throw t;
+        }
+        release(state);
+        return false;
+    }
+
+    /**
+     * unlinks the task from the lane if it is still queued, releasing its slot
+     *
+     * @param lane, where the task was queued
+     * @param task, as handed over to {@link #execute(OrderedLane, int, Runnable)}
+     * @return true if the task was queued and is removed
+     */
+    boolean removeQueued(final OrderedLane lane, final Runnable task) {
+        // a tracked task is queued in the class of the task it wraps
+        final Runnable removed = lane.removeFirstQueued(OrderedLane.priorityOf(task), queued -> queued == task || (queued instanceof TrackedTask && ((TrackedTask) queued).task == task));
+        if (removed instanceof TrackedTask) release(((TrackedTask) removed).state);
+        return removed != null;
+    }
+
+    private void laneFull(final OrderedLane lane, final TrackedTask tracked) {
+        switch (policy) {
+            case REJECT:
+                reject(tracked.orderingId);
+                break;
+            case CALLER_RUNS:
+                // only when this task is the single in-flight task of its orderingId, else ordering would be violated
+                if (tracked.state.inFlight.compareAndSet(1, 1 | CALLER_RUNNING)) {
+                    policyCounts[OverflowPolicy.CALLER_RUNS.ordinal()].increment();
+                    tracked.runInCaller();
+                } else {
+                    block(lane, tracked);
+                }
+                break;
+            case DROP_OLDEST:
+                while (true) {
+                    // only the same class, every dropped task frees a slot as all the classes share the lane capacity
+                    final Runnable dropped = lane.removeOldestQueued(tracked.orderingId, tracked.priority());
+                    if (dropped == null) {
+                        block(lane, tracked);
+                        return;
+                    }
+                    policyCounts[OverflowPolicy.DROP_OLDEST.ordinal()].increment();
+                    discard(dropped);
+                    if (lane.tryExecute(tracked)) return;
+                }
+            default:
+                block(lane, tracked);
+        }
+    }
+
+    private void reject(final int orderingId) {
+        policyCounts[OverflowPolicy.REJECT.ordinal()].increment();
+        throw new RejectedExecutionException("Lane capacity reached; rejected " + orderingId);
+    }
+
+    private void block(final OrderedLane lane, final Runnable task) {
+        policyCounts[OverflowPolicy.BLOCK.ordinal()].increment();
+        try {
+            lane.executeBlocking(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for lane capacity", e);
+        }
+    }
+
+    /**
+     * increments the in-flight counter of the orderingId, applying the policy while the orderingId is at its capacity
+     */
+    private KeyState acquire(final OrderedLane lane, final int orderingId, final int priority) {
+        while (true) {
+            final KeyState state = keys.computeIfAbsent(orderingId, KeyState::new);
+            final int current = state.inFlight.get();
+            if (current == RETIRED) {
+                // being removed concurrently, a fresh one is mapped right after
+                Thread.yield();
+                continue;
+            }
+            if ((current & COUNT_MASK) >= perKeyCapacity) {
+                keyFull(lane, orderingId, priority, state);
+                continue;
+            }
+            if (state.inFlight.compareAndSet(current, current + 1)) return state;
+        }
+    }
+
+    /**
+     * @return the state of the orderingId with its in-flight counter incremented, null if it is at its capacity
+     */
+    private KeyState tryAcquire(final int orderingId) {
+        while (true) {
+            final KeyState state = keys.computeIfAbsent(orderingId, KeyState::new);
+            final int current = state.inFlight.get();
+            if (current == RETIRED) {
+                Thread.yield();
+                continue;
+            }
+            if ((current & COUNT_MASK) >= perKeyCapacity) return null;
+            if (state.inFlight.compareAndSet(current, current + 1)) return state;
+        }
+    }
+
+    private void keyFull(final OrderedLane lane, final int orderingId, final int priority, final KeyState state) {
+        if (policy == OverflowPolicy.REJECT) reject(orderingId);
+        if (policy == OverflowPolicy.DROP_OLDEST) {
+            final Runnable dropped = lane.removeOldestQueued(orderingId, priority);
+            if (dropped != null) {
+                policyCounts[OverflowPolicy.DROP_OLDEST.ordinal()].increment();
+                discard(dropped);
+                return;
+            }
+        }
+        // CALLER_RUNS can never apply here, as the orderingId already has tasks in flight
+        policyCounts[OverflowPolicy.BLOCK.ordinal()].increment();
+        synchronized (state) {
+            state.waiters++;
+            try {
+                while (true) {
+                    final int current = state.inFlight.get();
+                    if (current == RETIRED || (current & COUNT_MASK) < perKeyCapacity) return;
+                    state.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for capacity of " + orderingId, e);
+            } finally {
+                state.waiters--;
+            }
+        }
+    }
+
+    private void release(final KeyState state) {
+        final int remaining = state.inFlight.decrementAndGet();
+        if (state.waiters > 0) {
+            synchronized (state) {
+                state.notifyAll();
+            }
+        }
+        if (remaining == 0) {
+            keys.computeIfPresent(state.orderingId, (id, mapped) -> (mapped == state && state.inFlight.compareAndSet(0, RETIRED)) ? null : mapped);
+        }
+    }
+
+    /**
+     * completes the discarded task with CancellationException and releases its slot
+     */
+    private void discard(final Runnable queued) {
+        final Runnable task;
+        if (queued instanceof TrackedTask) {
+            task = ((TrackedTask) queued).task;
+            release(((TrackedTask) queued).state);
+        } else {
+            task = queued;
+        }
+        discardTask(task, new CancellationException("Discarded by overflow policy " + policy), errorHandler);
+    }
+
+    /**
+     * completes a task that will never be executed, a task without a future is reported to the error handler
+     *
+     * @param task, never executed
+     * @param reason, of discarding
+     * @param errorHandler, receives the task without a future
+     */
+    static void discardTask(final Runnable task, final Throwable reason, final OrderedTaskErrorHandler errorHandler) {
+        if (task instanceof CompletableFuture) {
+            ((CompletableFuture<?>) task).completeExceptionally(reason);
+        } else if (task instanceof ConflatingTask) {
+            final CompletableFuture<?> held = ((ConflatingTask) task).take();
+            if (held != null) held.completeExceptionally(reason);
+        } else if (task instanceof BatchingTask) {
+            ((BatchingTask<?, ?>) task).fail(reason);
+        } else if (task instanceof OrderedTaskExecutor.TaskBatch) {
+            ((OrderedTaskExecutor.TaskBatch) task).fail(reason);
+        } else {
+            try {
+                errorHandler.uncaughtError(task, reason);
+            } catch (Throwable ignored) {
+                //TODO: ERROR LOG; error handler itself failed
+            }
+        }
+    }
+
+    private static final class KeyState {
+        private final int orderingId;
+        /**
+         * queued plus executing tasks of the orderingId, with CALLER_RUNNING bit, or RETIRED
+         */
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        /**
+         * guarded by this
+         */
+        private volatile int waiters = 0;
+
+        private KeyState(int orderingId) {
+            this.orderingId = orderingId;
+        }
+    }
+
+    /**
+     * the unit queued in the lane when orderingIds are tracked
+     */
+    private final class TrackedTask implements Runnable, OrderedTaskSpec<Object>, TaskMetrics.Timed {
+        private final int orderingId;
+        private final KeyState state;
+        private final Runnable task;
+        private final long queuedNanos = System.nanoTime();
+
+        private TrackedTask(int orderingId, KeyState state, Runnable task) {
+            this.orderingId = orderingId;
+            this.state = state;
+            this.task = task;
+        }
+
+        @Override
+        public int orderingId() {
+            return orderingId;
+        }
+
+        @Override
+        public int priority() {
+            return task instanceof OrderedTaskSpec ? ((OrderedTaskSpec<?>) task).priority() : PRIORITY_NORMAL;
+        }
+
+        @Override
+        public long queuedNanos() {
+            return task instanceof TaskMetrics.Timed ? ((TaskMetrics.Timed) task).queuedNanos() : queuedNanos;
+        }
+
+        @Override
+        public int taskCount() {
+            return task instanceof TaskMetrics.Timed ? ((TaskMetrics.Timed) task).taskCount() : 1;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (awaitCallerRun()) runTask();
+            } finally {
+                release(state);
+            }
+        }
+
+        /**
+         * a task queued while a producer is executing a task of the same orderingId must wait for it
+         *
+         * @return false if interrupted while waiting; the task is discarded
+         */
+        private boolean awaitCallerRun() {
+            if ((state.inFlight.get() & CALLER_RUNNING) == 0) return true;
+            synchronized (state) {
+                state.waiters++;
+                try {
+                    while ((state.inFlight.get() & CALLER_RUNNING) != 0) state.wait();
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    discardTask(task, new CancellationException("Interrupted while waiting for caller run of " + orderingId), errorHandler);
+                    return false;
+                } finally {
+                    state.waiters--;
+                }
+            }
+        }
+
+        private void runTask() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                try {
+                    errorHandler.uncaughtError(task, t);
+                } catch (Throwable ignored) {
+                    //TODO: ERROR LOG; error handler itself failed
+                }
+            }
+        }
+
+        private void runInCaller() {
+            try {
+                runTask();
+            } finally {
+                int current;
+                do {
+                    current = state.inFlight.get();
+                } while (!state.inFlight.compareAndSet(current, current & ~CALLER_RUNNING));
+                release(state);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "TrackedTask{" +
+                    "orderingId=" + orderingId +
+                    ", task=" + task +
+                    '}';
+        }
+    }
+}
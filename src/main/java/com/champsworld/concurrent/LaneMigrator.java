@@ -0,0 +1,224 @@
+package com.champsworld.concurrent;
+
+import com.champsworld.algo.FixedResourceAllocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * Moves an orderingId from one lane to another without ever running two of its tasks concurrently or out of order
+ * 1. a fence is registered, tasks of the orderingId routed to the new lane are held in the fence from now on
+ * 2. the mapping of the orderingId is switched in the allocator
+ * 3. waits for a grace period; every producer which may have routed the orderingId to the old lane finishes queueing
+ * 4. a marker is queued in the old lane, when it executes all the older tasks of the orderingId are complete,
+ *    the held tasks are handed over to the new lane in order and the fence is removed
+ * Producers are tracked with striped counters of two alternating epochs, so routing never takes a shared lock
+ * @author agrsachin81
+ */
+class LaneMigrator {
+
+    private static final int STRIPES = 64;
+    /**
+     * counters of different stripes are placed a cache line apart to avoid false sharing
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * hands over a task to the lane, applying the lane policies
+     */
+    interface LaneDispatcher {
+        void dispatch(OrderedLane lane, int orderingId, Runnable task);
+    }
+
+    private final AtomicLongArray[] routingProducers = new AtomicLongArray[]{
+            new AtomicLongArray(STRIPES * PADDING), new AtomicLongArray(STRIPES * PADDING)};
+    private volatile int epoch = 0;
+    private final ConcurrentHashMap<Integer, MigrationFence> fences = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingFences = new AtomicInteger(0);
+    private final LongAdder migrations = new LongAdder();
+
+    private final FixedResourceAllocator allocator;
+    private final IntFunction<OrderedLane> lanes;
+    private final LaneDispatcher dispatcher;
+    private final OrderedTaskErrorHandler errorHandler;
+
+    /**
+     * @param allocator, holding orderingId to lane mapping
+     * @param lanes, returns the lane of an index, creating it if needed
+     * @param dispatcher, used to hand over the held tasks
+     * @param errorHandler, receives held tasks without a future which could not be handed over
+     */
+    LaneMigrator(FixedResourceAllocator allocator, IntFunction<OrderedLane> lanes, LaneDispatcher dispatcher, OrderedTaskErrorHandler errorHandler) {
+        this.allocator = allocator;
+        this.lanes = lanes;
+        this.dispatcher = dispatcher;
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * must be called before resolving the lane of a task, and {@link #exitRouting(int)} after the task is queued
+     *
+     * @return the epoch to pass to exitRouting
+     */
+    int enterRouting() {
+        final int stripe = stripe();
+        while (true) {
+            final int current = epoch;
+            final AtomicLongArray counters = routingProducers[current & 1];
+            counters.incrementAndGet(stripe);
+            // if the epoch flipped meanwhile, a migration may have missed this increment; enter the new epoch instead
+            if (epoch == current) return current;
+            counters.decrementAndGet(stripe);
+        }
+    }
+
+    void exitRouting(final int enteredEpoch) {
+        routingProducers[enteredEpoch & 1].decrementAndGet(stripe());
+    }
+
+    private static int stripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * @param orderingId, of the task
+     * @param laneIndex, the lane resolved for the task
+     * @param task, to queue
+     * @return true if the task is held by a pending migration of the orderingId, it will be queued when the old lane drains
+     */
+    boolean holdIfFenced(final int orderingId, final int laneIndex, final Runnable task) {
+        if (pendingFences.get() == 0) return false;
+        final MigrationFence fence = fences.get(orderingId);
+        if (fence == null || fence.toIndex != laneIndex) return false;
+        synchronized (fence) {
+            if (fence.released) return false;
+            fence.held.add(task);
+            return true;
+        }
+    }
+
+    boolean hasPendingFences() {
+        return pendingFences.get() > 0;
+    }
+
+    long getMigrationCount() {
+        return migrations.sum();
+    }
+
+    /**
+     * migrations are serialized, the method returns once the marker is queued, the held tasks are released asynchronously
+     *
+     * @param orderingId, to move
+     * @param fromIndex, the lane it is expected to be mapped to
+     * @param toIndex, the new lane
+     * @return false if the orderingId is not mapped to fromIndex or it is already being migrated
+     */
+    synchronized boolean migrate(final int orderingId, final int fromIndex, final int toIndex) {
+        if (fromIndex == toIndex || fences.containsKey(orderingId)) return false;
+        final MigrationFence fence = new MigrationFence(orderingId, toIndex);
+        // published before the mapping switch, so whoever resolves the new lane also sees the fence
+        pendingFences.incrementAndGet();
+        fences.put(orderingId, fence);
+        if (!allocator.reassign(orderingId, fromIndex, toIndex)) {
+            release(fence);
+            return false;
+        }
+        awaitRoutingGracePeriod();
+        final OrderedLane oldLane = lanes.apply(fromIndex);
+        try {
+            if (oldLane == null) throw new RejectedExecutionException("Lane not available " + fromIndex);
+            // the marker bypasses lane policies, it must always be queued
+            oldLane.executeBlocking(() -> release(fence));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release(fence);
+        } catch (RejectedExecutionException e) {
+            // old lane is shutdown, nothing more of this orderingId will execute there
+            release(fence);
+        }
+        migrations.increment();
+        return true;
+    }
+
+    /**
+     * waits until every producer which entered routing before this call has exited, serialized with migrations
+     */
+    synchronized void awaitRoutingProducers() {
+        awaitRoutingGracePeriod();
+    }
+
+    /**
+     * waits until every producer which entered routing before this call has exited
+     */
+    private void awaitRoutingGracePeriod() {
+        final int previous = epoch;
+        epoch = previous + 1;
+        final AtomicLongArray counters = routingProducers[previous & 1];
+        for (int i = 0; i < STRIPES; i++) {
+            while (counters.get(i * PADDING) != 0) {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+    }
+
+    private void release(final MigrationFence fence) {
+        synchronized (fence) {
+            if (fence.released) return;
+            try {
+                final OrderedLane newLane = fence.held.isEmpty() ? null : lanes.apply(fence.toIndex);
+                for (Runnable task : fence.held) {
+                    try {
+                        if (newLane == null) throw new RejectedExecutionException("Lane not available " + fence.toIndex);
+                        dispatcher.dispatch(newLane, fence.orderingId, task);
+                    } catch (Throwable t) {
+                        LaneBackpressure.discardTask(task, t, errorHandler);
+                    }
+                }
+                fence.held.clear();
+            } finally {
+                fence.released = true;
+                fences.remove(fence.orderingId, fence);
+                pendingFences.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return tasks held by pending migrations, they will never be queued
+     */
+    List<Runnable> drainHeld() {
+        final List<Runnable> notExecuted = new ArrayList<>();
+        for (MigrationFence fence : fences.values()) {
+            synchronized (fence) {
+                notExecuted.addAll(fence.held);
+                fence.held.clear();
+            }
+        }
+        return notExecuted;
+    }
+
+    private static final class MigrationFence {
+        private final int orderingId;
+        private final int toIndex;
+        /**
+         * guarded by this
+         */
+        private final List<Runnable> held = new ArrayList<>();
+        /**
+         * guarded by this
+         */
+        private boolean released = false;
+
+        private MigrationFence(int orderingId, int toIndex) {
+            this.orderingId = orderingId;
+            this.toIndex = toIndex;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A future which is itself the Runnable queued for an {@link OrderedAsyncTask}, run only starts the task
+ * the future completes when the stage returned by the task completes, until then the orderingId stays held
+ * @author agrsachin81
+ */
+class OrderedAsyncFutureTask<T> extends CompletableFuture<T> implements Runnable, OrderedTaskSpec<T>, TaskMetrics.Timed {
+
+    private final int orderingId;
+    private final OrderedAsyncTask<T> task;
+    /**
+     * for the queue wait metric
+     */
+    private final long submittedNanos = System.nanoTime();
+
+    OrderedAsyncFutureTask(final int orderingId, final OrderedAsyncTask<T> task) {
+        this.orderingId = orderingId;
+        this.task = task;
+    }
+
+    @Override
+    public int orderingId() {
+        return orderingId;
+    }
+
+    @Override
+    public long queuedNanos() {
+        return submittedNanos;
+    }
+
+    @Override
+    public void run() {
+        // already cancelled or dropped
+        if (isDone()) return;
+        final CompletionStage<T> stage;
+        try {
+            stage = task.get();
+        } catch (Throwable t) {
+            OrderedFutureTask.completeThrowable(this, t);
+            return;
+        }
+        if (stage == null) {
+            OrderedFutureTask.completeThrowable(this, new NullPointerException("Async task returned null stage " + task));
+            return;
+        }
+        stage.whenComplete((result, error) -> {
+            if (error == null) complete(result);
+            else OrderedFutureTask.completeThrowable(this, error);
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "OrderedAsyncFutureTask{" +
+                "orderingId=" + orderingId +
+                ", task=" + task +
+                ", " + super.toString() +
+                '}';
+    }
+}
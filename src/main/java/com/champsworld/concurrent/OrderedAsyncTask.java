@@ -0,0 +1,20 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The Ordered Task which completes asynchronously, having same orderingId/concurrencyId will be executed in order of submitting.
+ * The next task of the orderingId is started only after the returned stage completes,
+ * while the thread which called get is released immediately to execute the tasks of other orderingIds
+ * @param <V>
+ * @author agrsachin81
+ */
+public interface OrderedAsyncTask<V> extends OrderedTaskSpec<V> {
+
+    /**
+     * starts the task, must not block
+     *
+     * @return stage completing with the result of the task
+     */
+    CompletionStage<V> get();
+}
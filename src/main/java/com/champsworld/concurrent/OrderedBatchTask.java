@@ -0,0 +1,21 @@
+package com.champsworld.concurrent;
+
+import java.util.List;
+
+/**
+ * Executes in a single invocation the items submitted for the same orderingId, in their order of submission
+ * used with OrderedTaskExecutor.submitToBatch, to amortize an expensive operation (like an I/O write) over many items
+ * @param <T> the submitted item
+ * @param <R> the result of each item
+ * @author agrsachin81
+ */
+public interface OrderedBatchTask<T, R> {
+
+    /**
+     * @param orderingId, of all the items
+     * @param items, in the order of submission, never empty
+     * @return the result of each item, in the same order; if it throws, the future of every item fails
+     * @throws Exception if the batch failed
+     */
+    List<R> execute(int orderingId, List<T> items) throws Exception;
+}
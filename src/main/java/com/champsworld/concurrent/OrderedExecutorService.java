@@ -0,0 +1,243 @@
+package com.champsworld.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link java.util.concurrent.ExecutorService} facade of an {@link OrderedTaskExecutor}
+ * a task implementing {@link OrderedTaskSpec} keeps its own orderingId, every other task gets the default orderingId
+ * invokeAll hands over all the tasks by one {@link OrderedTaskExecutor#submitAll(Collection)}, so they are batched by lane
+ * the facade owns no thread, its shutdown only stops accepting tasks through it and its termination waits for the
+ * tasks submitted through it; shutdownNow recalls nothing, the tasks already handed over still execute
+ * @author agrsachin81
+ */
+final class OrderedExecutorService extends AbstractExecutorService {
+
+    private final OrderedTaskExecutor executor;
+    private final int defaultOrderingId;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private volatile boolean shutdown = false;
+
+    OrderedExecutorService(OrderedTaskExecutor executor, int defaultOrderingId) {
+        this.executor = executor;
+        this.defaultOrderingId = defaultOrderingId;
+    }
+
+    private int orderingIdOf(final Object task) {
+        return task instanceof OrderedTaskSpec ? ((OrderedTaskSpec<?>) task).orderingId() : defaultOrderingId;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (command == null) throw new NullPointerException("Unable to execute null");
+        enter();
+        try {
+            executor.execute(orderingIdOf(command), () -> {
+                try {
+                    command.run();
+                } finally {
+                    exit();
+                }
+            });
+        } catch (Throwable t) {
+            exit();
+            throw t;
+        }
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+        return new KeyedFutureTask<>(orderingIdOf(runnable), runnable, value);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+        return new KeyedFutureTask<>(orderingIdOf(callable), callable);
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        final List<Future<T>> futures = submitAll(tasks);
+        boolean done = false;
+        try {
+            for (Future<T> future : futures) {
+                awaitQuietly(future, Long.MAX_VALUE);
+            }
+            done = true;
+            return futures;
+        } finally {
+            // interrupted, like AbstractExecutorService the tasks not yet complete are cancelled
+            if (!done) for (Future<T> future : futures) future.cancel(false);
+        }
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final List<Future<T>> futures = submitAll(tasks);
+        for (Future<T> future : futures) {
+            if (!awaitQuietly(future, deadline)) {
+                for (Future<T> pending : futures) pending.cancel(false);
+                break;
+            }
+        }
+        return futures;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<Future<T>> submitAll(final Collection<? extends Callable<T>> tasks) {
+        if (tasks == null) throw new NullPointerException("Unable to execute null tasks");
+        final List<OrderedTaskSpec<?>> ordered = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            if (task == null) throw new NullPointerException("Unable to execute null task");
+            ordered.add(task instanceof OrderedCallable ? (OrderedCallable<T>) task : new KeyedCallable<>(orderingIdOf(task), task));
+        }
+        if (ordered.isEmpty()) return Collections.emptyList();
+        enter(ordered.size());
+        final List<CompletableFuture<Object>> submitted;
+        try {
+            submitted = executor.submitAll(ordered);
+        } catch (Throwable t) {
+            exit(ordered.size());
+            throw t;
+        }
+        final List<Future<T>> futures = new ArrayList<>(submitted.size());
+        for (CompletableFuture<Object> future : submitted) {
+            future.whenComplete((value, error) -> exit());
+            futures.add((Future<T>) (Future<?>) future);
+        }
+        return futures;
+    }
+
+    /**
+     * @return false if the deadline elapsed before the future completed
+     */
+    private static boolean awaitQuietly(final Future<?> future, final long deadline) throws InterruptedException {
+        try {
+            if (deadline == Long.MAX_VALUE) future.get();
+            else future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | CancellationException ignored) {
+            // reported through the future itself
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void enter() {
+        enter(1);
+    }
+
+    private void enter(final int tasks) {
+        inFlight.addAndGet(tasks);
+        if (shutdown) {
+            exit(tasks);
+            throw new RejectedExecutionException("Executor service is already shutdown");
+        }
+    }
+
+    private void exit() {
+        exit(1);
+    }
+
+    private void exit(final int tasks) {
+        if (inFlight.addAndGet(-tasks) == 0 && shutdown) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown || executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return isShutdown() && inFlight.get() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (!isTerminated()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * carries the orderingId of the wrapped task to the executor
+     */
+    private static final class KeyedFutureTask<T> extends FutureTask<T> implements OrderedTaskSpec<T> {
+        private final int orderingId;
+
+        private KeyedFutureTask(int orderingId, Callable<T> callable) {
+            super(callable);
+            this.orderingId = orderingId;
+        }
+
+        private KeyedFutureTask(int orderingId, Runnable runnable, T value) {
+            super(runnable, value);
+            this.orderingId = orderingId;
+        }
+
+        @Override
+        public int orderingId() {
+            return orderingId;
+        }
+    }
+
+    private static final class KeyedCallable<T> implements OrderedCallable<T> {
+        private final int orderingId;
+        private final Callable<T> callable;
+
+        private KeyedCallable(int orderingId, Callable<T> callable) {
+            this.orderingId = orderingId;
+            this.callable = callable;
+        }
+
+        @Override
+        public int orderingId() {
+            return orderingId;
+        }
+
+        @Override
+        public T call() throws Exception {
+            return callable.call();
+        }
+    }
+}
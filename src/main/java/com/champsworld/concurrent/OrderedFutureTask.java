@@ -0,0 +1,130 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * A future which is itself the Runnable queued in a lane, so a single object is allocated per submitted task
+ * it carries the orderingId so that queued tasks can be identified by lane policies
+ * the failures are encoded the same way as CompletableFuture.supplyAsync does
+ * a task with a deadline which is dequeued after its deadline is not executed, its future fails with TimeoutException
+ * @author agrsachin81
+ */
+class OrderedFutureTask<T> extends CompletableFuture<T> implements Runnable, OrderedTaskSpec<T>, TaskMetrics.Timed {
+
+    /**
+     * notified when a task is cancelled or expires, called on the cancelling or the dequeuing thread
+     */
+    interface Listener {
+        void cancelled(OrderedFutureTask<?> task);
+
+        void expired(OrderedFutureTask<?> task);
+    }
+
+    private final int orderingId;
+    private final int priority;
+    private final Supplier<? extends T> task;
+    private final boolean hasDeadline;
+    private final long deadlineNanos;
+    private final Listener listener;
+    /**
+     * for the queue wait metric of the lanes
+     */
+    private final long submittedNanos = System.nanoTime();
+
+    OrderedFutureTask(final int orderingId, final Supplier<? extends T> task) {
+        this(orderingId, task, false, 0, null);
+    }
+
+    /**
+     * @param orderingId, of the task
+     * @param task, to execute
+     * @param hasDeadline, if false deadlineNanos is ignored
+     * @param deadlineNanos, System.nanoTime after which the task is not started
+     * @param listener, notified of cancellation and expiry, may be null
+     */
+    OrderedFutureTask(final int orderingId, final Supplier<? extends T> task, final boolean hasDeadline, final long deadlineNanos, final Listener listener) {
+        this(orderingId, PRIORITY_NORMAL, task, hasDeadline, deadlineNanos, listener);
+    }
+
+    /**
+     * @param orderingId, of the task
+     * @param priority, class of the task in its lane
+     * @param task, to execute
+     * @param hasDeadline, if false deadlineNanos is ignored
+     * @param deadlineNanos, System.nanoTime after which the task is not started
+     * @param listener, notified of cancellation and expiry, may be null
+     */
+    OrderedFutureTask(final int orderingId, final int priority, final Supplier<? extends T> task, final boolean hasDeadline, final long deadlineNanos, final Listener listener) {
+        this.orderingId = orderingId;
+        this.priority = priority;
+        this.task = task;
+        this.hasDeadline = hasDeadline;
+        this.deadlineNanos = deadlineNanos;
+        this.listener = listener;
+    }
+
+    @Override
+    public int orderingId() {
+        return orderingId;
+    }
+
+    @Override
+    public int priority() {
+        return priority;
+    }
+
+    @Override
+    public long queuedNanos() {
+        return submittedNanos;
+    }
+
+    @Override
+    public void run() {
+        // already cancelled or dropped
+        if (isDone()) return;
+        if (hasDeadline && System.nanoTime() - deadlineNanos > 0) {
+            if (completeExceptionally(new TimeoutException("Deadline passed before start, orderingId " + orderingId)) && listener != null)
+                listener.expired(this);
+            return;
+        }
+        try {
+            complete(task.get());
+        } catch (Throwable t) {
+            completeThrowable(this, t);
+        }
+    }
+
+    /**
+     * a queued task is also unlinked from its queue, by the listener
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        // true only for the call which actually cancels, like CompletableFuture.cancel it never interrupts
+        final boolean cancelledNow = completeExceptionally(new CancellationException());
+        if (cancelledNow && listener != null) listener.cancelled(this);
+        return cancelledNow || isCancelled();
+    }
+
+    /**
+     * completes the future exceptionally, wrapping the throwable the same way as supplyAsync
+     *
+     * @param future, to complete
+     * @param t, the failure
+     */
+    static void completeThrowable(final CompletableFuture<?> future, final Throwable t) {
+        future.completeExceptionally(t instanceof CompletionException ? t : new CompletionException(t));
+    }
+
+    @Override
+    public String toString() {
+        return "OrderedFutureTask{" +
+                "orderingId=" + orderingId +
+                ", task=" + task +
+                ", " + super.toString() +
+                '}';
+    }
+}
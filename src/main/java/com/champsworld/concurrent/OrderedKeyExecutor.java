@@ -0,0 +1,35 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.Executor;
+
+/**
+ * {@link Executor} view of a single orderingId of an {@link OrderedTaskExecutor}, holding nothing but the orderingId
+ * each command is handed over as it is, no task or future is created for it
+ * @author agrsachin81
+ */
+final class OrderedKeyExecutor implements Executor {
+
+    private final OrderedTaskExecutor executor;
+    private final int orderingId;
+
+    OrderedKeyExecutor(OrderedTaskExecutor executor, int orderingId) {
+        this.executor = executor;
+        this.orderingId = orderingId;
+    }
+
+    int orderingId() {
+        return orderingId;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(orderingId, command);
+    }
+
+    @Override
+    public String toString() {
+        return "OrderedKeyExecutor{" +
+                "orderingId=" + orderingId +
+                '}';
+    }
+}
@@ -0,0 +1,561 @@
+package com.champsworld.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * A single thread executor used as a lane of {@link OrderedTaskExecutor}
+ * unlike Executors.newSingleThreadExecutor a failing Runnable does not kill the worker thread,
+ * the failure is handed over to the {@link OrderedTaskErrorHandler} and the worker continues with the next task
+ * Tasks of a priority class above normal ({@link OrderedTaskSpec#priority()}) wait in their own FIFO queue,
+ * the worker always picks the oldest task of the highest non empty class; the tasks of every class share the lane capacity
+ * the continuation of an orderingId already admitted to the lane is queued whatever the capacity, ahead of the normal class
+ * @author agrsachin81
+ */
+class OrderedLane extends AbstractExecutorService {
+
+    private static final int RUNNING = 0;
+    private static final int SHUTDOWN = 1;
+    private static final int STOP = 2;
+    private static final int TERMINATED = 3;
+
+    /**
+     * queued by shutdown or a priority task to wake up an idle worker, it is never executed
+     */
+    private static final Runnable WAKE_UP = () -> {
+    };
+
+    /**
+     * tasks of the normal priority class
+     */
+    private final BlockingQueue<Runnable> queue;
+    /**
+     * the queue when it is a ring buffer, null otherwise; a timed ring keeps the queued time of the tasks in its slots
+     */
+    private final RingBufferQueue<Runnable> ring;
+    /**
+     * tasks of the priority class index + 1
+     */
+    private final ConcurrentLinkedQueue<Runnable>[] priorityQueues;
+    /**
+     * tasks queued by forceExecute, taken after the priority classes and before the normal class
+     */
+    private final ConcurrentLinkedQueue<Runnable> continuations = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger priorityQueued = new AtomicInteger(0);
+    /**
+     * maximum number of queued tasks of all the classes, Integer.MAX_VALUE when the lane is unbounded
+     */
+    private final int capacity;
+    /**
+     * queued tasks of all the classes holding a slot of the capacity, not maintained when the lane is unbounded
+     */
+    private final AtomicInteger queuedSlots = new AtomicInteger(0);
+    /**
+     * producers waiting for a slot in executeBlocking, guarded by queuedSlots
+     */
+    private volatile int slotWaiters = 0;
+    /**
+     * true while a WAKE_UP queued for a priority task is not yet taken by the worker, so at most one is queued
+     */
+    private final AtomicBoolean priorityWakeUpQueued = new AtomicBoolean(false);
+    private final OrderedTaskErrorHandler errorHandler;
+    private final Thread worker;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    /**
+     * worker is started lazily by the first task, like ThreadPoolExecutor the first task is handed over directly to the worker
+     */
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private Runnable firstTask;
+    private volatile int state = RUNNING;
+
+    /**
+     * when true the worker keeps an exponentially weighted moving average of the task service time
+     */
+    private final boolean trackServiceTime;
+    /**
+     * written only by the worker thread
+     */
+    private volatile long ewmaServiceNanos = 0;
+    /**
+     * start of the executing task, zero when idle; written only by the worker thread
+     */
+    private volatile long currentTaskStartNanos = 0;
+    /**
+     * records every executed task, may be null
+     */
+    private final TaskMetrics metrics;
+
+    OrderedLane(final String name, final OrderedTaskErrorHandler errorHandler) {
+        this(name, errorHandler, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * @param name, of the worker thread
+     * @param errorHandler, receives failures of the tasks
+     * @param capacity, maximum number of tasks waiting in the lane
+     * @param trackServiceTime, measure each task for {@link #getEstimatedBacklogNanos()}
+     */
+    OrderedLane(final String name, final OrderedTaskErrorHandler errorHandler, final int capacity, final boolean trackServiceTime) {
+        this(name, errorHandler, capacity, trackServiceTime, null);
+    }
+
+    /**
+     * @param name, of the worker thread
+     * @param errorHandler, receives failures of the tasks
+     * @param capacity, maximum number of tasks waiting in the lane
+     * @param trackServiceTime, measure each task for {@link #getEstimatedBacklogNanos()}
+     * @param metrics, records each executed task, may be null
+     */
+    OrderedLane(final String name, final OrderedTaskErrorHandler errorHandler, final int capacity, final boolean trackServiceTime, final TaskMetrics metrics) {
+        this(name, errorHandler, capacity, trackServiceTime, metrics, null);
+    }
+
+    /**
+     * @param name, of the worker thread
+     * @param errorHandler, receives failures of the tasks
+     * @param capacity, maximum number of tasks waiting in the lane, rounded up to a power of two with a waitStrategy
+     * @param trackServiceTime, measure each task for {@link #getEstimatedBacklogNanos()}
+     * @param metrics, records each executed task, may be null
+     * @param waitStrategy, if not null the tasks wait in a preallocated {@link RingBufferQueue} instead of a linked queue
+     */
+    @SuppressWarnings("unchecked")
+    OrderedLane(final String name, final OrderedTaskErrorHandler errorHandler, final int capacity, final boolean trackServiceTime, final TaskMetrics metrics,
+                final WaitStrategy waitStrategy) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive " + capacity);
+        // the slots of all the classes are counted by queuedSlots, the linked queue itself is unbounded
+        if (waitStrategy == null) {
+            this.queue = new LinkedBlockingQueue<>();
+            this.ring = null;
+            this.capacity = capacity;
+        } else {
+            this.ring = new RingBufferQueue<>(capacity, waitStrategy, metrics != null);
+            this.queue = ring;
+            this.capacity = ring.capacity();
+        }
+        this.priorityQueues = new ConcurrentLinkedQueue[OrderedTaskSpec.PRIORITY_URGENT];
+        for (int i = 0; i < priorityQueues.length; i++) priorityQueues[i] = new ConcurrentLinkedQueue<>();
+        this.errorHandler = errorHandler;
+        this.trackServiceTime = trackServiceTime;
+        this.metrics = metrics;
+        this.worker = new Thread(this::runWorker, name);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (!tryExecute(task)) throw new RejectedExecutionException("Lane is full " + worker.getName());
+    }
+
+    /**
+     * @param task, to execute
+     * @return false if the lane is full
+     */
+    boolean tryExecute(final Runnable task) {
+        if (task == null) throw new NullPointerException("Unable to execute null");
+        if (state != RUNNING) throw new RejectedExecutionException("Lane is already shutdown " + worker.getName());
+        if (startWith(task)) return true;
+        if (!tryAcquireSlot()) return false;
+        enqueue(task);
+        return true;
+    }
+
+    /**
+     * queues the task even if the lane is full, never waits; for the continuation of an orderingId already admitted
+     * to the lane, such as an actor resumed by the thread completing an asynchronous task
+     * the task holds a slot like any other, so the lane stays over its capacity until the worker takes it
+     *
+     * @param task, to execute
+     */
+    void forceExecute(final Runnable task) {
+        if (task == null) throw new NullPointerException("Unable to execute null");
+        if (state != RUNNING) throw new RejectedExecutionException("Lane is already shutdown " + worker.getName());
+        if (startWith(task)) return;
+        if (capacity != Integer.MAX_VALUE) queuedSlots.incrementAndGet();
+        offerOutOfBand(continuations, metrics == null ? task : TaskMetrics.stamp(task));
+    }
+
+    /**
+     * waits for space if the lane is full
+     *
+     * @param task, to execute
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    void executeBlocking(final Runnable task) throws InterruptedException {
+        if (task == null) throw new NullPointerException("Unable to execute null");
+        if (state != RUNNING) throw new RejectedExecutionException("Lane is already shutdown " + worker.getName());
+        if (startWith(task)) return;
+        while (!tryAcquireSlot()) awaitSlot();
+        enqueue(task);
+    }
+
+    /**
+     * queues the task holding a slot, the slot is released if the lane is shutdown meanwhile
+     */
+    private void enqueue(final Runnable handedOver) {
+        // a timed ring stamps the tasks in its slots, so only the linked queues need a stamped wrapper
+        final Runnable task = metrics == null || (ring != null && priorityOf(handedOver) == OrderedTaskSpec.PRIORITY_NORMAL)
+                ? handedOver : TaskMetrics.stamp(handedOver);
+        if (offerPriority(task)) return;
+        // a ring may still hold WAKE_UPs beyond the capacity, the worker takes them promptly
+        while (!queue.offer(task)) {
+            if (state != RUNNING) {
+                releaseSlot();
+                throw new RejectedExecutionException("Lane is already shutdown " + worker.getName());
+            }
+            Thread.yield();
+        }
+        recheckAfterQueued(task);
+    }
+
+    private boolean tryAcquireSlot() {
+        if (capacity == Integer.MAX_VALUE) return true;
+        while (true) {
+            final int current = queuedSlots.get();
+            if (current >= capacity) return false;
+            if (queuedSlots.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * called for each task leaving the queues without the first task, which never holds a slot
+     */
+    private void releaseSlot() {
+        if (capacity == Integer.MAX_VALUE) return;
+        queuedSlots.decrementAndGet();
+        if (slotWaiters > 0) {
+            synchronized (queuedSlots) {
+                queuedSlots.notifyAll();
+            }
+        }
+    }
+
+    private void awaitSlot() throws InterruptedException {
+        synchronized (queuedSlots) {
+            slotWaiters++;
+            try {
+                // releaseSlot decrements before reading slotWaiters, so either it notifies or this sees the free slot
+                while (state == RUNNING && queuedSlots.get() >= capacity) queuedSlots.wait();
+            } finally {
+                slotWaiters--;
+            }
+        }
+        if (state != RUNNING) throw new RejectedExecutionException("Lane is already shutdown " + worker.getName());
+    }
+
+    /**
+     * @return priority class of the task clamped to the supported classes, normal for a task without a spec
+     */
+    static int priorityOf(final Runnable task) {
+        if (!(task instanceof OrderedTaskSpec)) return OrderedTaskSpec.PRIORITY_NORMAL;
+        final int priority = ((OrderedTaskSpec<?>) task).priority();
+        return Math.max(OrderedTaskSpec.PRIORITY_NORMAL, Math.min(OrderedTaskSpec.PRIORITY_URGENT, priority));
+    }
+
+    /**
+     * @return false if the task belongs to the normal priority class
+     */
+    private boolean offerPriority(final Runnable task) {
+        final int priority = priorityOf(task);
+        if (priority == OrderedTaskSpec.PRIORITY_NORMAL) return false;
+        offerOutOfBand(priorityQueues[priority - 1], task);
+        return true;
+    }
+
+    /**
+     * queues the task to a queue taken before the normal class and wakes up the worker
+     */
+    private void offerOutOfBand(final ConcurrentLinkedQueue<Runnable> outOfBand, final Runnable task) {
+        outOfBand.offer(task);
+        priorityQueued.incrementAndGet();
+        // the worker may be blocked on the normal queue; if that is full the worker is busy and checks the priority queues first
+        if (priorityWakeUpQueued.compareAndSet(false, true) && !queue.offer(WAKE_UP)) priorityWakeUpQueued.set(false);
+        if (state != RUNNING && removePriority(outOfBand, task))
+            throw new RejectedExecutionException("Lane is already shutdown " + worker.getName());
+    }
+
+    private boolean removePriority(final ConcurrentLinkedQueue<Runnable> priorityQueue, final Runnable task) {
+        if (!priorityQueue.remove(task)) return false;
+        priorityQueued.decrementAndGet();
+        releaseSlot();
+        return true;
+    }
+
+    /**
+     * @return oldest task of the highest non empty priority class, else the oldest continuation, null if there is none
+     */
+    private Runnable pollPriority() {
+        if (priorityQueued.get() == 0) return null;
+        for (int i = priorityQueues.length - 1; i >= 0; i--) {
+            final Runnable task = priorityQueues[i].poll();
+            if (task != null) {
+                priorityQueued.decrementAndGet();
+                return task;
+            }
+        }
+        final Runnable continuation = continuations.poll();
+        if (continuation != null) priorityQueued.decrementAndGet();
+        return continuation;
+    }
+
+    private boolean startWith(final Runnable task) {
+        if (started.compareAndSet(false, true)) {
+            // Thread.start happens before the worker reads firstTask
+            firstTask = metrics == null ? task : TaskMetrics.stamp(task);
+            worker.start();
+            return true;
+        }
+        return false;
+    }
+
+    private void recheckAfterQueued(final Runnable task) {
+        // the worker may have exited between the state check and offer
+        if (state != RUNNING && queue.remove(task)) {
+            releaseSlot();
+            throw new RejectedExecutionException("Lane is already shutdown " + worker.getName());
+        }
+    }
+
+    /**
+     * unlinks the oldest queued task of the specified orderingId in a single priority class, so an overflow policy
+     * dropping the oldest task of a class never discards the tasks of another class
+     * a task already picked by the worker is never removed
+     *
+     * @param orderingId, of the task to remove
+     * @param priority, class of the task to remove, clamped like {@link OrderedTaskSpec#priority()}
+     * @return the removed task or null if no task of the orderingId is queued in the class
+     */
+    Runnable removeOldestQueued(final int orderingId, final int priority) {
+        return removeFirstQueued(priority, queued -> queued instanceof OrderedTaskSpec && ((OrderedTaskSpec<?>) queued).orderingId() == orderingId);
+    }
+
+    /**
+     * unlinks the first queued task of the priority class matching, a task already picked by the worker is never removed
+     *
+     * @param priority, class of the task to remove, clamped like {@link OrderedTaskSpec#priority()}
+     * @param matcher, of the task to remove, as it was handed over
+     * @return the removed task as it was handed over, or null if no queued task of the class matches
+     */
+    Runnable removeFirstQueued(final int priority, final Predicate<Runnable> matcher) {
+        final int clamped = Math.max(OrderedTaskSpec.PRIORITY_NORMAL, Math.min(OrderedTaskSpec.PRIORITY_URGENT, priority));
+        if (clamped != OrderedTaskSpec.PRIORITY_NORMAL) {
+            final ConcurrentLinkedQueue<Runnable> priorityQueue = priorityQueues[clamped - 1];
+            for (Runnable queued : priorityQueue) {
+                final Runnable task = TaskMetrics.unwrap(queued);
+                if (matcher.test(task) && removePriority(priorityQueue, queued)) return task;
+            }
+            return null;
+        }
+        for (Runnable queued : queue) {
+            final Runnable task = TaskMetrics.unwrap(queued);
+            if (matcher.test(task) && queue.remove(queued)) {
+                releaseSlot();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void runWorker() {
+        try {
+            Runnable first = firstTask;
+            firstTask = null;
+            while (true) {
+                final Runnable task;
+                // queued time kept by a timed ring for a task taken from it, else the task carries its own
+                boolean fromRing = false;
+                if (first != null) {
+                    // like ThreadPoolExecutor the first task runs even if the lane is already stopped
+                    task = first;
+                    first = null;
+                } else if (state >= STOP) {
+                    break;
+                } else {
+                    final Runnable priorityTask = pollPriority();
+                    if (priorityTask != null) {
+                        task = priorityTask;
+                    } else if (state == RUNNING) {
+                        try {
+                            task = queue.take();
+                        } catch (InterruptedException e) {
+                            continue;
+                        }
+                    } else {
+                        // after shutdown keep draining without blocking
+                        task = queue.poll();
+                        if (task == null && priorityQueued.get() == 0) break;
+                        if (task == null) continue;
+                    }
+                    if (task != WAKE_UP) releaseSlot();
+                    fromRing = priorityTask == null && ring != null;
+                }
+                if (task == WAKE_UP) {
+                    // priority tasks queued before this point are seen by the next pollPriority
+                    priorityWakeUpQueued.set(false);
+                    continue;
+                }
+                final boolean timed = trackServiceTime || metrics != null;
+                final long start = timed ? System.nanoTime() : 0;
+                if (trackServiceTime) currentTaskStartNanos = start;
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    reportError(task, t);
+                }
+                if (timed) {
+                    final long end = System.nanoTime();
+                    if (trackServiceTime) recordServiceTime(end - start);
+                    if (metrics != null) {
+                        if (fromRing && !(task instanceof TaskMetrics.Timed)) metrics.record(task, ring.polledQueuedNanos(), start, end);
+                        else metrics.record(task, start, end);
+                    }
+                }
+                // an interrupt raised by the task must not leak into the next task
+                if (state < STOP) Thread.interrupted();
+            }
+        } finally {
+            state = TERMINATED;
+            terminated.countDown();
+        }
+    }
+
+    private void recordServiceTime(final long serviceNanos) {
+        final long average = ewmaServiceNanos;
+        // weight of 1/8 for the latest sample, single writer so read modify write is safe
+        ewmaServiceNanos = average == 0 ? serviceNanos : average + ((serviceNanos - average) >> 3);
+        currentTaskStartNanos = 0;
+    }
+
+    /**
+     * @return moving average of the task service time, zero if not tracked or no task executed yet
+     */
+    long getEwmaServiceNanos() {
+        return ewmaServiceNanos;
+    }
+
+    /**
+     * load of the lane, the approximate time a newly queued task waits before it starts
+     * queue depth (plus the executing task) multiplied by the moving average service time, never less than queue depth
+     *
+     * @return estimated backlog in nanos
+     */
+    long getEstimatedBacklogNanos() {
+        final long inFlight = getQueueDepth() + (currentTaskStartNanos != 0 ? 1 : 0);
+        return inFlight * Math.max(1, ewmaServiceNanos);
+    }
+
+    private void reportError(Runnable task, Throwable t) {
+        try {
+            errorHandler.uncaughtError(TaskMetrics.unwrap(task), t);
+        } catch (Throwable ignored) {
+            //TODO: ERROR LOG; error handler itself failed
+        }
+    }
+
+    /**
+     * scans the queued tasks carrying an orderingId
+     *
+     * @param scanLimit, maximum number of queued tasks scanned
+     * @return orderingId having most queued tasks, null if no queued task carries an orderingId
+     */
+    Integer getBusiestQueuedOrderingId(final int scanLimit) {
+        final Map<Integer, Integer> counts = new HashMap<>();
+        Integer busiest = null;
+        int busiestCount = 0;
+        int scanned = 0;
+        for (Runnable queued : queue) {
+            if (++scanned > scanLimit) break;
+            if (!(queued instanceof OrderedTaskSpec)) continue;
+            final int count = counts.merge(((OrderedTaskSpec<?>) queued).orderingId(), 1, Integer::sum);
+            if (count > busiestCount) {
+                busiestCount = count;
+                busiest = ((OrderedTaskSpec<?>) queued).orderingId();
+            }
+        }
+        return busiest;
+    }
+
+    /**
+     * @return number of tasks waiting in the lane, of all priority classes
+     */
+    int getQueueDepth() {
+        // the slots exclude the queued WAKE_UPs
+        if (capacity != Integer.MAX_VALUE) return queuedSlots.get();
+        return queue.size() + priorityQueued.get();
+    }
+
+    @Override
+    public void shutdown() {
+        if (state == RUNNING) {
+            state = SHUTDOWN;
+            queue.offer(WAKE_UP);
+            wakeUpSlotWaiters();
+            terminateIfNeverStarted();
+        }
+    }
+
+    /**
+     * producers waiting for a slot must see the shutdown and give up
+     */
+    private void wakeUpSlotWaiters() {
+        if (slotWaiters > 0) {
+            synchronized (queuedSlots) {
+                queuedSlots.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        if (state < STOP) state = STOP;
+        final List<Runnable> notExecuted = new ArrayList<>();
+        Runnable priorityTask;
+        while ((priorityTask = pollPriority()) != null) notExecuted.add(priorityTask);
+        queue.drainTo(notExecuted);
+        notExecuted.removeIf(task -> task == WAKE_UP);
+        notExecuted.replaceAll(TaskMetrics::unwrap);
+        for (int i = 0; i < notExecuted.size(); i++) releaseSlot();
+        wakeUpSlotWaiters();
+        worker.interrupt();
+        terminateIfNeverStarted();
+        return notExecuted;
+    }
+
+    private void terminateIfNeverStarted() {
+        // winning the start flag guarantees no worker will ever run, executes racing with it will be rejected on recheck
+        if (started.compareAndSet(false, true)) {
+            queue.clear();
+            for (ConcurrentLinkedQueue<Runnable> priorityQueue : priorityQueues) priorityQueue.clear();
+            continuations.clear();
+            priorityQueued.set(0);
+            queuedSlots.set(0);
+            state = TERMINATED;
+            terminated.countDown();
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return state != RUNNING;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return state == TERMINATED;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+}
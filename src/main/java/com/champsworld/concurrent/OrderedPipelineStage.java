@@ -0,0 +1,167 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stage of an ordered pipeline (SEDA), each stage has its own lanes, an orderingId is pinned to one lane of every stage
+ * the lane of a stage hands over the output of an item directly to the next stage, in order and without any future
+ * so the items of an orderingId are processed in order by every stage, while different stages work concurrently
+ * the lanes are bounded, when the next stage is full the lane handing over waits, throttling the stages before it
+ * A pipeline is created from its last stage to its first, items are submitted to the first stage
+ * @param <I> the item received by this stage
+ * @param <O> the item handed over to the next stage
+ * @author agrsachin81
+ */
+public class OrderedPipelineStage<I, O> {
+
+    private final String name;
+    private final OrderedTaskExecutor executor;
+    private final OrderedStageFunction<? super I, ? extends O> function;
+    /**
+     * null for the last stage
+     */
+    private final OrderedPipelineStage<? super O, ?> next;
+
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+
+    /**
+     * @param name, of the stage, used in error reports
+     * @param maxOrderingIds, the maximum number of unique OrderingIds present at a point in time in this stage
+     * @param parallelism, number of lanes of this stage
+     * @param queueCapacity, maximum number of items waiting in a lane of this stage
+     * @param function, applied to each item
+     * @param next, stage receiving the output, null for the last stage
+     */
+    public OrderedPipelineStage(String name, int maxOrderingIds, int parallelism, int queueCapacity,
+                                OrderedStageFunction<? super I, ? extends O> function, OrderedPipelineStage<? super O, ?> next) {
+        if (name == null || function == null) throw new NullPointerException("name and function can not be null");
+        this.name = name;
+        this.function = function;
+        this.next = next;
+        this.executor = new OrderedTaskExecutor(maxOrderingIds, parallelism, queueCapacity, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * queues the item after the items previously submitted with the same orderingId, waits if the lane is full
+     *
+     * @param orderingId, the unique id identifying the ordering
+     * @param item, to process
+     */
+    public void submit(int orderingId, I item) {
+        executor.execute(orderingId, new StageItem(orderingId, item, System.nanoTime()));
+    }
+
+    /**
+     * @param handler, receives failures of this stage, the failed task describes the stage, orderingId and item
+     */
+    public void setUncaughtErrorHandler(OrderedTaskErrorHandler handler) {
+        executor.setUncaughtErrorHandler(handler);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of items waiting in the lanes of this stage
+     */
+    public int getQueueDepth() {
+        return executor.getQueuedTaskCount();
+    }
+
+    /**
+     * @return number of items processed by this stage, including failed ones
+     */
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return average time spent in the function of this stage, excluding the hand over to the next stage
+     */
+    public long getAverageServiceNanos() {
+        final long count = processed.sum();
+        return count == 0 ? 0 : serviceNanos.sum() / count;
+    }
+
+    /**
+     * @return average time from the submission to this stage to the completion of its function, waiting included
+     */
+    public long getAverageLatencyNanos() {
+        final long count = processed.sum();
+        return count == 0 ? 0 : latencyNanos.sum() / count;
+    }
+
+    /**
+     * shuts down this stage once its queued items are processed, then the next stages in turn
+     * so every item accepted by the first stage flows through the whole pipeline
+     * every stage is shut down even if an earlier one did not terminate in time, the items it still hands over are rejected
+     *
+     * @param timeout, maximum time to wait for all the stages
+     * @param unit, of the timeout
+     * @return false if the timeout elapsed before every stage terminated
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        executor.shutdown();
+        final boolean terminated = executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        final boolean nextTerminated = next == null || next.shutdown(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return terminated && nextTerminated;
+    }
+
+    /**
+     * an item queued in a lane of the stage
+     */
+    private final class StageItem implements OrderedRunnable {
+        private final int orderingId;
+        private final I item;
+        private final long submitNanos;
+
+        private StageItem(int orderingId, I item, long submitNanos) {
+            this.orderingId = orderingId;
+            this.item = item;
+            this.submitNanos = submitNanos;
+        }
+
+        @Override
+        public int orderingId() {
+            return orderingId;
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            final O output;
+            try {
+                output = function.apply(orderingId, item);
+            } catch (Exception e) {
+                failed.increment();
+                throw new RuntimeException(e);
+            } finally {
+                final long end = System.nanoTime();
+                processed.increment();
+                serviceNanos.add(end - start);
+                latencyNanos.add(end - submitNanos);
+            }
+            // a failed hand over is reported to the error handler of this stage
+            if (output != null && next != null) next.submit(orderingId, output);
+        }
+
+        @Override
+        public String toString() {
+            return "StageItem{" +
+                    "stage=" + name +
+                    ", orderingId=" + orderingId +
+                    ", item=" + item +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.champsworld.concurrent;
+
+/**
+ * The Ordered Runnable with having same orderingId/concurrencyId will be executed in order of submitting.
+ * It is executed without creating any future, failures are reported to the OrderedTaskErrorHandler of the executor
+ *
+ * @author agrsachin81
+ */
+public interface OrderedRunnable extends Runnable, OrderedTaskSpec<Void> {
+
+}
@@ -0,0 +1,18 @@
+package com.champsworld.concurrent;
+
+/**
+ * The work of a single stage of an {@link OrderedPipelineStage}, items of the same orderingId are applied in order
+ * @param <I> the item received from the previous stage
+ * @param <O> the item handed over to the next stage
+ * @author agrsachin81
+ */
+public interface OrderedStageFunction<I, O> {
+
+    /**
+     * @param orderingId, of the item
+     * @param item, to process
+     * @return the item for the next stage, null to stop the item at this stage
+     * @throws Exception if the item failed, it is reported to the error handler of the stage and not passed on
+     */
+    O apply(int orderingId, I item) throws Exception;
+}
@@ -0,0 +1,22 @@
+package com.champsworld.concurrent;
+
+/**
+ * Serializes the tasks submitted to a {@link DurableOrderedTaskExecutor}, so that they can be replayed after a restart
+ * @param <T> the result type of the tasks
+ * @author agrsachin81
+ */
+public interface OrderedTaskCodec<T> {
+
+    /**
+     * @param task, submitted
+     * @return the bytes journaled for the task
+     */
+    byte[] encode(OrderedTask<T> task) throws Exception;
+
+    /**
+     * @param orderingId, of the journaled task
+     * @param payload, as returned by encode
+     * @return the task to replay
+     */
+    OrderedTask<T> decode(int orderingId, byte[] payload) throws Exception;
+}
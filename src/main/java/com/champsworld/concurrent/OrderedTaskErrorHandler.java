@@ -0,0 +1,15 @@
+package com.champsworld.concurrent;
+
+/**
+ * Receives the failures of tasks executed without a future, i.e. through OrderedTaskExecutor.execute
+ * it is called on the thread that executed the failed task, so it must be fast and must not block
+ * @author agrsachin81
+ */
+public interface OrderedTaskErrorHandler {
+
+    /**
+     * @param task, the task that failed
+     * @param error, thrown by the task
+     */
+    void uncaughtError(Runnable task, Throwable error);
+}
@@ -2,15 +2,34 @@ package com.champsworld.concurrent;
 
 import com.champsworld.algo.FixedResourceAllocator;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * A ThreadPool executor that ensures ordering of task, where ordering of task is needed based on an orderingId/ConcurrencyId
@@ -18,17 +37,158 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * so that the same orderingId will always be submitted in the same order they arrive
  * by default multiple singleThreadExecutors are created (number of processors)
  * It uses a lru approach for memory cleanup, (for Tasks/OrderingId which are no longer in use)
+ * Alternatively with {@link SchedulingMode#KEYED_ACTORS} each active orderingId gets its own serial queue
+ * and all such queues are scheduled on a shared work stealing pool, avoiding head of line blocking between orderingIds
+ * or with {@link SchedulingMode#VIRTUAL_THREADS} on virtual threads, when running on Java 21 or later
+ * With SINGLE_THREAD_LANES an orderingId can be moved off an overloaded lane by {@link #rebalance(KeyMigration)}
+ * and the number of lanes can be changed live by {@link #resizeLanes(int)}
  * @author agrsachin81
  */
 public class OrderedTaskExecutor {
     public static final int MAX_SINGLE_THREAD_POOL_COUNT = 100;
     public static final int MAX_CONCURRENCY_ID_ALLOWED_AT_A_TIME = (Integer.MAX_VALUE-1) /2;
+    private static final int KEY_EXECUTOR_CACHE_SIZE = 256;
+    /**
+     * states of a task submitted with a long or Object key, see InternedTask
+     */
+    private static final int KEY_NEW = 0, KEY_STARTED = 1, KEY_RELEASED = 2;
+    private static final int REBALANCE_MIN_QUEUE_DEPTH = 2;
+    private static final int REBALANCE_SCAN_LIMIT = 1024;
+
+    /**
+     * decides which lane a new orderingId is pinned to, for SINGLE_THREAD_LANES
+     */
+    public enum LaneAssignment {
+        /**
+         * the lane having the least number of orderingIds assigned
+         */
+        LEAST_KEYS,
+        /**
+         * the lane having the least live load, its queue depth weighted by a moving average of its task service time
+         * ties are broken by the number of orderingIds assigned
+         */
+        LEAST_LOADED
+    }
+
+    /**
+     * decides which orderingId of an overloaded lane is moved by {@link #rebalance(KeyMigration)}
+     */
+    public enum KeyMigration {
+        /**
+         * the orderingId having most tasks queued in the lane, it relieves the lane the most
+         */
+        BUSIEST,
+        /**
+         * the least recently used orderingId of the lane, its queued tasks (if any) are drained before it moves
+         */
+        IDLEST
+    }
+
+    /**
+     * decides how the tasks of different orderingIds share threads
+     */
+    public enum SchedulingMode {
+        /**
+         * each orderingId is pinned to one of the fixed single thread executors (lanes)
+         */
+        SINGLE_THREAD_LANES,
+        /**
+         * each active orderingId has its own serial queue, the queues are run on a shared ForkJoinPool
+         */
+        KEYED_ACTORS,
+        /**
+         * like KEYED_ACTORS but each run of the serial queue of an orderingId gets its own virtual thread, so a task
+         * blocking on I/O parks cheaply instead of holding a pool worker; requires Java 21 and the multi release jar,
+         * on an older runtime it falls back to KEYED_ACTORS, see {@link #isVirtualThreadsSupported()}
+         */
+        VIRTUAL_THREADS
+    }
 
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private final AtomicBoolean shutdownNow = new AtomicBoolean(false);
+    /**
+     * length of the lane array, MAX_SINGLE_THREAD_POOL_COUNT for SINGLE_THREAD_LANES so the lanes can grow
+     */
     private final int execArrayLength;
-    private final AtomicReferenceArray<ExecutorService> singleThreadPoolExecutor;
+    private final AtomicReferenceArray<OrderedLane> singleThreadPoolExecutor;
+    /**
+     * number of lanes in use, lanes beyond it are null or being retired
+     */
+    private volatile int laneCount;
+    /**
+     * lanes removed by resizeLanes, draining the tasks queued before the removal
+     */
+    private final ConcurrentLinkedQueue<OrderedLane> retiredLanes = new ConcurrentLinkedQueue<>();
     private final FixedResourceAllocator threadPoolIndexCalculator;
+    private final SchedulingMode schedulingMode;
+    /**
+     * null unless schedulingMode is KEYED_ACTORS
+     */
+    private final KeyedActorScheduler keyedActorScheduler;
+    /**
+     * maximum number of tasks waiting in each lane
+     */
+    private final int laneCapacity;
+    /**
+     * null unless the lanes are ring buffers
+     */
+    private final WaitStrategy waitStrategy;
+    /**
+     * null unless lanes or orderingIds are bounded
+     */
+    private final LaneBackpressure laneBackpressure;
+    private final LaneAssignment laneAssignment;
+    /**
+     * null unless schedulingMode is SINGLE_THREAD_LANES
+     */
+    private final LaneMigrator laneMigrator;
+    private final AtomicReference<ScheduledExecutorService> autoRebalancer = new AtomicReference<>();
+    /**
+     * the queued ConflatingTask or BatchingTask of each orderingId, which is still the latest queued task of the orderingId
+     * so it can accept newer submissions
+     */
+    private final ConcurrentHashMap<Integer, Runnable> openTasks = new ConcurrentHashMap<>();
+    /**
+     * actors of the orderingIds held by an asynchronous task, run on the lanes; null unless schedulingMode is SINGLE_THREAD_LANES
+     */
+    private final KeyedActorScheduler heldOrderingIds;
+    /**
+     * null unless tasks are reordered by their update id
+     */
+    private final SequenceReorderBuffer reorderBuffer;
+    private final KeyOutcomeCounters keyOutcomes = new KeyOutcomeCounters();
+    private final OrderedFutureTask.Listener queuedTaskListener = new QueuedTaskListener();
+    private volatile KeyRateLimiter rateLimiter;
+    /**
+     * orderingIds of the long and Object keys having a task queued or running
+     */
+    private final OrderingKeys orderingKeys = new OrderingKeys();
+    /**
+     * actors of the orderingIds interned for the long and Object keys, a namespace of their own which the int orderingIds
+     * never reach; run on the lanes, or on the pool of the keyed actors
+     */
+    private final KeyedActorScheduler keyedTasks;
+    /**
+     * direct mapped cache of the views returned by forKey, a colliding orderingId just replaces the cached view
+     */
+    private final AtomicReferenceArray<OrderedKeyExecutor> keyExecutors = new AtomicReferenceArray<>(KEY_EXECUTOR_CACHE_SIZE);
+    /**
+     * metrics of each lane index, kept when the lane of the index is replaced; null with KEYED_ACTORS
+     */
+    private final AtomicReferenceArray<TaskMetrics> laneMetrics;
+    /**
+     * metrics of the keyed actors, null with SINGLE_THREAD_LANES
+     */
+    private final TaskMetrics actorMetrics;
+    private final AtomicReference<ObjectName> registeredMBean = new AtomicReference<>();
+
+    /**
+     * receives failures of tasks executed without a future; by default forwards to the uncaught exception handler of the worker thread
+     */
+    private volatile OrderedTaskErrorHandler uncaughtErrorHandler = (task, error) -> {
+        final Thread current = Thread.currentThread();
+        current.getUncaughtExceptionHandler().uncaughtException(current, error);
+    };
 
     /**
      * The OrderedTaskExecutor keeps the decision of last Thread Pool used for each concurrencyId/orderingId; in memory.
@@ -36,61 +196,1219 @@ public class OrderedTaskExecutor {
      * @param maxCapacity, the maximum number of unique OrderingIds present at a point in time, for which tasks are executing
      */
     public OrderedTaskExecutor(int maxCapacity) {
+        this(maxCapacity, SchedulingMode.SINGLE_THREAD_LANES);
+    }
+
+    /**
+     * @param maxCapacity, the maximum number of unique OrderingIds present at a point in time, for which tasks are executing
+     * @param schedulingMode, how tasks of different orderingIds share the threads
+     */
+    public OrderedTaskExecutor(int maxCapacity, SchedulingMode schedulingMode) {
+        this(maxCapacity, schedulingMode, Math.min(Runtime.getRuntime().availableProcessors(), MAX_SINGLE_THREAD_POOL_COUNT));
+    }
+
+    /**
+     * @param maxCapacity, the maximum number of unique OrderingIds present at a point in time, for which tasks are executing
+     * @param schedulingMode, how tasks of different orderingIds share the threads
+     * @param parallelism, number of lanes for SINGLE_THREAD_LANES or number of pool workers for KEYED_ACTORS, ignored on virtual threads
+     */
+    public OrderedTaskExecutor(int maxCapacity, SchedulingMode schedulingMode, int parallelism) {
+        this(maxCapacity, schedulingMode, parallelism, Integer.MAX_VALUE, Integer.MAX_VALUE, OverflowPolicy.BLOCK, LaneAssignment.LEAST_KEYS, 0, 0, null);
+    }
+
+    /**
+     * Creates an executor which hands over the tasks of an orderingId strictly in the order of their update id,
+     * the genNextUpdateId passed to submit, obtained from {@link #getNextUpdateId(int)} (1, 2, 3 ... for each orderingId)
+     * so concurrent producers can submit in any order; every generated update id must be submitted
+     * a task arriving ahead of a missing id waits for it up to the gap timeout, then the missing id is skipped
+     * tasks submitted without an update id (zero, or through execute) are not reordered
+     * @param maxCapacity, the maximum number of unique OrderingIds present at a point in time, for which tasks are executing
+     * @param schedulingMode, how tasks of different orderingIds share the threads
+     * @param parallelism, number of lanes for SINGLE_THREAD_LANES or number of pool workers for KEYED_ACTORS, ignored on virtual threads
+     * @param reorderWindow, maximum distance of a waiting update id from the missing one, a farther one is rejected
+     * @param gapTimeout, how long a missing update id is waited for, Long.MAX_VALUE to wait forever
+     * @param unit, of the gapTimeout
+     */
+    public OrderedTaskExecutor(int maxCapacity, SchedulingMode schedulingMode, int parallelism, int reorderWindow, long gapTimeout, TimeUnit unit) {
+        this(maxCapacity, schedulingMode, parallelism, Integer.MAX_VALUE, Integer.MAX_VALUE, OverflowPolicy.BLOCK, LaneAssignment.LEAST_KEYS,
+                reorderWindow <= 0 ? -1 : reorderWindow, gapTimeout == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toNanos(gapTimeout), null);
+    }
+
+    /**
+     * Creates an executor with SINGLE_THREAD_LANES
+     * @param maxCapacity, the maximum number of unique OrderingIds present at a point in time, for which tasks are executing
+     * @param parallelism, number of lanes
+     * @param laneAssignment, how the lane of a new orderingId is chosen
+     */
+    public OrderedTaskExecutor(int maxCapacity, int parallelism, LaneAssignment laneAssignment) {
+        this(maxCapacity, SchedulingMode.SINGLE_THREAD_LANES, parallelism, Integer.MAX_VALUE, Integer.MAX_VALUE, OverflowPolicy.BLOCK, laneAssignment, 0, 0, null);
+    }
+
+    /**
+     * Creates an executor with bounded SINGLE_THREAD_LANES, the overflowPolicy is applied when either capacity is reached
+     * @param maxCapacity, the maximum number of unique OrderingIds present at a point in time, for which tasks are executing
+     * @param parallelism, number of lanes
+     * @param laneCapacity, maximum number of tasks waiting in a lane
+     * @param perKeyCapacity, maximum number of queued and executing tasks of a single orderingId, Integer.MAX_VALUE for unlimited
+     * @param overflowPolicy, applied when a capacity is reached
+     */
+    public OrderedTaskExecutor(int maxCapacity, int parallelism, int laneCapacity, int perKeyCapacity, OverflowPolicy overflowPolicy) {
+        this(maxCapacity, SchedulingMode.SINGLE_THREAD_LANES, parallelism, laneCapacity, perKeyCapacity, overflowPolicy, LaneAssignment.LEAST_KEYS, 0, 0, null);
+    }
+
+    /**
+     * Creates an executor with SINGLE_THREAD_LANES whose lanes queue the tasks in a preallocated ring of reusable slots,
+     * a producer claims a slot with a single CAS and the worker waits for tasks as per the waitStrategy;
+     * a submit to a full ring waits for a free slot as per the waitStrategy
+     * @param maxCapacity, the maximum number of unique OrderingIds present at a point in time, for which tasks are executing
+     * @param parallelism, number of lanes
+     * @param ringSize, slots of the ring of each lane, rounded up to a power of two
+     * @param waitStrategy, how the worker of an idle lane and the producer of a full lane wait
+     */
+    public OrderedTaskExecutor(int maxCapacity, int parallelism, int ringSize, WaitStrategy waitStrategy) {
+        this(maxCapacity, SchedulingMode.SINGLE_THREAD_LANES, parallelism, ringSize, Integer.MAX_VALUE, OverflowPolicy.BLOCK, LaneAssignment.LEAST_KEYS, 0, 0,
+                Objects.requireNonNull(waitStrategy, "waitStrategy can not be null"));
+    }
+
+    private OrderedTaskExecutor(int maxCapacity, SchedulingMode schedulingMode, int parallelism,
+                                int laneCapacity, int perKeyCapacity, OverflowPolicy overflowPolicy, LaneAssignment laneAssignment,
+                                int reorderWindow, long gapTimeoutNanos, WaitStrategy waitStrategy) {
         if(maxCapacity >= MAX_CONCURRENCY_ID_ALLOWED_AT_A_TIME)
             throw new IllegalArgumentException("MAX CONCURRENCY ALLOWED IS < "+MAX_CONCURRENCY_ID_ALLOWED_AT_A_TIME);
-        this.execArrayLength = Math.min(Runtime.getRuntime().availableProcessors(), MAX_SINGLE_THREAD_POOL_COUNT);
+        if (schedulingMode == null) throw new NullPointerException("schedulingMode can not be null");
+        if (parallelism <= 0 || parallelism > MAX_SINGLE_THREAD_POOL_COUNT)
+            throw new IllegalArgumentException("parallelism must be between 1 and " + MAX_SINGLE_THREAD_POOL_COUNT + " " + parallelism);
+        // VIRTUAL_THREADS falls back to the pool of KEYED_ACTORS on runtimes without virtual threads
+        final ExecutorService virtualThreads = schedulingMode == SchedulingMode.VIRTUAL_THREADS ?
+                VirtualThreads.newThreadPerTaskExecutor("OrderedTaskExecutor-" + System.identityHashCode(this) + "-vt-") : null;
+        if (schedulingMode == SchedulingMode.VIRTUAL_THREADS && virtualThreads == null) schedulingMode = SchedulingMode.KEYED_ACTORS;
+        this.schedulingMode = schedulingMode;
+        this.execArrayLength = schedulingMode == SchedulingMode.SINGLE_THREAD_LANES ? MAX_SINGLE_THREAD_POOL_COUNT : parallelism;
+        this.laneCount = parallelism;
+        if (laneAssignment == null) throw new NullPointerException("laneAssignment can not be null");
+        this.laneAssignment = laneAssignment;
         this.singleThreadPoolExecutor = new AtomicReferenceArray<>(this.execArrayLength);
-        threadPoolIndexCalculator = new FixedResourceAllocator(this.execArrayLength, maxCapacity);
+        this.laneMetrics = schedulingMode == SchedulingMode.SINGLE_THREAD_LANES ? new AtomicReferenceArray<>(this.execArrayLength) : null;
+        this.actorMetrics = schedulingMode != SchedulingMode.SINGLE_THREAD_LANES ? new TaskMetrics() : null;
+        threadPoolIndexCalculator = new FixedResourceAllocator(this.execArrayLength, maxCapacity,
+                laneAssignment == LaneAssignment.LEAST_LOADED ? this::getLaneLoad : null,
+                this::onOrderingIdEvicted);
+        if (parallelism < execArrayLength) threadPoolIndexCalculator.resize(parallelism);
+        if (laneCapacity <= 0 || perKeyCapacity <= 0)
+            throw new IllegalArgumentException("capacities must be positive " + laneCapacity + " ," + perKeyCapacity);
+        if (overflowPolicy == null) throw new NullPointerException("overflowPolicy can not be null");
+        if (reorderWindow < 0) throw new IllegalArgumentException("reorderWindow must be positive");
+        if (reorderWindow > 0 && gapTimeoutNanos <= 0) throw new IllegalArgumentException("gapTimeout must be positive " + gapTimeoutNanos);
+        if (virtualThreads != null) {
+            this.keyedActorScheduler = new KeyedActorScheduler(virtualThreads, KeyedActorScheduler.DEFAULT_THROUGHPUT, this::reportUncaughtError, actorMetrics);
+        } else {
+            this.keyedActorScheduler = schedulingMode == SchedulingMode.KEYED_ACTORS ?
+                    new KeyedActorScheduler(parallelism, KeyedActorScheduler.DEFAULT_THROUGHPUT, this::reportUncaughtError, actorMetrics) : null;
+        }
+        this.laneCapacity = laneCapacity;
+        this.waitStrategy = waitStrategy;
+        final boolean bounded = laneCapacity < Integer.MAX_VALUE || perKeyCapacity < Integer.MAX_VALUE;
+        this.laneBackpressure = bounded ? new LaneBackpressure(perKeyCapacity, overflowPolicy, this::reportUncaughtError) : null;
+        this.laneMigrator = keyedActorScheduler == null ?
+                new LaneMigrator(threadPoolIndexCalculator, this::getLaneIfRunning, this::dispatchToLane, this::reportUncaughtError) : null;
+        this.reorderBuffer = reorderWindow > 0 ?
+                new SequenceReorderBuffer(reorderWindow, gapTimeoutNanos, (id, task, mayBlock) -> dispatchInOrder(id, task, 0, mayBlock), this::reportUncaughtError) : null;
+        this.heldOrderingIds = keyedActorScheduler == null ?
+                new KeyedActorScheduler(this::runHeldActor, KeyedActorScheduler.DEFAULT_THROUGHPUT, this::reportUncaughtError) : null;
+        this.keyedTasks = keyedActorScheduler == null ?
+                new KeyedActorScheduler(this::runKeyActor, KeyedActorScheduler.DEFAULT_THROUGHPUT, this::reportUncaughtError) :
+                new KeyedActorScheduler(keyedActorScheduler::runOnPool, KeyedActorScheduler.DEFAULT_THROUGHPUT, this::reportUncaughtError, actorMetrics);
         //TODO: log with Info level
         //"OrderedTaskExecutor CREATED " + System.identityHashCode(this));
     }
 
     public <T> CompletableFuture<T> submit(OrderedCallable<T> task, int genNextUpdateId) {
         if (task == null) throw new NullPointerException("Unable to execute null-" +genNextUpdateId);
-        return CompletableFuture.supplyAsync(()->{
+        final OrderedFutureTask<T> future = new OrderedFutureTask<>(task.orderingId(), task.priority(), () -> {
             try {
                 return task.call();
             } catch (Throwable t) {
                 throw new RuntimeException(t);
             }
-        }, getExecutorService(task.orderingId(), genNextUpdateId));
+        }, false, 0, queuedTaskListener);
+        dispatch(task.orderingId(), future, genNextUpdateId);
+        return future;
+    }
+
+    /**
+     * Submits a task completing asynchronously, the next task of the orderingId starts only after its stage completes
+     * but the lane (or the pool worker) is released as soon as the task returns its stage, to execute other orderingIds
+     * cancelling the returned future releases the orderingId without waiting for the stage
+     *
+     * @param task, to execute
+     * @return future completing with the stage returned by the task
+     */
+    public <T> CompletableFuture<T> submitAsync(OrderedAsyncTask<T> task) {
+        if (task == null) throw new NullPointerException("Unable to execute null");
+        final OrderedAsyncFutureTask<T> future = new OrderedAsyncFutureTask<>(task.orderingId(), task);
+        dispatch(task.orderingId(), future, keyedActorScheduler == null ? getNextUpdateId(task.orderingId()) : 0);
+        return future;
     }
 
     public <T> CompletableFuture<T> submit(OrderedTask<T> task, int genNextUpdateId) {
         if (task == null) throw new NullPointerException("Unable to execute null-" +genNextUpdateId);
-        return CompletableFuture.supplyAsync(task, getExecutorService(task.orderingId(), genNextUpdateId));
+        final OrderedFutureTask<T> future = new OrderedFutureTask<>(task.orderingId(), task.priority(), task, false, 0, queuedTaskListener);
+        dispatch(task.orderingId(), future, genNextUpdateId);
+        return future;
+    }
+
+    /**
+     * Submits a task which must start within the timeout, if it is dequeued later it is skipped
+     * and its future fails with TimeoutException; a started task is never interrupted
+     *
+     * @param task, to execute
+     * @param timeout, from now, within which the task must start
+     * @param unit, of the timeout
+     * @return future of the task
+     */
+    public <T> CompletableFuture<T> submit(OrderedTask<T> task, long timeout, TimeUnit unit) {
+        if (task == null || unit == null) throw new NullPointerException("Unable to execute null");
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        final OrderedFutureTask<T> future = new OrderedFutureTask<>(task.orderingId(), task.priority(), task, true, deadlineNanos, queuedTaskListener);
+        dispatch(task.orderingId(), future, keyedActorScheduler == null ? getNextUpdateId(task.orderingId()) : 0);
+        return future;
+    }
+
+    /**
+     * @param orderingId, the unique id identifying the ordering
+     * @return number of tasks of the orderingId skipped as their deadline passed before they started
+     */
+    public long getExpiredCount(int orderingId) {
+        return keyOutcomes.getExpired(orderingId);
+    }
+
+    /**
+     * @param orderingId, the unique id identifying the ordering
+     * @return number of tasks of the orderingId cancelled through their future
+     */
+    public long getCancelledCount(int orderingId) {
+        return keyOutcomes.getCancelled(orderingId);
+    }
+
+    public long getTotalExpiredCount() {
+        return keyOutcomes.getTotalExpired();
+    }
+
+    public long getTotalCancelledCount() {
+        return keyOutcomes.getTotalCancelled();
+    }
+
+    /**
+     * unlinks cancelled tasks still queued in their lane, so the lane never dequeues them
+     */
+    private final class QueuedTaskListener implements OrderedFutureTask.Listener {
+        @Override
+        public void cancelled(OrderedFutureTask<?> task) {
+            keyOutcomes.recordCancelled(task.orderingId());
+            // actors, reorder windows and migration fences skip it when it is dequeued
+            if (keyedActorScheduler != null) return;
+            final int laneIndex = threadPoolIndexCalculator.getMappedResourceIndex(task.orderingId(), -1);
+            final OrderedLane lane = laneIndex < 0 ? null : singleThreadPoolExecutor.get(laneIndex);
+            if (lane == null) return;
+            if (laneBackpressure != null) laneBackpressure.removeQueued(lane, task);
+            else lane.removeFirstQueued(task.priority(), queued -> queued == task);
+        }
+
+        @Override
+        public void expired(OrderedFutureTask<?> task) {
+            keyOutcomes.recordExpired(task.orderingId());
+        }
+    }
+
+    /**
+     * Submits a task of which only the latest matters, like a state snapshot or a price update
+     * if a conflating task of the same orderingId is still queued (not started) and nothing else of the orderingId
+     * was submitted after it, it is replaced by this task and its future completes with CancellationException
+     * the tasks which do execute keep the order of submission with every other task of the orderingId
+     *
+     * @param task, to execute
+     * @return future of the task, cancelled if the task is conflated by a newer one
+     */
+    public <T> CompletableFuture<T> submitConflating(OrderedTask<T> task) {
+        if (task == null) throw new NullPointerException("Unable to execute null");
+        final int orderingId = task.orderingId();
+        final OrderedFutureTask<T> future = new OrderedFutureTask<>(orderingId, task, false, 0, queuedTaskListener);
+        while (true) {
+            final Runnable queued = openTasks.get(orderingId);
+            if (queued != null) {
+                if (queued instanceof ConflatingTask && ((ConflatingTask) queued).replace(future)) return future;
+                // already started or a batch, a new one is queued behind it
+                openTasks.remove(orderingId, queued);
+                continue;
+            }
+            final ConflatingTask conflating = new ConflatingTask(orderingId, future, openTasks);
+            if (openTasks.putIfAbsent(orderingId, conflating) != null) continue;
+            try {
+                // no update id is generated, a reorder buffer would wait for it
+                final KeyRateLimiter limiter = rateLimiter;
+                if (limiter == null) route(orderingId, conflating, 0);
+                else limiter.admit(orderingId, true, mayBlock -> route(orderingId, conflating, 0, mayBlock), error -> failConflating(conflating, null, error));
+            } catch (Throwable t) {
+                failConflating(conflating, future, t);
+                throw t;
+            }
+            return future;
+        }
+    }
+
+    private void failConflating(final ConflatingTask conflating, final OrderedFutureTask<?> thrownTo, final Throwable t) {
+        openTasks.remove(conflating.orderingId(), conflating);
+        // a newer submission may have replaced this task meanwhile, it is not queued either
+        final OrderedFutureTask<?> held = conflating.take();
+        if (held != null && held != thrownTo) held.completeExceptionally(t);
+    }
+
+    /**
+     * Submits an item to be executed by the batch handler together with the other items of the orderingId
+     * while a batch of the orderingId (of the same handler) is queued and not started, the item is appended to it,
+     * unless it is full or anything else of the orderingId was submitted after it; else a new batch is queued
+     * the lane executes the whole batch in a single invocation of the handler, in order of submission
+     *
+     * @param orderingId, the unique id identifying the ordering
+     * @param item, to execute
+     * @param handler, executing the batch, must be the same instance for the items to be batched together
+     * @param maxBatchSize, maximum number of items in a batch
+     * @return future completed with the result of the item
+     */
+    public <T, R> CompletableFuture<R> submitToBatch(int orderingId, T item, OrderedBatchTask<T, R> handler, int maxBatchSize) {
+        if (handler == null) throw new NullPointerException("Unable to execute with null handler-" + orderingId);
+        if (maxBatchSize <= 0) throw new IllegalArgumentException("maxBatchSize must be positive " + maxBatchSize);
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        while (true) {
+            final Runnable queued = openTasks.get(orderingId);
+            if (queued != null) {
+                if (queued instanceof BatchingTask && appendToBatch((BatchingTask<?, ?>) queued, handler, item, future)) return future;
+                // already started, full or not a batch of this handler, a new one is queued behind it
+                openTasks.remove(orderingId, queued);
+                continue;
+            }
+            final BatchingTask<T, R> batch = new BatchingTask<>(orderingId, handler, maxBatchSize, openTasks);
+            batch.add(handler, item, future);
+            if (openTasks.putIfAbsent(orderingId, batch) != null) continue;
+            try {
+                final KeyRateLimiter limiter = rateLimiter;
+                if (limiter == null) route(orderingId, batch, 0);
+                else limiter.admit(orderingId, true, mayBlock -> route(orderingId, batch, 0, mayBlock), batch::fail);
+            } catch (Throwable t) {
+                // newer items may have been appended meanwhile, they are not queued either
+                batch.fail(t);
+                throw t;
+            }
+            return future;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, R> boolean appendToBatch(BatchingTask<?, ?> queued, OrderedBatchTask<T, R> handler, T item, CompletableFuture<R> future) {
+        // add verifies the handler instance, so the item and result types match
+        return ((BatchingTask<T, R>) queued).add(handler, item, future);
+    }
+
+    /**
+     * hands over the task to the lane or the keyed actor of the orderingId, in order of update id if reordering
+     */
+    private void dispatch(final int orderingId, final Runnable task, final int genNextUpdateId) {
+        final KeyRateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            dispatchAdmitted(orderingId, task, genNextUpdateId);
+            return;
+        }
+        // a held task is submitted now, a queued conflating task or batch must not accept anything newer
+        if (!openTasks.isEmpty()) openTasks.remove(orderingId);
+        limiter.admit(orderingId, true, mayBlock -> dispatchAdmitted(orderingId, task, genNextUpdateId, mayBlock), error -> {
+            if (task instanceof CompletableFuture) ((CompletableFuture<?>) task).completeExceptionally(error);
+            else reportUncaughtError(task, error);
+        });
+    }
+
+    private void dispatchAdmitted(final int orderingId, final Runnable task, final int genNextUpdateId) {
+        dispatchAdmitted(orderingId, task, genNextUpdateId, true);
+    }
+
+    /**
+     * @param mayBlock, false when a full lane must not be waited for, on the thread of the rate limiter
+     * @return false if the task is not handed over as its lane or orderingId is full and mayBlock is false
+     */
+    private boolean dispatchAdmitted(final int orderingId, final Runnable task, final int genNextUpdateId, final boolean mayBlock) {
+        if (reorderBuffer != null && genNextUpdateId > 0) {
+            if (shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Executor is already shutdown; rejected "+orderingId +" ,"+genNextUpdateId);
+            // the buffer hands over the tasks in sequence on the thread completing the sequence, which may wait for a full lane
+            // unless mayBlock is false, the buffer then holds the task and retries it
+            reorderBuffer.submit(orderingId, genNextUpdateId, task, mayBlock);
+            return true;
+        }
+        return dispatchInOrder(orderingId, task, genNextUpdateId, mayBlock);
+    }
+
+    /**
+     * called by the allocator while it is locked, its update ids restart
+     */
+    private void onOrderingIdEvicted(final int orderingId) {
+        // before the reorder buffer is assigned no id exists yet
+        if (reorderBuffer != null) reorderBuffer.restart(orderingId);
+        keyOutcomes.remove(orderingId);
+        final KeyRateLimiter limiter = rateLimiter;
+        if (limiter != null) limiter.evict(orderingId);
+    }
+
+    private void dispatchInOrder(final int orderingId, final Runnable task, final int genNextUpdateId) {
+        dispatchInOrder(orderingId, task, genNextUpdateId, true);
+    }
+
+    private boolean dispatchInOrder(final int orderingId, final Runnable task, final int genNextUpdateId, final boolean mayBlock) {
+        // a queued conflating task or batch must never accept a task submitted after this one
+        if (!openTasks.isEmpty()) openTasks.remove(orderingId);
+        return route(orderingId, task, genNextUpdateId, mayBlock);
+    }
+
+    private void route(final int orderingId, final Runnable task, final int genNextUpdateId) {
+        route(orderingId, task, genNextUpdateId, true);
+    }
+
+    /**
+     * @param mayBlock, false when a full lane must not be waited for, on the thread of the rate limiter
+     * @return false if the task is not handed over as its lane or orderingId is full and mayBlock is false
+     */
+    private boolean route(final int orderingId, final Runnable task, final int genNextUpdateId, final boolean mayBlock) {
+        if (keyedActorScheduler != null) {
+            if (shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Executor is already shutdown; rejected "+orderingId +" ,"+genNextUpdateId);
+            keyedActorScheduler.execute(orderingId, task);
+        } else if (task instanceof OrderedAsyncFutureTask || heldOrderingIds.hasActor(orderingId)) {
+            // while an asynchronous task holds the orderingId, its tasks wait in an actor which runs on the lane
+            if (shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Executor is already shutdown; rejected "+orderingId +" ,"+genNextUpdateId);
+            heldOrderingIds.execute(orderingId, task);
+        } else {
+            return routeToLane(orderingId, task, genNextUpdateId, mayBlock);
+        }
+        return true;
     }
 
-    private ExecutorService getExecutorService(int taskOrderingId, final int genNextUpdateId) {
+    /**
+     * runs the actor of an orderingId held by an asynchronous task on the lane of the orderingId
+     */
+    private void runHeldActor(final int orderingId, final Runnable actor, final boolean resumed) {
+        if (!resumed) {
+            // behind the tasks of the orderingId already queued in the lane
+            routeToLane(orderingId, actor, 0);
+            return;
+        }
+        // must not block the thread completing an asynchronous task, which may be the worker of this very lane;
+        // the tasks of the actor were admitted already, so its continuation is queued whatever the lane capacity
+        final int epoch = laneMigrator.enterRouting();
+        try {
+            final int laneIndex = threadPoolIndexCalculator.getResourceIndex(orderingId);
+            if (laneMigrator.holdIfFenced(orderingId, laneIndex, actor)) return;
+            final OrderedLane lane = getLaneIfRunning(laneIndex);
+            if (lane == null) throw new RejectedExecutionException("Lane not available " + laneIndex);
+            lane.forceExecute(actor);
+        } finally {
+            laneMigrator.exitRouting(epoch);
+        }
+    }
+
+    /**
+     * runs the actor of an interned key on a lane picked by its orderingId, the runs of an actor never overlap so any
+     * lane may take a run; the orderingId is not pinned to the lane, as it is not an int orderingId of the callers
+     */
+    private void runKeyActor(final int keyOrderingId, final Runnable actor, final boolean resumed) {
+        while (true) {
+            final OrderedLane lane = getLaneIfRunning((keyOrderingId & Integer.MAX_VALUE) % laneCount);
+            if (lane == null) throw new RejectedExecutionException("Executor is already shutdown; rejected key " + keyOrderingId);
+            try {
+                if (resumed) lane.forceExecute(actor);
+                else if (laneBackpressure == null) lane.execute(actor);
+                else laneBackpressure.executeUntracked(lane, actor);
+                return;
+            } catch (RejectedExecutionException e) {
+                // a lane removed by resizeLanes meanwhile, pick one again
+                if (isShutdown() || !lane.isShutdown()) throw e;
+            }
+        }
+    }
+
+    private void routeToLane(final int orderingId, final Runnable task, final int genNextUpdateId) {
+        routeToLane(orderingId, task, genNextUpdateId, true);
+    }
+
+    private boolean routeToLane(final int orderingId, final Runnable task, final int genNextUpdateId, final boolean mayBlock) {
+        // a migration switching the lane of the orderingId waits for this routing to complete
+        final int epoch = laneMigrator.enterRouting();
+        try {
+            final int laneIndex = getLaneIndex(orderingId, genNextUpdateId);
+            if (laneMigrator.holdIfFenced(orderingId, laneIndex, task)) return true;
+            final OrderedLane lane = getExecutorService(laneIndex, orderingId, genNextUpdateId);
+            if (mayBlock || laneBackpressure == null) {
+                dispatchToLane(lane, orderingId, task);
+                return true;
+            }
+            return laneBackpressure.tryExecute(lane, orderingId, task);
+        } finally {
+            laneMigrator.exitRouting(epoch);
+        }
+    }
+
+    private void dispatchToLane(final OrderedLane lane, final int orderingId, final Runnable task) {
+        if (laneBackpressure == null) lane.execute(task);
+        else laneBackpressure.execute(lane, orderingId, task);
+    }
+
+    private int getLaneIndex(int taskOrderingId, final int genNextUpdateId) {
         if (shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Executor is already shutdown; rejected "+taskOrderingId +" ,"+genNextUpdateId);
-        final int executorIndexForOrderingId = threadPoolIndexCalculator.getResourceIndex(taskOrderingId);
+        return threadPoolIndexCalculator.getResourceIndex(taskOrderingId);
+    }
+
+    private OrderedLane getExecutorService(final int executorIndexForOrderingId, int taskOrderingId, final int genNextUpdateId) {
+        final OrderedLane executor = getOrCreateLane(executorIndexForOrderingId);
+        if (shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Already shutdown" +taskOrderingId +" ,"+genNextUpdateId);
+        return executor;
+    }
+
+    private OrderedLane getOrCreateLane(final int executorIndexForOrderingId) {
         if (singleThreadPoolExecutor.get(executorIndexForOrderingId) == null) {
-            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            final OrderedLane executor = new OrderedLane("OrderedTaskExecutor-" + System.identityHashCode(this) + "-lane-" + executorIndexForOrderingId,
+                    this::reportUncaughtError, laneCapacity, laneAssignment == LaneAssignment.LEAST_LOADED, getLaneMetrics(executorIndexForOrderingId),
+                    waitStrategy);
             if (!singleThreadPoolExecutor.compareAndSet(executorIndexForOrderingId, null, executor)) {
                 // in case an executor already set for this index we must destroy it
                 // must catch throwable so that we complete the return of exeIndex
                 //TODO: VERBOSE LEVEL LOG
-                //"EXEC INDEX " + executorIndexForOrderingId + " already USED "+taskOrderingId +" ,"+genNextUpdateId);
+                //"EXEC INDEX " + executorIndexForOrderingId + " already USED ");
                 try {
                     executor.shutdownNow();
                 } catch (Throwable ignored) {
                 }
             } else {
                 //TODO: VERBOSE LEVEL LOG
-                //"EXEC INDEX " + executorIndexForOrderingId + " SUCCESSFULLY USED "+taskOrderingId +" ,"+genNextUpdateId);
+                //"EXEC INDEX " + executorIndexForOrderingId + " SUCCESSFULLY USED ");
             }
         }
-
-        if (shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Already shutdown" +taskOrderingId +" ,"+genNextUpdateId);
         return this.singleThreadPoolExecutor.get(executorIndexForOrderingId);
     }
 
+    private TaskMetrics getLaneMetrics(final int laneIndex) {
+        final TaskMetrics metrics = laneMetrics.get(laneIndex);
+        if (metrics != null) return metrics;
+        laneMetrics.compareAndSet(laneIndex, null, new TaskMetrics());
+        return laneMetrics.get(laneIndex);
+    }
+
+    /**
+     * Snapshot of the always on metrics, per lane queue depth, completed tasks, queue wait and execution time histograms,
+     * the lane mapping size and evictions, and the hottest orderingIds estimated from a sample of the executed tasks
+     * with KEYED_ACTORS a single entry describes the pool, its queue depth counts the executing tasks as well
+     *
+     * @param topOrderingIds, maximum number of hottest orderingIds in the snapshot
+     * @return metrics of this executor
+     */
+    public OrderedTaskExecutorMetrics getMetrics(final int topOrderingIds) {
+        if (topOrderingIds < 0) throw new IllegalArgumentException("topOrderingIds can not be negative " + topOrderingIds);
+        final List<OrderedTaskExecutorMetrics.Lane> lanes = new ArrayList<>();
+        final Map<Integer, Long> hotKeys = new HashMap<>();
+        final int activeOrderingIds;
+        final long evictions;
+        if (keyedActorScheduler != null) {
+            lanes.add(new OrderedTaskExecutorMetrics.Lane(0, keyedActorScheduler.getPendingTaskCount() + keyedTasks.getPendingTaskCount(), actorMetrics.getCompletedCount(),
+                    actorMetrics.getQueueWait(), actorMetrics.getExecutionTime()));
+            actorMetrics.addHotKeys(hotKeys);
+            activeOrderingIds = keyedActorScheduler.getActorCount();
+            evictions = 0;
+        } else {
+            final int lanesNow = laneCount;
+            for (int i = 0; i < lanesNow; i++) {
+                final OrderedLane lane = singleThreadPoolExecutor.get(i);
+                final TaskMetrics metrics = laneMetrics.get(i);
+                final int depth = lane == null ? 0 : lane.getQueueDepth();
+                if (metrics == null) {
+                    lanes.add(new OrderedTaskExecutorMetrics.Lane(i, depth, 0, OrderedTaskExecutorMetrics.Latency.EMPTY, OrderedTaskExecutorMetrics.Latency.EMPTY));
+                } else {
+                    lanes.add(new OrderedTaskExecutorMetrics.Lane(i, depth, metrics.getCompletedCount(), metrics.getQueueWait(), metrics.getExecutionTime()));
+                    metrics.addHotKeys(hotKeys);
+                }
+            }
+            activeOrderingIds = threadPoolIndexCalculator.getResourceUserCount();
+            evictions = threadPoolIndexCalculator.getEvictionCount();
+        }
+        final Map<Integer, Long> hottest = new LinkedHashMap<>();
+        hotKeys.entrySet().stream()
+                .sorted(Map.Entry.<Integer, Long>comparingByValue().reversed())
+                .limit(topOrderingIds)
+                .forEachOrdered(entry -> hottest.put(entry.getKey(), entry.getValue()));
+        return new OrderedTaskExecutorMetrics(lanes, activeOrderingIds, evictions, hottest);
+    }
+
+    /**
+     * registers an {@link OrderedTaskExecutorMXBean} of this executor on the platform MBeanServer,
+     * it is unregistered by shutdown, shutdownNow or {@link #unregisterMBean()}
+     *
+     * @param name, value of the name key of the ObjectName
+     * @return the registered name, com.champsworld.concurrent:type=OrderedTaskExecutor,name=[name]
+     */
+    public ObjectName registerMBean(final String name) throws JMException {
+        if (name == null) throw new NullPointerException("name can not be null");
+        final ObjectName objectName = new ObjectName("com.champsworld.concurrent:type=OrderedTaskExecutor,name=" + ObjectName.quote(name));
+        if (!registeredMBean.compareAndSet(null, objectName)) throw new IllegalStateException("MBean is already registered " + registeredMBean.get());
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new OrderedTaskExecutorJmx(this), objectName);
+        } catch (JMException | RuntimeException e) {
+            registeredMBean.set(null);
+            throw e;
+        }
+        return objectName;
+    }
+
+    public void unregisterMBean() {
+        final ObjectName objectName = registeredMBean.getAndSet(null);
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ignored) {
+            //TODO: ERROR LOG; already unregistered by someone else
+        }
+    }
+
+    /**
+     * @return the lane, null once the executor is shutdown
+     */
+    private OrderedLane getLaneIfRunning(final int laneIndex) {
+        return isShutdown() ? null : getOrCreateLane(laneIndex);
+    }
+
+    /**
+     * @param laneIndex, index of the lane
+     * @return estimated backlog of the lane in nanos, zero if the lane is not created yet
+     */
+    private long getLaneLoad(final int laneIndex) {
+        final OrderedLane lane = singleThreadPoolExecutor.get(laneIndex);
+        return lane == null ? 0 : lane.getEstimatedBacklogNanos();
+    }
+
+    /**
+     * Submits all the tasks in one go; tasks are grouped by their lane (or by orderingId for keyed actors and bounded lanes)
+     * the lane of each orderingId is resolved once and each group is handed over as one contiguous batch,
+     * which executes its tasks in the iteration order of the specified collection
+     *
+     * @param tasks, each one must be an {@link OrderedTask} or an {@link OrderedCallable}
+     * @return futures of the tasks, in the iteration order of the specified collection
+     */
+    public List<CompletableFuture<Object>> submitAll(final Collection<? extends OrderedTaskSpec<?>> tasks) {
+        if (tasks == null) throw new NullPointerException("Unable to execute null tasks");
+        if (shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Executor is already shutdown; rejected batch of "+tasks.size());
+        if (rateLimiter != null) return submitEachAdmitted(tasks);
+        final List<CompletableFuture<Object>> futures = new ArrayList<>(tasks.size());
+        final int epoch = laneMigrator == null ? 0 : laneMigrator.enterRouting();
+        try {
+            final List<OrderedTaskSpec<?>> accepted = new ArrayList<>(tasks.size());
+            final Map<Integer, Integer> laneIndexOfOrderingId = new HashMap<>();
+            for (OrderedTaskSpec<?> task : tasks) {
+                if (task == null) throw new NullPointerException("Unable to execute null task in batch");
+                if (!(task instanceof Supplier) && !(task instanceof Callable))
+                    throw new IllegalArgumentException("Task must be an OrderedTask or an OrderedCallable " + task);
+                if (keyedActorScheduler == null)
+                    laneIndexOfOrderingId.computeIfAbsent(task.orderingId(), threadPoolIndexCalculator::getResourceIndex);
+                if (!openTasks.isEmpty()) openTasks.remove(task.orderingId());
+                accepted.add(task);
+            }
+            // batch key is the lane index, or orderingId when each batch must belong to a single orderingId
+            // a pending migration holds the tasks of its orderingId only, so lanes are not batched while one is pending
+            final boolean batchPerOrderingId = keyedActorScheduler != null || laneBackpressure != null
+                    || laneMigrator.hasPendingFences() || heldOrderingIds.hasActors();
+            // linked to hand over batches in first seen order
+            final Map<Integer, TaskBatch> batches = new LinkedHashMap<>();
+            for (OrderedTaskSpec<?> task : accepted) {
+                final int orderingId = task.orderingId();
+                final int laneIndex = keyedActorScheduler != null ? -1 : laneIndexOfOrderingId.get(orderingId);
+                final CompletableFuture<Object> future = new CompletableFuture<>();
+                batches.computeIfAbsent(batchPerOrderingId ? orderingId : laneIndex, key -> new TaskBatch(orderingId, laneIndex)).add(task, future);
+                futures.add(future);
+            }
+            for (Map.Entry<Integer, TaskBatch> entry : batches.entrySet()) {
+                final TaskBatch batch = entry.getValue();
+                try {
+                    if (keyedActorScheduler != null) {
+                        keyedActorScheduler.execute(batch.firstOrderingId, batch);
+                    } else if (batchPerOrderingId && heldOrderingIds.hasActor(batch.firstOrderingId)) {
+                        heldOrderingIds.execute(batch.firstOrderingId, batch);
+                    } else if (!batchPerOrderingId || !laneMigrator.holdIfFenced(batch.firstOrderingId, batch.laneIndex, batch)) {
+                        final OrderedLane executor = getOrCreateLane(batch.laneIndex);
+                        if (executor == null) throw new RejectedExecutionException("Already shutdown, lane " + batch.laneIndex);
+                        dispatchToLane(executor, batch.firstOrderingId, batch);
+                    }
+                } catch (Throwable t) {
+                    // other batches may already be running, so failure is reported through futures of this batch only
+                    batch.fail(t);
+                }
+            }
+        } finally {
+            if (laneMigrator != null) laneMigrator.exitRouting(epoch);
+        }
+        return futures;
+    }
+
+    /**
+     * with a rate limiter each task costs a token, so the tasks are admitted one by one, in the iteration order
+     * a task rejected by the limiter fails its own future only
+     */
+    @SuppressWarnings("unchecked")
+    private List<CompletableFuture<Object>> submitEachAdmitted(final Collection<? extends OrderedTaskSpec<?>> tasks) {
+        final List<CompletableFuture<Object>> futures = new ArrayList<>(tasks.size());
+        for (OrderedTaskSpec<?> task : tasks) {
+            if (task == null) throw new NullPointerException("Unable to execute null task in batch");
+            if (!(task instanceof Supplier) && !(task instanceof Callable))
+                throw new IllegalArgumentException("Task must be an OrderedTask or an OrderedCallable " + task);
+        }
+        for (OrderedTaskSpec<?> task : tasks) {
+            try {
+                futures.add(task instanceof Supplier ? submit((OrderedTask<Object>) task, 0) : submit((OrderedCallable<Object>) task, 0));
+            } catch (RejectedExecutionException e) {
+                final CompletableFuture<Object> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(e);
+                futures.add(rejected);
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * contiguous run of tasks handed over to a single lane, tasks are executed in the order they were added
+     * its orderingId is the one of its first task, which is the orderingId of all its tasks when batched per orderingId
+     */
+    static final class TaskBatch implements Runnable, OrderedTaskSpec<Object>, TaskMetrics.Timed {
+        private final List<OrderedTaskSpec<?>> tasks = new ArrayList<>();
+        private final List<CompletableFuture<Object>> futures = new ArrayList<>();
+        private final int firstOrderingId;
+        private final int laneIndex;
+        private final long queuedNanos = System.nanoTime();
+        /**
+         * tasks executed by run, written and read by the executing thread
+         */
+        private int executedCount = 0;
+
+        private TaskBatch(int firstOrderingId, int laneIndex) {
+            this.firstOrderingId = firstOrderingId;
+            this.laneIndex = laneIndex;
+        }
+
+        @Override
+        public int orderingId() {
+            return firstOrderingId;
+        }
+
+        @Override
+        public long queuedNanos() {
+            return queuedNanos;
+        }
+
+        @Override
+        public int taskCount() {
+            return executedCount;
+        }
+
+        private void add(OrderedTaskSpec<?> task, CompletableFuture<Object> future) {
+            tasks.add(task);
+            futures.add(future);
+        }
+
+        void fail(Throwable t) {
+            for (CompletableFuture<Object> future : futures) {
+                future.completeExceptionally(t);
+            }
+        }
+
+        @Override
+        public void run() {
+            final int size = tasks.size();
+            for (int i = 0; i < size; i++) {
+                final OrderedTaskSpec<?> task = tasks.get(i);
+                final CompletableFuture<Object> future = futures.get(i);
+                // cancelled or failed while queued, e.g. by a timed invokeAll, such a task must never run
+                if (future.isDone()) continue;
+                executedCount++;
+                try {
+                    future.complete(task instanceof Supplier ? ((Supplier<?>) task).get() : ((Callable<?>) task).call());
+                } catch (Throwable t) {
+                    OrderedFutureTask.completeThrowable(future, t);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "TaskBatch{" +
+                    "firstOrderingId=" + firstOrderingId +
+                    ", size=" + tasks.size() +
+                    '}';
+        }
+    }
+
+    /**
+     * Executes the task after all the tasks previously submitted with the same orderingId, no future is created for it
+     * failure of the task is reported to the uncaught error handler
+     *
+     * @param orderingId, the unique id identifying the ordering
+     * @param task, to execute
+     */
+    public void execute(final int orderingId, final Runnable task) {
+        if (task == null) throw new NullPointerException("Unable to execute null-" + orderingId);
+        dispatch(orderingId, task, 0);
+    }
+
+    /**
+     * variant of {@link #execute(int, Runnable)} creating no closure, the task itself carries the orderingId
+     *
+     * @param task, to execute
+     */
+    public void execute(final OrderedRunnable task) {
+        if (task == null) throw new NullPointerException("Unable to execute null");
+        execute(task.orderingId(), task);
+    }
+
+    /**
+     * Submits a task ordered by a 64 bit key instead of an int orderingId, unrelated keys never share an orderingId the way
+     * colliding identity hash codes do; the key is mapped to its own orderingId while it has a task queued or running
+     * and is not boxed; a key used again soon keeps its orderingId, mapping it allocates nothing
+     * The keys are a namespace of their own, the long key 7 is not the int orderingId 7 nor any other int orderingId;
+     * the rate limit and the per orderingId capacity apply to the int orderingIds only, the lane capacity applies to the keys too
+     *
+     * @param orderingKey, the key identifying the ordering
+     * @param task, to execute
+     * @return future of the task
+     */
+    public <T> CompletableFuture<T> submitKeyed(final long orderingKey, final Callable<T> task) {
+        if (task == null) throw new NullPointerException("Unable to execute null-" + orderingKey);
+        return submitInterned(new InternedTask<>(orderingKeys, null, orderingKey, task));
+    }
+
+    /**
+     * Like {@link #submitKeyed(long, Callable)} with a key compared by equals and hashCode, the key must be immutable
+     *
+     * @param orderingKey, the key identifying the ordering
+     * @param task, to execute
+     * @return future of the task
+     */
+    public <T> CompletableFuture<T> submitKeyed(final Object orderingKey, final Callable<T> task) {
+        if (orderingKey == null || task == null) throw new NullPointerException("Unable to execute null-" + orderingKey);
+        return submitInterned(new InternedTask<>(orderingKeys, orderingKey, 0, task));
+    }
+
+    /**
+     * Executes the task after all the tasks previously submitted with the same key, see {@link #submitKeyed(long, Callable)}
+     * failure of the task is reported to the uncaught error handler
+     *
+     * @param orderingKey, the key identifying the ordering
+     * @param task, to execute
+     */
+    public void executeKeyed(final long orderingKey, final Runnable task) {
+        if (task == null) throw new NullPointerException("Unable to execute null-" + orderingKey);
+        submitKeyed(orderingKey, reportingErrors(task));
+    }
+
+    /**
+     * Executes the task after all the tasks previously submitted with the same key, see {@link #submitKeyed(Object, Callable)}
+     * failure of the task is reported to the uncaught error handler
+     *
+     * @param orderingKey, the key identifying the ordering
+     * @param task, to execute
+     */
+    public void executeKeyed(final Object orderingKey, final Runnable task) {
+        if (task == null) throw new NullPointerException("Unable to execute null-" + orderingKey);
+        submitKeyed(orderingKey, reportingErrors(task));
+    }
+
+    /**
+     * @return number of long and Object keys having a task queued or running
+     */
+    public int getOrderingKeyCount() {
+        return orderingKeys.size();
+    }
+
+    private Callable<Object> reportingErrors(final Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                reportUncaughtError(task, t);
+            }
+            return null;
+        };
+    }
+
+    private <T> CompletableFuture<T> submitInterned(final InternedTask<T> task) {
+        if (isShutdown()) throw new RejectedExecutionException("Executor is already shutdown; rejected key");
+        final int orderingId = task.acquire();
+        // no listener, a cancelled task is skipped by its actor, the int orderingId of the same value is not touched
+        final OrderedFutureTask<T> future = new OrderedFutureTask<>(orderingId, task, false, 0, null);
+        future.whenComplete(task);
+        try {
+            keyedTasks.execute(orderingId, future);
+        } catch (Throwable t) {
+            task.releaseUnstarted();
+            throw t;
+        }
+        return future;
+    }
+
+    /**
+     * the supplier of a task submitted with a long or Object key, it is also the completion callback of its future so a
+     * keyed submission creates no other closure; the key is released exactly once, after the task ran, or when it
+     * completed before it started: cancelled, dropped, expired or rejected; a task completed before starting never calls
+     * the supplier, so it can not overlap the next orderingId of the key
+     */
+    private static final class InternedTask<T> implements Supplier<T>, BiConsumer<T, Throwable> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<InternedTask> STATE = AtomicIntegerFieldUpdater.newUpdater(InternedTask.class, "state");
+
+        private final OrderingKeys orderingKeys;
+        /**
+         * null for a long key
+         */
+        private final Object objectKey;
+        private final long longKey;
+        private final Callable<T> task;
+        private volatile int state = KEY_NEW;
+
+        private InternedTask(OrderingKeys orderingKeys, Object objectKey, long longKey, Callable<T> task) {
+            this.orderingKeys = orderingKeys;
+            this.objectKey = objectKey;
+            this.longKey = longKey;
+            this.task = task;
+        }
+
+        private int acquire() {
+            return objectKey == null ? orderingKeys.acquire(longKey) : orderingKeys.acquire(objectKey);
+        }
+
+        private void release() {
+            if (objectKey == null) orderingKeys.release(longKey);
+            else orderingKeys.release(objectKey);
+        }
+
+        private void releaseUnstarted() {
+            if (STATE.compareAndSet(this, KEY_NEW, KEY_RELEASED)) release();
+        }
+
+        @Override
+        public T get() {
+            if (!STATE.compareAndSet(this, KEY_NEW, KEY_STARTED)) return null;
+            try {
+                return task.call();
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            } finally {
+                state = KEY_RELEASED;
+                release();
+            }
+        }
+
+        @Override
+        public void accept(T result, Throwable error) {
+            releaseUnstarted();
+        }
+    }
+
+    /**
+     * Returns an {@link Executor} executing all its commands with the orderingId, for libraries accepting only an Executor
+     * the commands are handed over as they are, like {@link #execute(int, Runnable)}, without any wrapper or future
+     * the views of recently used orderingIds are cached, so repeated calls do not allocate
+     *
+     * @param orderingId, the unique id identifying the ordering
+     * @return executor of the orderingId
+     */
+    public Executor forKey(final int orderingId) {
+        final int slot = (orderingId ^ (orderingId >>> 16)) & (KEY_EXECUTOR_CACHE_SIZE - 1);
+        final OrderedKeyExecutor cached = keyExecutors.get(slot);
+        if (cached != null && cached.orderingId() == orderingId) return cached;
+        final OrderedKeyExecutor view = new OrderedKeyExecutor(this, orderingId);
+        keyExecutors.set(slot, view);
+        return view;
+    }
+
+    /**
+     * Returns an {@link ExecutorService} facade, a task implementing {@link OrderedTaskSpec} is executed with its own
+     * orderingId and any other task with the default orderingId; invokeAll submits the tasks together, batched by lane
+     * the facade owns no thread, shutting it down only stops it from accepting tasks, this executor is not shutdown
+     *
+     * @param defaultOrderingId, of the tasks not implementing OrderedTaskSpec
+     * @return a new executor service facade
+     */
+    public ExecutorService asExecutorService(final int defaultOrderingId) {
+        return new OrderedExecutorService(this, defaultOrderingId);
+    }
+
+    /**
+     * @param handler, receives failures of the tasks submitted through execute
+     */
+    public void setUncaughtErrorHandler(final OrderedTaskErrorHandler handler) {
+        if (handler == null) throw new NullPointerException("handler can not be null");
+        this.uncaughtErrorHandler = handler;
+    }
+
+    /**
+     * Caps the task rate of each orderingId, every task handed over afterwards costs a token of its orderingId
+     * applies to all the submissions, the markers of {@link #awaitQuiescence(int)} cost nothing but still wait
+     * behind the tasks held by the limiter; with a reorder buffer a rejected submission leaves a gap in the update ids
+     * the limiter is not shutdown by this executor, held tasks fail once the executor is shutdown; the bucket of an
+     * orderingId evicted from the lanes is forgotten
+     *
+     * @param limiter, applied to the following submissions, null to remove the limit
+     */
+    public void setRateLimiter(final KeyRateLimiter limiter) {
+        this.rateLimiter = limiter;
+    }
+
+    public KeyRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    private void reportUncaughtError(final Runnable task, final Throwable error) {
+        uncaughtErrorHandler.uncaughtError(task, error);
+    }
+
     public int getNextUpdateId(int orderingId){
         return threadPoolIndexCalculator.getNextUpdatedId(orderingId);
     }
 
     public <T> CompletableFuture<T> submit(OrderedTask<T> task) {
-        return submit(task, getNextUpdateId(task.orderingId()));
+        // keyed actors never evict from the allocator, generating ids for them would retain every orderingId forever
+        return submit(task, keyedActorScheduler == null ? getNextUpdateId(task.orderingId()) : 0);
+    }
+
+    /**
+     * @return the mode in use, KEYED_ACTORS if VIRTUAL_THREADS was requested on a runtime without virtual threads
+     */
+    public SchedulingMode getSchedulingMode() {
+        return schedulingMode;
+    }
+
+    /**
+     * @return true if {@link SchedulingMode#VIRTUAL_THREADS} runs on virtual threads, on Java 21 or later with the multi release jar
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    public LaneAssignment getLaneAssignment() {
+        return laneAssignment;
+    }
+
+    /**
+     * @param policy, whose count is needed
+     * @return how many times the overflow policy has been applied, zero if lanes are unbounded
+     */
+    public long getOverflowCount(OverflowPolicy policy) {
+        if (policy == null) throw new NullPointerException("policy can not be null");
+        return laneBackpressure == null ? 0 : laneBackpressure.getCount(policy);
+    }
+
+    /**
+     * Moves one orderingId from the most loaded lane to the least loaded lane, if the most loaded lane
+     * has more than twice the load of the least loaded one, at least two orderingIds and a queue to relieve
+     * the tasks of the orderingId already queued in its old lane execute first, tasks submitted meanwhile are held
+     * and handed over to the new lane after them, so the orderingId never runs two tasks concurrently or out of order
+     * does nothing for KEYED_ACTORS, which has no lanes
+     *
+     * @param choice, which orderingId of the overloaded lane is moved
+     * @return true if an orderingId is moved
+     */
+    public boolean rebalance(final KeyMigration choice) {
+        if (choice == null) throw new NullPointerException("choice can not be null");
+        if (laneMigrator == null || isShutdown()) return false;
+        int busiest = -1;
+        int idlest = -1;
+        long maxLoad = -1;
+        long minLoad = Long.MAX_VALUE;
+        final int lanes = laneCount;
+        for (int i = 0; i < lanes; i++) {
+            final long load = getLaneLoad(i);
+            if (load > maxLoad) {
+                maxLoad = load;
+                busiest = i;
+            }
+            if (load < minLoad) {
+                minLoad = load;
+                idlest = i;
+            }
+        }
+        if (busiest == idlest || maxLoad <= 2 * minLoad) return false;
+        final OrderedLane overloaded = singleThreadPoolExecutor.get(busiest);
+        if (overloaded == null || overloaded.getQueueDepth() < REBALANCE_MIN_QUEUE_DEPTH) return false;
+        // moving the only orderingId of a lane just moves the hot spot
+        final List<Integer> candidates = threadPoolIndexCalculator.getLeastRecentResourceUsers(busiest, 2);
+        if (candidates.size() < 2) return false;
+        final Integer orderingId = choice == KeyMigration.BUSIEST ? overloaded.getBusiestQueuedOrderingId(REBALANCE_SCAN_LIMIT) : candidates.get(0);
+        if (orderingId == null) return false;
+        //TODO: INFO LEVEL LOG
+        //"MIGRATING " + orderingId + " FROM LANE " + busiest + " TO " + idlest);
+        return laneMigrator.migrate(orderingId, busiest, idlest);
+    }
+
+    /**
+     * calls {@link #rebalance(KeyMigration)} periodically on a daemon thread, until shutdown or {@link #stopAutoRebalance()}
+     *
+     * @param period, between two rebalance attempts
+     * @param unit, of the period
+     * @param choice, which orderingId of an overloaded lane is moved
+     */
+    public void startAutoRebalance(final long period, final TimeUnit unit, final KeyMigration choice) {
+        if (choice == null || unit == null) throw new NullPointerException("choice and unit can not be null");
+        if (period <= 0) throw new IllegalArgumentException("period must be positive " + period);
+        if (laneMigrator == null) throw new UnsupportedOperationException("rebalance is not applicable to " + schedulingMode);
+        if (isShutdown()) throw new RejectedExecutionException("Executor is already shutdown");
+        final ScheduledExecutorService rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "OrderedTaskExecutor-" + System.identityHashCode(this) + "-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!autoRebalancer.compareAndSet(null, rebalancer)) {
+            rebalancer.shutdownNow();
+            throw new IllegalStateException("Auto rebalance is already started");
+        }
+        rebalancer.scheduleWithFixedDelay(() -> {
+            try {
+                rebalance(choice);
+            } catch (Throwable ignored) {
+                //TODO: ERROR LOG; a failed attempt must not cancel the next ones
+            }
+        }, period, period, unit);
+    }
+
+    public void stopAutoRebalance() {
+        final ScheduledExecutorService rebalancer = autoRebalancer.getAndSet(null);
+        if (rebalancer != null) rebalancer.shutdownNow();
+    }
+
+    /**
+     * Grows or shrinks the lanes live, for SINGLE_THREAD_LANES
+     * growing moves no orderingId, new orderingIds are pinned to the new lanes first as they have none
+     * shrinking moves only the orderingIds of the removed lanes, each one to the lane having fewest orderingIds,
+     * the same way as {@link #rebalance(KeyMigration)}; so no orderingId ever runs on two lanes at once or out of order
+     * a removed lane stops once the tasks queued in it before the move are executed
+     *
+     * @param newLaneCount, between 1 and MAX_SINGLE_THREAD_POOL_COUNT
+     * @return number of orderingIds moved
+     */
+    public synchronized int resizeLanes(final int newLaneCount) {
+        if (laneMigrator == null) throw new UnsupportedOperationException("resize is not applicable to " + schedulingMode);
+        if (newLaneCount <= 0 || newLaneCount > MAX_SINGLE_THREAD_POOL_COUNT)
+            throw new IllegalArgumentException("lane count must be between 1 and " + MAX_SINGLE_THREAD_POOL_COUNT + " " + newLaneCount);
+        if (isShutdown()) throw new RejectedExecutionException("Executor is already shutdown");
+        retiredLanes.removeIf(OrderedLane::isTerminated);
+        final int oldLaneCount = laneCount;
+        if (newLaneCount == oldLaneCount) return 0;
+        // from now on no orderingId is pinned or moved to a removed lane
+        threadPoolIndexCalculator.resize(newLaneCount);
+        laneCount = newLaneCount;
+        if (newLaneCount > oldLaneCount) return 0;
+        int moved = 0;
+        for (int laneIndex = newLaneCount; laneIndex < oldLaneCount; laneIndex++) {
+            while (!isShutdown()) {
+                final List<Integer> users = threadPoolIndexCalculator.getLeastRecentResourceUsers(laneIndex, Integer.MAX_VALUE);
+                if (users.isEmpty()) break;
+                int movedNow = 0;
+                for (Integer orderingId : users) {
+                    if (laneMigrator.migrate(orderingId, laneIndex, threadPoolIndexCalculator.getLeastUsedResourceIndex())) movedNow++;
+                }
+                moved += movedNow;
+                // the remaining ones are being moved by a rebalance, wait for its fence to be released
+                if (movedNow == 0) LockSupport.parkNanos(1_000_000);
+            }
+        }
+        // a producer may still hold the index of an orderingId evicted meanwhile
+        laneMigrator.awaitRoutingProducers();
+        for (int laneIndex = newLaneCount; laneIndex < oldLaneCount; laneIndex++) {
+            final OrderedLane lane = singleThreadPoolExecutor.get(laneIndex);
+            if (lane == null || !singleThreadPoolExecutor.compareAndSet(laneIndex, lane, null)) continue;
+            retiredLanes.add(lane);
+            lane.shutdown();
+        }
+        //TODO: INFO LEVEL LOG
+        //"RESIZED LANES FROM " + oldLaneCount + " TO " + newLaneCount + " MOVED " + moved);
+        return moved;
+    }
+
+    /**
+     * @return number of lanes in use, the parallelism for KEYED_ACTORS
+     */
+    public int getLaneCount() {
+        return laneCount;
+    }
+
+    /**
+     * @return number of orderingIds moved to another lane so far
+     */
+    public long getMigrationCount() {
+        return laneMigrator == null ? 0 : laneMigrator.getMigrationCount();
+    }
+
+    /**
+     * @return number of tasks waiting in the lanes, zero for KEYED_ACTORS
+     */
+    public int getQueuedTaskCount() {
+        int queued = 0;
+        for (int i = 0; i < execArrayLength; i++) {
+            final OrderedLane lane = singleThreadPoolExecutor.get(i);
+            if (lane != null) queued += lane.getQueueDepth();
+        }
+        for (OrderedLane lane : retiredLanes) queued += lane.getQueueDepth();
+        return queued;
+    }
+
+    /**
+     * Returns a future completing once all the tasks of the orderingId submitted before this call are complete
+     * a marker is queued behind them, like a task, so it costs nothing per task and O(1) per call
+     * the marker is subject to the lane policies, tasks waiting for a missing update id are not awaited
+     *
+     * @param orderingId, the unique id identifying the ordering
+     * @return future completing when the orderingId is quiescent, already complete if it has no task in flight
+     */
+    public CompletableFuture<Void> awaitQuiescence(final int orderingId) {
+        if (isShutdown()) throw new RejectedExecutionException("Executor is already shutdown, use awaitTermination " + orderingId);
+        final boolean known = keyedActorScheduler != null ? keyedActorScheduler.hasActor(orderingId)
+                : heldOrderingIds.hasActor(orderingId) || threadPoolIndexCalculator.getMappedResourceIndex(orderingId, -1) >= 0;
+        if (!known) return CompletableFuture.completedFuture(null);
+        final OrderedFutureTask<Void> marker = new OrderedFutureTask<>(orderingId, () -> null);
+        final KeyRateLimiter limiter = rateLimiter;
+        if (limiter == null) route(orderingId, marker, 0);
+        else limiter.admit(orderingId, false, mayBlock -> route(orderingId, marker, 0, mayBlock), marker::completeExceptionally);
+        return marker;
+    }
+
+    /**
+     * blocks until all the tasks are executed after shutdown, or the timeout elapses
+     *
+     * @param timeout, maximum time to wait
+     * @param unit, of the timeout
+     * @return false if the timeout elapsed before termination
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (keyedActorScheduler != null) return keyedActorScheduler.awaitTermination(deadline - System.nanoTime());
+        for (int i = 0; i < execArrayLength; i++) {
+            final OrderedLane lane = singleThreadPoolExecutor.get(i);
+            if (lane != null && !lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+        }
+        for (OrderedLane lane : retiredLanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of missing update ids skipped after the gap timeout, zero if not reordering
+     */
+    public long getSkippedUpdateIdCount() {
+        return reorderBuffer == null ? 0 : reorderBuffer.getSkippedGapCount();
+    }
+
+    /**
+     * @return number of tasks arriving after their update id was skipped, they are executed out of order
+     */
+    public long getLateUpdateIdCount() {
+        return reorderBuffer == null ? 0 : reorderBuffer.getLateArrivalCount();
     }
 
     /**
@@ -105,9 +1423,19 @@ public class OrderedTaskExecutor {
             //TODO: INFO LEVEL LOG
             //"OrderedTaskExecutor Shutdown " + System.identityHashCode(this));
             exc = new ArrayList<>();
+            stopAutoRebalance();
+            unregisterMBean();
+            if (reorderBuffer != null) reorderBuffer.shutdown();
+            if (keyedActorScheduler != null) {
+                try {
+                    keyedActorScheduler.shutdown();
+                } catch (Throwable e) {
+                    exc.add(e);
+                }
+            }
             //TODO: INFO LEVEL LOG
             for (int i = 0; i < execArrayLength; i++) {
-                final ExecutorService executor = this.singleThreadPoolExecutor.get(i);
+                final OrderedLane executor = this.singleThreadPoolExecutor.get(i);
                 if (executor != null) {
                     try {
                         if (!executor.isShutdown() && !executor.isTerminated()) executor.shutdown();
@@ -142,8 +1470,15 @@ public class OrderedTaskExecutor {
             exc = new ArrayList<>();
             // no harm in clearing again
             threadPoolIndexCalculator.clear();
+            if (keyedActorScheduler != null) {
+                try {
+                    shutList.addAll(keyedActorScheduler.shutdownNow());
+                } catch (Throwable e) {
+                    exc.add(e);
+                }
+            }
             for (int i = 0; i < execArrayLength; i++) {
-                final ExecutorService executor = this.singleThreadPoolExecutor.get(i);
+                final OrderedLane executor = this.singleThreadPoolExecutor.get(i);
                 if (executor != null) {
                     // following is done to avoid calling ths shutdownNow repeatedly on same object
                     if (this.singleThreadPoolExecutor.compareAndSet(i, executor, null)) {
@@ -155,6 +1490,21 @@ public class OrderedTaskExecutor {
                     }
                 }
             }
+            OrderedLane retired;
+            while ((retired = retiredLanes.poll()) != null) {
+                try {
+                    shutList.addAll(retired.shutdownNow());
+                } catch (Throwable e) {
+                    exc.add(e);
+                }
+            }
+            stopAutoRebalance();
+            unregisterMBean();
+            // held tasks are never queued, as their lanes are already stopped
+            if (laneMigrator != null) shutList.addAll(laneMigrator.drainHeld());
+            if (heldOrderingIds != null) shutList.addAll(heldOrderingIds.shutdownNow());
+            shutList.addAll(keyedTasks.shutdownNow());
+            if (reorderBuffer != null) shutList.addAll(reorderBuffer.shutdownNow());
         }
         return new Object[]{shutList, exc};
     }
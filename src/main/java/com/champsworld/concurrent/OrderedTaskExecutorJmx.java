@@ -0,0 +1,97 @@
+package com.champsworld.concurrent;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author agrsachin81
+ */
+final class OrderedTaskExecutorJmx implements OrderedTaskExecutorMXBean {
+
+    static final int TOP_ORDERING_IDS = 10;
+
+    private final OrderedTaskExecutor executor;
+
+    OrderedTaskExecutorJmx(OrderedTaskExecutor executor) {
+        this.executor = executor;
+    }
+
+    private OrderedTaskExecutorMetrics metrics() {
+        return executor.getMetrics(TOP_ORDERING_IDS);
+    }
+
+    @Override
+    public String getSchedulingMode() {
+        return executor.getSchedulingMode().name();
+    }
+
+    @Override
+    public int getLaneCount() {
+        return executor.getLaneCount();
+    }
+
+    @Override
+    public int[] getLaneQueueDepths() {
+        final List<OrderedTaskExecutorMetrics.Lane> lanes = metrics().getLanes();
+        final int[] depths = new int[lanes.size()];
+        for (int i = 0; i < depths.length; i++) depths[i] = lanes.get(i).getQueueDepth();
+        return depths;
+    }
+
+    @Override
+    public long[] getLaneCompletedCounts() {
+        final List<OrderedTaskExecutorMetrics.Lane> lanes = metrics().getLanes();
+        final long[] completed = new long[lanes.size()];
+        for (int i = 0; i < completed.length; i++) completed[i] = lanes.get(i).getCompletedCount();
+        return completed;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return metrics().getQueueDepth();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return metrics().getCompletedCount();
+    }
+
+    @Override
+    public int getActiveOrderingIdCount() {
+        return metrics().getActiveOrderingIdCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return metrics().getEvictionCount();
+    }
+
+    @Override
+    public long getQueueWaitMeanNanos() {
+        return metrics().getQueueWait().getMeanNanos();
+    }
+
+    @Override
+    public long getQueueWaitP99Nanos() {
+        return metrics().getQueueWait().getPercentileNanos(99);
+    }
+
+    @Override
+    public long getExecutionTimeMeanNanos() {
+        return metrics().getExecutionTime().getMeanNanos();
+    }
+
+    @Override
+    public long getExecutionTimeP99Nanos() {
+        return metrics().getExecutionTime().getPercentileNanos(99);
+    }
+
+    @Override
+    public String[] getHottestOrderingIds() {
+        final Map<Integer, Long> hottest = metrics().getHottestOrderingIds();
+        final String[] res = new String[hottest.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : hottest.entrySet()) res[i++] = entry.getKey() + "=" + entry.getValue();
+        return res;
+    }
+}
@@ -0,0 +1,38 @@
+package com.champsworld.concurrent;
+
+/**
+ * JMX view of the metrics of an {@link OrderedTaskExecutor}, registered by {@link OrderedTaskExecutor#registerMBean(String)}
+ * each attribute is read from a fresh {@link OrderedTaskExecutorMetrics} snapshot
+ * @author agrsachin81
+ */
+public interface OrderedTaskExecutorMXBean {
+
+    String getSchedulingMode();
+
+    int getLaneCount();
+
+    int[] getLaneQueueDepths();
+
+    long[] getLaneCompletedCounts();
+
+    int getQueueDepth();
+
+    long getCompletedCount();
+
+    int getActiveOrderingIdCount();
+
+    long getEvictionCount();
+
+    long getQueueWaitMeanNanos();
+
+    long getQueueWaitP99Nanos();
+
+    long getExecutionTimeMeanNanos();
+
+    long getExecutionTimeP99Nanos();
+
+    /**
+     * @return the hottest orderingIds as orderingId=estimatedTaskCount, the hottest first
+     */
+    String[] getHottestOrderingIds();
+}
@@ -0,0 +1,216 @@
+package com.champsworld.concurrent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Point in time snapshot of the metrics of an {@link OrderedTaskExecutor}, see {@link OrderedTaskExecutor#getMetrics(int)}
+ * with KEYED_ACTORS a single entry describes the shared pool of the actors
+ * @author agrsachin81
+ */
+public final class OrderedTaskExecutorMetrics {
+
+    private final List<Lane> lanes;
+    private final int activeOrderingIdCount;
+    private final long evictionCount;
+    private final Map<Integer, Long> hottestOrderingIds;
+
+    OrderedTaskExecutorMetrics(List<Lane> lanes, int activeOrderingIdCount, long evictionCount, Map<Integer, Long> hottestOrderingIds) {
+        this.lanes = Collections.unmodifiableList(lanes);
+        this.activeOrderingIdCount = activeOrderingIdCount;
+        this.evictionCount = evictionCount;
+        this.hottestOrderingIds = Collections.unmodifiableMap(hottestOrderingIds);
+    }
+
+    /**
+     * @return metrics of each lane, in lane index order
+     */
+    public List<Lane> getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return orderingIds currently mapped to a lane, or having an actor with KEYED_ACTORS
+     */
+    public int getActiveOrderingIdCount() {
+        return activeOrderingIdCount;
+    }
+
+    /**
+     * @return orderingIds evicted from the lane mapping by lru, zero with KEYED_ACTORS
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return estimated executed task count of the hottest orderingIds, the hottest first; estimated from a sample of the tasks
+     */
+    public Map<Integer, Long> getHottestOrderingIds() {
+        return hottestOrderingIds;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) depth += lane.queueDepth;
+        return depth;
+    }
+
+    public long getCompletedCount() {
+        long completed = 0;
+        for (Lane lane : lanes) completed += lane.completedCount;
+        return completed;
+    }
+
+    /**
+     * @return queue wait of all the lanes together
+     */
+    public Latency getQueueWait() {
+        Latency merged = Latency.EMPTY;
+        for (Lane lane : lanes) merged = merged.merge(lane.queueWait);
+        return merged;
+    }
+
+    /**
+     * @return execution time of all the lanes together
+     */
+    public Latency getExecutionTime() {
+        Latency merged = Latency.EMPTY;
+        for (Lane lane : lanes) merged = merged.merge(lane.executionTime);
+        return merged;
+    }
+
+    @Override
+    public String toString() {
+        return "OrderedTaskExecutorMetrics{" +
+                "lanes=" + lanes.size() +
+                ", queueDepth=" + getQueueDepth() +
+                ", completed=" + getCompletedCount() +
+                ", activeOrderingIds=" + activeOrderingIdCount +
+                ", evictions=" + evictionCount +
+                ", hottestOrderingIds=" + hottestOrderingIds +
+                '}';
+    }
+
+    public static final class Lane {
+        private final int index;
+        private final int queueDepth;
+        private final long completedCount;
+        private final Latency queueWait;
+        private final Latency executionTime;
+
+        Lane(int index, int queueDepth, long completedCount, Latency queueWait, Latency executionTime) {
+            this.index = index;
+            this.queueDepth = queueDepth;
+            this.completedCount = completedCount;
+            this.queueWait = queueWait;
+            this.executionTime = executionTime;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        /**
+         * @return time from submission to start, of the tasks submitted with a future
+         */
+        public Latency getQueueWait() {
+            return queueWait;
+        }
+
+        public Latency getExecutionTime() {
+            return executionTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Lane{" +
+                    "index=" + index +
+                    ", queueDepth=" + queueDepth +
+                    ", completed=" + completedCount +
+                    ", queueWait=" + queueWait +
+                    ", executionTime=" + executionTime +
+                    '}';
+        }
+    }
+
+    /**
+     * histogram of durations in power of two buckets, so the percentiles are upper bounds within a factor of two
+     */
+    public static final class Latency {
+        static final Latency EMPTY = new Latency(new long[TaskMetrics.LATENCY_BUCKETS], 0);
+
+        private final long[] bucketCounts;
+        private final long count;
+        private final long totalNanos;
+
+        Latency(long[] bucketCounts, long totalNanos) {
+            this.bucketCounts = bucketCounts;
+            long sum = 0;
+            for (long bucketCount : bucketCounts) sum += bucketCount;
+            this.count = sum;
+            this.totalNanos = totalNanos;
+        }
+
+        private Latency merge(Latency other) {
+            final long[] merged = Arrays.copyOf(bucketCounts, bucketCounts.length);
+            for (int i = 0; i < merged.length; i++) merged[i] += other.bucketCounts[i];
+            return new Latency(merged, totalNanos + other.totalNanos);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * @param percentile, between 0 and 100
+         * @return upper bound of the bucket holding the percentile, zero if nothing is recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("percentile must be within 0 and 100 " + percentile);
+            if (count == 0) return 0;
+            final long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                seen += bucketCounts[i];
+                if (seen >= Math.max(1, rank)) return bucketUpperBoundNanos(i);
+            }
+            return bucketUpperBoundNanos(bucketCounts.length - 1);
+        }
+
+        /**
+         * @return count of each bucket, bucket i holds durations below {@link #bucketUpperBoundNanos(int)} of i
+         */
+        public long[] getBucketCounts() {
+            return bucketCounts.clone();
+        }
+
+        public static long bucketUpperBoundNanos(int bucket) {
+            return 1L << (bucket + 6);
+        }
+
+        @Override
+        public String toString() {
+            return "Latency{" +
+                    "count=" + count +
+                    ", mean=" + getMeanNanos() +
+                    ", p50=" + getPercentileNanos(50) +
+                    ", p99=" + getPercentileNanos(99) +
+                    '}';
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * It uses a brute force approach for memory cleanup, (for Tasks/OrderingId which are no longer in use)
+ * unless created with {@link KeyLifecycle#REFERENCE_COUNTED}
  * A ThreadPool executor that ensures ordering of task, where ordering of task is needed based on an ordering Id
  * It uses singleThreadExecutor to execute all the task submitted with the same orderingId
  * so that the same orderingId will always be submitted in the same order they arrive
@@ -20,6 +21,26 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * @author agrsachin81
  */
 public class OrderedTaskExecutorRaw {
+
+    /**
+     * the reaper leaves its wait on the reference queue as soon as it is interrupted
+     */
+    private static final long REAPER_EXIT_WAIT_MILLIS = 1000;
+
+    /**
+     * decides when the orderingId to executor mapping is released
+     */
+    public enum KeyLifecycle {
+        /**
+         * released by the reaper thread once all the submitted task objects of the orderingId are garbage collected
+         */
+        GC_REAPED,
+        /**
+         * released as soon as the orderingId has no task queued or running, tracked by an in flight count per orderingId
+         */
+        REFERENCE_COUNTED
+    }
+
     private final AtomicReferenceArray<ExecutorService> singleThreadPoolExecutor;
     private final ConcurrentHashMap<Integer, Integer> orderingIdPoolIndexMap;
 
@@ -35,8 +56,10 @@ public class OrderedTaskExecutorRaw {
      * idea is to create a single entry in this map per OrderedTask object NOT per ordering Id,
      * the key are based on System.identityHashcode of the Task Object.
      * Because it may happen that implementer has overridden hashCode method
+     * identity hash codes of live tasks may collide, so each key holds the references of all the tasks having it,
+     * told apart by identity
     */
-    private final HashMap<Integer, InterWeakReference> taskWeakReferenceMap;
+    private final HashMap<Integer, List<InterWeakReference>> taskWeakReferenceMap;
     private final AtomicInteger execIdGenerator = new AtomicInteger();
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private final AtomicBoolean shutdownNow = new AtomicBoolean(false);
@@ -50,58 +73,70 @@ public class OrderedTaskExecutorRaw {
      * can not be shared outside at all
      */
     private final ReferenceQueue<OrderedCallable<?>> gcEdTaskNotificationQueue = new ReferenceQueue<>();
+    private final ExecutorEventListener eventListener;
+    private final int executorId = System.identityHashCode(this);
+    private final KeyLifecycle keyLifecycle;
+    /**
+     * used only with REFERENCE_COUNTED, the executor index and in flight count of each active orderingId
+     * both are only modified inside compute of the orderingId, so no lock is shared by different orderingIds
+     */
+    private final ConcurrentHashMap<Integer, KeyReference> keyReferences = new ConcurrentHashMap<>();
 
     public OrderedTaskExecutorRaw(){
+        this(ExecutorEventListener.NO_OP);
+    }
+
+    /**
+     * @param eventListener, receives the lifecycle events, it is called on the submitting threads
+     */
+    public OrderedTaskExecutorRaw(ExecutorEventListener eventListener){
+        this(KeyLifecycle.GC_REAPED, eventListener);
+    }
+
+    /**
+     * @param keyLifecycle, decides when the mapping of an orderingId is released
+     * @param eventListener, receives the lifecycle events, it is called on the submitting threads
+     */
+    public OrderedTaskExecutorRaw(KeyLifecycle keyLifecycle, ExecutorEventListener eventListener){
+        if(keyLifecycle ==null || eventListener ==null) throw new NullPointerException("keyLifecycle and eventListener can not be null");
+        this.keyLifecycle = keyLifecycle;
+        this.eventListener = eventListener;
         this.execArrayLength = Runtime.getRuntime().availableProcessors();
         this.singleThreadPoolExecutor = new AtomicReferenceArray<>(this.execArrayLength);
         orderingIdPoolIndexMap = new ConcurrentHashMap<>();
         taskWeakReferenceMap = new HashMap<>();
         orderingIdCount = new ConcurrentHashMap<>();
 
-        //TODO: log with Info level
-        System.out.println("OrderedTaskExecutor CREATED "+System.identityHashCode(this));
+        eventListener.executorCreated(executorId);
     }
 
     public Future<?> submit(OrderedCallable<?> task){
         if(task ==null) throw new NullPointerException("Unable to execute null");
         if(shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Already shutdown");
-        final int executorIndexForOrderingId = orderingIdPoolIndexMap.computeIfAbsent(task.orderingId(), (orderingId)->{
-            final int id = execIdGenerator.getAndIncrement();
-            final int exeIndex = id % execArrayLength;
-            //access to this is protected by computeIfAbsent
-            if (singleThreadPoolExecutor.get(exeIndex) == null) {
-                final ExecutorService executor = Executors.newSingleThreadExecutor();
-                if (!singleThreadPoolExecutor.compareAndSet(exeIndex, null, executor)) {
-                    // in case an executor already set for this index we must destroy it
-                    // must catch throwable so that we complete the return of exeIndex
-                    //TODO: VERBOSE LEVEL LOG
-                    System.out.println("EXEC INDEX " + exeIndex + " already USED for ID " + id);
-                    try {
-                        executor.shutdownNow();
-                    } catch (Throwable ignored) {
-                    }
-                } else {
-                    //TODO: VERBOSE LEVEL LOG
-                    System.out.println("EXEC INDEX " + exeIndex + " SUCCESSFULLY USED for ID " + id);
-                }
-            }
-            return exeIndex;
-        });
+        if(keyLifecycle == KeyLifecycle.REFERENCE_COUNTED) return submitReferenceCounted(task);
+        final int executorIndexForOrderingId = orderingIdPoolIndexMap.computeIfAbsent(task.orderingId(), (orderingId)-> assignExecutorIndex());
         if(shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Already shutdown");
         try {
             Future<?> result = this.singleThreadPoolExecutor.get(executorIndexForOrderingId).submit(task);
-            //following is done to avoid memory leak
-            getOrderingIdCount(task, true);
             // we need to explicitly manage threadSafety a single WeakReference for a single Task object
-            // ordered Task may or may not be immutable, so we have to use their System.identifyHashCode as their hashcode and in equals
+            // ordered Task may or may not be immutable, so we have to use their System.identifyHashCode as their hashcode and identity in equals
             synchronized (taskWeakReferenceMap) {
                 // we need to ensure foe one OrderedTask instance one is created
                 // so that the counter can be decremented and task itself is cleared
-                final int hc = System.identityHashCode(task);
-                if (!taskWeakReferenceMap.containsKey(hc)) {
+                final List<InterWeakReference> references = taskWeakReferenceMap.computeIfAbsent(System.identityHashCode(task), hc -> new ArrayList<>(1));
+                boolean registered = false;
+                for (InterWeakReference reference : references) {
+                    if (reference.get() == task) {
+                        registered = true;
+                        break;
+                    }
+                }
+                if (!registered) {
+                    // the count is decremented once per task object, when its reference is enqueued
+                    getOrderingIdCount(task, true);
                     // further we need to have a kind of notification when the task is scheduled for garbage collected
                     // inside InterWeakReference also uses System.identityCode
-                    taskWeakReferenceMap.put(hc, new InterWeakReference(task, gcEdTaskNotificationQueue));
+                    references.add(new InterWeakReference(task, gcEdTaskNotificationQueue));
                 }
             }
             startReaperThread();
@@ -115,6 +150,62 @@ public class OrderedTaskExecutorRaw {
         }
     }
 
+    private int assignExecutorIndex() {
+        final int id = execIdGenerator.getAndIncrement();
+        final int exeIndex = id % execArrayLength;
+        //access to this is protected by computeIfAbsent/compute of the orderingId
+        if (singleThreadPoolExecutor.get(exeIndex) == null) {
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            if (!singleThreadPoolExecutor.compareAndSet(exeIndex, null, executor)) {
+                // in case an executor already set for this index we must destroy it
+                // must catch throwable so that we complete the return of exeIndex
+                eventListener.laneCreated(executorId, exeIndex, id, false);
+                try {
+                    executor.shutdownNow();
+                } catch (Throwable ignored) {
+                }
+            } else {
+                eventListener.laneCreated(executorId, exeIndex, id, true);
+            }
+        }
+        return exeIndex;
+    }
+
+    /**
+     * the in flight count is increased before the task is handed over and decreased once it finished or was cancelled
+     * before starting, a new executor index may be assigned only when the count is zero, so no earlier task of the
+     * orderingId can still be queued or running on the previous executor
+     */
+    private <V> Future<V> submitReferenceCounted(OrderedCallable<V> task) {
+        final int orderingId = task.orderingId();
+        final KeyReference reference = keyReferences.compute(orderingId, (id, current) -> {
+            final KeyReference res = current == null ? new KeyReference(assignExecutorIndex()) : current;
+            res.inFlight++;
+            return res;
+        });
+        eventListener.orderingIdCount(executorId, orderingId, reference.inFlight);
+        final ReferenceCountedTask<V> futureTask = new ReferenceCountedTask<>(task);
+        try {
+            if(shutdownNow.get() || shutdown.get()) throw new RejectedExecutionException("Already shutdown");
+            this.singleThreadPoolExecutor.get(reference.executorIndex).execute(futureTask);
+        } catch (Throwable t) {
+            futureTask.release();
+            throw t;
+        }
+        return futureTask;
+    }
+
+    private void releaseKey(int orderingId) {
+        keyReferences.computeIfPresent(orderingId, (id, current) -> --current.inFlight <= 0 ? null : current);
+    }
+
+    /**
+     * @return number of orderingIds currently mapped to an executor
+     */
+    public int getMappedOrderingIdCount() {
+        return keyLifecycle == KeyLifecycle.REFERENCE_COUNTED ? keyReferences.size() : orderingIdPoolIndexMap.size();
+    }
+
     private int getOrderingIdCount(OrderedCallable<?> task, boolean increase) {
         final AtomicInteger count ;
         if(increase) {
@@ -130,8 +221,7 @@ public class OrderedTaskExecutorRaw {
             count = orderingIdCount.get(task.orderingId());
         }
         final int res = (count ==null) ? 0 : count.get();
-        // TODO: verbose log
-        System.out.println("CURRENT COUNT for ID ["+ task.orderingId() +"] is ["+ res+"]");
+        eventListener.orderingIdCount(executorId, task.orderingId(), res);
         return res;
     }
 
@@ -144,8 +234,9 @@ public class OrderedTaskExecutorRaw {
     public List<Throwable> shutdown(){
         List<Throwable> exc = Collections.emptyList();
         if(this.shutdown.compareAndSet(false, true)) {
-            //TODO: INFO LEVEL LOG
-            System.out.println("OrderedTaskExecutor Shutdown "+System.identityHashCode(this));
+            // the reaper reports its exit before the shutdown, so no event of the reaper follows the shutdown event
+            stopReaperThread();
+            eventListener.shutdown(executorId, false);
             exc = new ArrayList<>();
             //TODO: INFO LEVEL LOG
             for (int i = 0; i < execArrayLength; i++) {
@@ -161,7 +252,7 @@ public class OrderedTaskExecutorRaw {
             orderingIdPoolIndexMap.clear();
             clearWeakReferenceMap();
             orderingIdCount.clear();
-            //not calling interrupt on reaper thread; the thread will see shutdown flag and exit
+            keyReferences.clear();
         }
         return exc;
     }
@@ -176,20 +267,15 @@ public class OrderedTaskExecutorRaw {
         List<Throwable> exc = Collections.emptyList();
         if(this.shutdownNow.compareAndSet(false, true)) {
             this.shutdown.set(true);
-            //TODO: INFO LEVEL LOG
-            System.out.println("OrderedTaskExecutor ShutdownNow "+System.identityHashCode(this));
+            stopReaperThread();
+            eventListener.shutdown(executorId, true);
             shutList = new ArrayList<>();
             exc = new ArrayList<>();
             // no harm in clearing again
             orderingIdPoolIndexMap.clear();
             clearWeakReferenceMap();
             orderingIdCount.clear();
-            try {
-                if(reaperThread.get()!=null && reaperThread.get().isAlive()) reaperThread.get().interrupt();
-                // catching to making sure the next part executes
-            } catch (SecurityException ignore) {
-                //TODO: can not ignore must log this with ERROR level
-            }
+            keyReferences.clear();
             for (int i = 0; i < execArrayLength; i++) {
                 final ExecutorService executor = this.singleThreadPoolExecutor.get(i);
                 if (executor != null) {
@@ -221,8 +307,7 @@ public class OrderedTaskExecutorRaw {
         @Override
         public void run() {
             if(this.outside ==null) return;
-            //TODO: log with info level logging
-            System.out.println("OrderedTaskExecutor REAPER THREAD STARTED " + System.identityHashCode(outside));
+            outside.eventListener.reaperStarted(outside.executorId);
             try {
                 while (!outside.shutdown.get() && !outside.shutdownNow.get()) {
                     outside.checkReferenceQueue();
@@ -232,8 +317,7 @@ public class OrderedTaskExecutorRaw {
                 // thread is interrupted means exit
                 //todo log info level thread exited due to Interrupt
             }
-            //TODO: log with info level logging
-            System.out.println("OrderedTaskExecutor REAPER THREAD EXITED " + System.identityHashCode(outside));
+            outside.eventListener.reaperExited(outside.executorId);
             this.outside = null;
         }
     }
@@ -249,6 +333,24 @@ public class OrderedTaskExecutorRaw {
         }
     }
 
+    /**
+     * interrupts the reaper thread and waits for it to exit, no reaper is started afterwards
+     */
+    private void stopReaperThread() {
+        // a reaper not started yet never will be
+        if (reaperThreadStarted.compareAndSet(false, true)) return;
+        final Thread reaper = reaperThread.get();
+        if (reaper == null || reaper == Thread.currentThread()) return;
+        try {
+            reaper.interrupt();
+            reaper.join(REAPER_EXIT_WAIT_MILLIS);
+        } catch (SecurityException ignore) {
+            //TODO: can not ignore must log this with ERROR level
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /*
     Must throw Exception to let know thread it has been interrupted
      */
@@ -271,19 +373,74 @@ public class OrderedTaskExecutorRaw {
                 orderingIdPoolIndexMap.remove(orderingId);
             }
             //we must clear then the task map in either case as the taskWeakReferenceMap will have leak
-            taskWeakReferenceMap.remove(taskReference.hashCode);
+            synchronized (taskWeakReferenceMap) {
+                final List<InterWeakReference> references = taskWeakReferenceMap.get(taskReference.hashCode);
+                if (references != null && references.remove(taskReference) && references.isEmpty())
+                    taskWeakReferenceMap.remove(taskReference.hashCode);
+            }
         }
     }
 
     private void clearWeakReferenceMap(){
         //clearing the taskWeakReference map will stop adding reference to queue when they are actually collected
         // since the weakReference itself is not reachable hence it will be gced
-        try {
-            for (Map.Entry<Integer, InterWeakReference> orderedTaskWeakReferenceEntry : taskWeakReferenceMap.entrySet()) {
-                orderedTaskWeakReferenceEntry.getValue().clear();
-            }
-        } catch (Throwable ignore){}
-        taskWeakReferenceMap.clear();
+        synchronized (taskWeakReferenceMap) {
+            try {
+                for (List<InterWeakReference> references : taskWeakReferenceMap.values()) {
+                    for (InterWeakReference reference : references) reference.clear();
+                }
+            } catch (Throwable ignore){}
+            taskWeakReferenceMap.clear();
+        }
+    }
+
+    /**
+     * mutated only inside compute of its orderingId
+     */
+    private static final class KeyReference {
+        private final int executorIndex;
+        private int inFlight;
+
+        private KeyReference(int executorIndex) {
+            this.executorIndex = executorIndex;
+        }
+    }
+
+    /**
+     * releases the orderingId exactly once, after the task ran, or when it is cancelled before it started
+     * a task cancelled before starting never calls the wrapped task, so it can not overlap the next executor of the orderingId
+     */
+    private final class ReferenceCountedTask<V> extends FutureTask<V> {
+        private static final int NEW = 0, STARTED = 1, RELEASED = 2;
+        private final int orderingId;
+        private final AtomicInteger state;
+
+        private ReferenceCountedTask(OrderedCallable<V> task) {
+            this(task, new AtomicInteger(NEW));
+        }
+
+        private ReferenceCountedTask(OrderedCallable<V> task, AtomicInteger state) {
+            super(() -> {
+                if (!state.compareAndSet(NEW, STARTED)) return null;
+                try {
+                    return task.call();
+                } finally {
+                    state.set(RELEASED);
+                    releaseKey(task.orderingId());
+                }
+            });
+            this.orderingId = task.orderingId();
+            this.state = state;
+        }
+
+        @Override
+        protected void done() {
+            release();
+        }
+
+        private void release() {
+            if (state.compareAndSet(NEW, RELEASED)) releaseKey(orderingId);
+        }
     }
 
     /**
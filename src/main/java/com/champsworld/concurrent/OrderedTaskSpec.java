@@ -4,14 +4,42 @@ package com.champsworld.concurrent;
  * @author agrsachin81
  */
 public interface OrderedTaskSpec<T> {
+
+    /**
+     * priority class of bulk traffic, the default
+     */
+    int PRIORITY_NORMAL = 0;
+    /**
+     * priority class served before {@link #PRIORITY_NORMAL}
+     */
+    int PRIORITY_HIGH = 1;
+    /**
+     * priority class served before every other class, for control messages like cancel or snapshot requests
+     */
+    int PRIORITY_URGENT = 2;
+
     /**
      * the concurrencyId, Ideally the orderingId is System hashcode as it is the unique for each object in java
      * by default every task has a unique OrderingId ensuring maximum concurrent behavior
      * Should be overridden by individual subtasks with the value the System.identityHashCode of parent Task (of all subtasks)
      * to ensure no reordering happens between subtasks of the parent tasks
+     * identity hash codes are not unique, with many live objects unrelated ones collide and are serialized together;
+     * entities with a long or Object key should be submitted with {@link OrderedTaskExecutor#submitKeyed(long, java.util.concurrent.Callable)}
      * @return the unique id identifying the unique ordering for the same group of Tasks
      */
     default public int orderingId(){
         return System.identityHashCode(this);
     }
+
+    /**
+     * A lane always picks its oldest queued task of the highest priority class, so tasks of the same orderingId and the
+     * same priority class execute in submission order, while a task of a higher class overtakes the queued tasks of lower
+     * classes, of its own orderingId as well; tasks of an orderingId never execute concurrently whatever their class
+     * Out of range values are clamped. The class is ignored by KEYED_ACTORS scheduling, by submitAll batches, by conflating
+     * and batched submissions and while an orderingId is held by an asynchronous task, these keep submission order
+     * @return priority class of the task, {@link #PRIORITY_NORMAL} by default
+     */
+    default public int priority(){
+        return PRIORITY_NORMAL;
+    }
 }
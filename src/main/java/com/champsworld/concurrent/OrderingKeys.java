@@ -0,0 +1,217 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Interns long and Object ordering keys to int orderingIds, so that keys of millions of live entities do not collide
+ * like their identity hash codes do; each key in use has its own orderingId till the sequence wraps after 2^31 keys,
+ * a collision after that only serializes the two keys, it never reorders the tasks of a key
+ * the orderingIds are negative so they never collide with System.identityHashCode, the default orderingId, the executor
+ * schedules them apart from the int orderingIds of its callers anyway
+ * a key is referenced while its tasks are queued or running, at zero it stays mapped as idle so a key used again gets
+ * the same orderingId without allocating; the idle long keys of a table are forgotten before it grows, the idle Object
+ * keys once they outnumber the keys in use; a forgotten key used again gets a new orderingId, which is safe as no task
+ * of its previous orderingId is left
+ * long keys are kept in striped open addressing tables without boxing, Object keys are compared with equals
+ * @author agrsachin81
+ */
+final class OrderingKeys {
+
+    private static final int STRIPES = 64;
+    private static final int STRIPE_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(STRIPES);
+    private static final int MIN_IDLE_OBJECT_KEYS = 1024;
+
+    private final LongKeyStripe[] longKeys = new LongKeyStripe[STRIPES];
+    /**
+     * mutated only inside compute of the key, like the key references of {@link OrderedTaskExecutorRaw}
+     */
+    private final ConcurrentHashMap<Object, ObjectKeyReference> objectKeys = new ConcurrentHashMap<>();
+    private final AtomicInteger idSequence = new AtomicInteger();
+    private final AtomicInteger idleObjectKeys = new AtomicInteger();
+    private final AtomicBoolean forgettingObjectKeys = new AtomicBoolean(false);
+    // the remapping functions are created once, so acquire and release do not allocate a closure
+    private final BiFunction<Object, ObjectKeyReference, ObjectKeyReference> acquireObjectKey = (key, current) -> {
+        final ObjectKeyReference res = current == null ? new ObjectKeyReference(nextId()) : current;
+        if (res.references++ == 0 && current != null) idleObjectKeys.decrementAndGet();
+        return res;
+    };
+    private final BiFunction<Object, ObjectKeyReference, ObjectKeyReference> releaseObjectKey = (key, current) -> {
+        if (current.references > 0 && --current.references == 0) idleObjectKeys.incrementAndGet();
+        return current;
+    };
+    private final BiFunction<Object, ObjectKeyReference, ObjectKeyReference> forgetIdleObjectKey = (key, current) -> {
+        if (current.references > 0) return current;
+        idleObjectKeys.decrementAndGet();
+        return null;
+    };
+
+    OrderingKeys() {
+        for (int i = 0; i < STRIPES; i++) longKeys[i] = new LongKeyStripe();
+    }
+
+    /**
+     * @param key, the ordering key
+     * @return orderingId of the key, the key is referenced till {@link #release(long)}
+     */
+    int acquire(final long key) {
+        final long hash = mix(key);
+        return longKeys[(int) (hash >>> STRIPE_SHIFT)].acquire(key, hash);
+    }
+
+    /**
+     * @param key, acquired earlier
+     */
+    void release(final long key) {
+        final long hash = mix(key);
+        longKeys[(int) (hash >>> STRIPE_SHIFT)].release(key, hash);
+    }
+
+    /**
+     * @param key, the ordering key, compared with equals
+     * @return orderingId of the key, the key is referenced till {@link #release(Object)}
+     */
+    int acquire(final Object key) {
+        return objectKeys.compute(key, acquireObjectKey).orderingId;
+    }
+
+    /**
+     * @param key, acquired earlier
+     */
+    void release(final Object key) {
+        objectKeys.computeIfPresent(key, releaseObjectKey);
+        final int idle = idleObjectKeys.get();
+        if (idle > MIN_IDLE_OBJECT_KEYS && idle > objectKeys.size() - idle) forgetIdleObjectKeys();
+    }
+
+    /**
+     * each sweep forgets at least half of the mapped keys, so its cost is spread over the releases which made them idle
+     */
+    private void forgetIdleObjectKeys() {
+        if (!forgettingObjectKeys.compareAndSet(false, true)) return;
+        try {
+            // checked again inside the compute of each key, a key acquired meanwhile stays
+            for (Object key : objectKeys.keySet()) objectKeys.computeIfPresent(key, forgetIdleObjectKey);
+        } finally {
+            forgettingObjectKeys.set(false);
+        }
+    }
+
+    /**
+     * @return number of keys having a task queued or running, idle keys still mapped are not counted
+     */
+    int size() {
+        int size = Math.max(0, objectKeys.size() - idleObjectKeys.get());
+        for (LongKeyStripe stripe : longKeys) size += stripe.size();
+        return size;
+    }
+
+    private int nextId() {
+        return Integer.MIN_VALUE | (idSequence.getAndIncrement() & Integer.MAX_VALUE);
+    }
+
+    /**
+     * finalizer of murmur3, spreads the bits of sequential keys over the stripes and the slots
+     */
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    private static final class ObjectKeyReference {
+        private final int orderingId;
+        private int references;
+
+        private ObjectKeyReference(int orderingId) {
+            this.orderingId = orderingId;
+        }
+    }
+
+    /**
+     * linear probing table of long key to orderingId and reference count, an orderingId of zero marks a free slot as the
+     * orderingIds are negative; keys are never removed one by one, the idle ones are left out when the table is rebuilt
+     * for a new key, so no tombstone is ever left and the table is sized by the keys in use
+     */
+    private final class LongKeyStripe {
+        private static final int MIN_CAPACITY = 16;
+
+        private long[] keys = new long[MIN_CAPACITY];
+        private int[] orderingIds = new int[MIN_CAPACITY];
+        private int[] references = new int[MIN_CAPACITY];
+        /**
+         * mapped keys, idle included
+         */
+        private int size;
+        private int idle;
+
+        synchronized int acquire(final long key, final long hash) {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                if (references[slot]++ == 0) idle--;
+                return orderingIds[slot];
+            }
+            if ((size + 1) * 2 > keys.length) rehash(idle > 0 ? capacityFor(size - idle + 1) : keys.length * 2);
+            slot = (int) hash & (keys.length - 1);
+            while (orderingIds[slot] != 0) slot = (slot + 1) & (keys.length - 1);
+            final int orderingId = nextId();
+            keys[slot] = key;
+            orderingIds[slot] = orderingId;
+            references[slot] = 1;
+            size++;
+            return orderingId;
+        }
+
+        synchronized void release(final long key, final long hash) {
+            final int slot = find(key, hash);
+            if (slot >= 0 && references[slot] > 0 && --references[slot] == 0) idle++;
+        }
+
+        synchronized int size() {
+            return size - idle;
+        }
+
+        /**
+         * @return capacity holding the keys at a quarter load, so they can grow before the next rebuild
+         */
+        private int capacityFor(final int keysInUse) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < keysInUse * 4) capacity <<= 1;
+            return capacity;
+        }
+
+        private int find(final long key, final long hash) {
+            final int mask = keys.length - 1;
+            for (int slot = (int) hash & mask; orderingIds[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) return slot;
+            }
+            return -1;
+        }
+
+        /**
+         * moves the keys in use to a table of the capacity, the idle keys are forgotten
+         */
+        private void rehash(final int capacity) {
+            final long[] oldKeys = keys;
+            final int[] oldOrderingIds = orderingIds;
+            final int[] oldReferences = references;
+            keys = new long[capacity];
+            orderingIds = new int[capacity];
+            references = new int[capacity];
+            size = 0;
+            idle = 0;
+            final int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldOrderingIds[i] == 0 || oldReferences[i] == 0) continue;
+                int slot = (int) mix(oldKeys[i]) & mask;
+                while (orderingIds[slot] != 0) slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                orderingIds[slot] = oldOrderingIds[i];
+                references[slot] = oldReferences[i];
+                size++;
+            }
+        }
+    }
+}
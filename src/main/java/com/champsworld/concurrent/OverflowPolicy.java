@@ -0,0 +1,26 @@
+package com.champsworld.concurrent;
+
+/**
+ * Decides what happens to a submission when its lane (or its orderingId) has reached the configured capacity
+ * per orderingId ordering is never violated by any policy, when a policy can not be applied safely it falls back to BLOCK
+ * @author agrsachin81
+ */
+public enum OverflowPolicy {
+    /**
+     * the producer waits until there is space
+     */
+    BLOCK,
+    /**
+     * RejectedExecutionException is thrown to the producer
+     */
+    REJECT,
+    /**
+     * the producer executes the task itself, only if no task of the same orderingId is queued or executing
+     */
+    CALLER_RUNS,
+    /**
+     * the oldest queued (not started) task of the same orderingId is discarded to make space,
+     * its future completes with CancellationException
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,22 @@
+package com.champsworld.concurrent;
+
+/**
+ * Decides what happens to a submission when its orderingId has no token left in its {@link KeyRateLimiter}
+ * per orderingId ordering is never violated by any policy
+ * @author agrsachin81
+ */
+public enum RateLimitPolicy {
+    /**
+     * RejectedExecutionException is thrown to the producer
+     */
+    REJECT,
+    /**
+     * the producer waits until the orderingId earns a token
+     */
+    DELAY,
+    /**
+     * the submission is accepted and held by the limiter, it is handed over to the executor once the orderingId
+     * earns a token, behind the other held submissions of the orderingId; the producer never waits
+     */
+    QUEUE
+}
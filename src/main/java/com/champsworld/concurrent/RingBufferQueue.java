@@ -0,0 +1,309 @@
+package com.champsworld.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue over a preallocated power of two ring of reusable slots, in the style of the Disruptor
+ * each slot carries a sequence telling whether it is free for the producer of a position or published for the consumer,
+ * so a producer claims its slot with a single CAS of the tail and no node is allocated per element
+ * waiting is done by spinning, yielding or parking as per the {@link WaitStrategy}, a producer unparks the consumer
+ * only if it is parked; a removed element is replaced by a tombstone which the consumer skips, so size may count
+ * removed elements until they are reached
+ * @param <E> type of the elements
+ * @author agrsachin81
+ */
+final class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private static final Object TOMBSTONE = new Object();
+    private static final int SPIN_TRIES = 100;
+    private static final long PRODUCER_PARK_NANOS = 50_000;
+
+    private final int mask;
+    private final AtomicReferenceArray<Object> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+    private final WaitStrategy waitStrategy;
+    /**
+     * System.nanoTime when the element of each slot was published, null when not timed
+     * written before the sequence publishes the slot and read before the sequence frees it
+     */
+    private final long[] queuedNanos;
+    /**
+     * queued time of the element last returned by poll, meaningful to a single consumer only
+     */
+    private long polledQueuedNanos;
+    /**
+     * the parked consumer, null when none is parked
+     */
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param capacity, rounded up to a power of two
+     * @param waitStrategy, of the consumer and of the producers of a full ring
+     */
+    RingBufferQueue(final int capacity, final WaitStrategy waitStrategy) {
+        this(capacity, waitStrategy, false);
+    }
+
+    /**
+     * @param capacity, rounded up to a power of two
+     * @param waitStrategy, of the consumer and of the producers of a full ring
+     * @param timed, stamp each element with the time it is published, see {@link #polledQueuedNanos()}
+     */
+    RingBufferQueue(final int capacity, final WaitStrategy waitStrategy, final boolean timed) {
+        if (capacity <= 0 || capacity > (1 << 30)) throw new IllegalArgumentException("capacity must be between 1 and 2^30 " + capacity);
+        if (waitStrategy == null) throw new NullPointerException("waitStrategy can not be null");
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        this.waitStrategy = waitStrategy;
+        this.queuedNanos = timed ? new long[size] : null;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public boolean offer(final E e) {
+        if (e == null) throw new NullPointerException("Unable to queue null");
+        long pos = tail.get();
+        while (true) {
+            final long available = sequences.get((int) pos & mask) - pos;
+            if (available == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if (available < 0) {
+                // the slot of this position is not yet consumed, full
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        final int index = (int) pos & mask;
+        elements.set(index, e);
+        if (queuedNanos != null) queuedNanos[index] = System.nanoTime();
+        // publishing is a volatile write, so the consumer parking after its own volatile write can not be missed
+        sequences.set(index, pos + 1);
+        final Thread consumer = parkedConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+        return true;
+    }
+
+    @Override
+    public void put(final E e) throws InterruptedException {
+        int tries = 0;
+        while (!offer(e)) {
+            tries = waitForSlot(tries);
+        }
+    }
+
+    @Override
+    public boolean offer(final E e, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        while (!offer(e)) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            tries = waitForSlot(tries);
+        }
+        return true;
+    }
+
+    private int waitForSlot(final int tries) throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES) return tries + 1;
+        if (waitStrategy == WaitStrategy.YIELD) Thread.yield();
+        else LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+        return tries;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long pos = head.get();
+            final Object e;
+            while (true) {
+                final int index = (int) pos & mask;
+                final long published = sequences.get(index) - (pos + 1);
+                if (published == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        e = elements.getAndSet(index, null);
+                        if (queuedNanos != null) polledQueuedNanos = queuedNanos[index];
+                        // frees the slot for the producer of the position one lap later
+                        sequences.set(index, pos + mask + 1);
+                        break;
+                    }
+                    pos = head.get();
+                } else if (published < 0) {
+                    return null;
+                } else {
+                    pos = head.get();
+                }
+            }
+            if (e != TOMBSTONE) return (E) e;
+        }
+    }
+
+    /**
+     * @return System.nanoTime when the element last returned to this consumer by poll or take was published,
+     * zero if the ring is not timed; valid only when the ring has a single consumer
+     */
+    long polledQueuedNanos() {
+        return polledQueuedNanos;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        int tries = 0;
+        E e;
+        while ((e = poll()) == null) {
+            tries = awaitElement(tries, Long.MAX_VALUE);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (System.nanoTime() - deadline >= 0) return null;
+            tries = awaitElement(tries, deadline);
+        }
+        return e;
+    }
+
+    private int awaitElement(final int tries, final long deadline) throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES) return tries + 1;
+        if (waitStrategy == WaitStrategy.YIELD) {
+            Thread.yield();
+            return tries;
+        }
+        parkedConsumer = Thread.currentThread();
+        try {
+            // an element published before parkedConsumer was visible is seen here, a later one unparks
+            if (isEmptyAtHead()) {
+                if (deadline == Long.MAX_VALUE) LockSupport.park(this);
+                else LockSupport.parkNanos(this, deadline - System.nanoTime());
+            }
+        } finally {
+            parkedConsumer = null;
+        }
+        return tries;
+    }
+
+    private boolean isEmptyAtHead() {
+        final long pos = head.get();
+        return sequences.get((int) pos & mask) - (pos + 1) < 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final long end = tail.get();
+        for (long pos = head.get(); pos < end; pos++) {
+            final Object e = published(pos);
+            if (e != null && e != TOMBSTONE) return (E) e;
+        }
+        return null;
+    }
+
+    /**
+     * @return the element of the position if it is still published, else null
+     */
+    private Object published(final long pos) {
+        final int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) return null;
+        return elements.get(index);
+    }
+
+    /**
+     * replaces the first occurrence by a tombstone, the slot is freed when the consumer reaches it
+     */
+    @Override
+    public boolean remove(final Object o) {
+        if (o == null) return false;
+        final long end = tail.get();
+        for (long pos = head.get(); pos < end; pos++) {
+            final int index = (int) pos & mask;
+            if (sequences.get(index) == pos + 1 && elements.compareAndSet(index, o, TOMBSTONE)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        final long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return mask + 1 - size();
+    }
+
+    /**
+     * weakly consistent, the elements published when it reaches them; Iterator.remove is not supported
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<E> iterator() {
+        final List<E> snapshot = new ArrayList<>();
+        final long end = tail.get();
+        for (long pos = head.get(); pos < end; pos++) {
+            final Object e = published(pos);
+            if (e != null && e != TOMBSTONE) snapshot.add((E) e);
+        }
+        final Iterator<E> iterator = snapshot.iterator();
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return iterator.next();
+            }
+        };
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c, final int maxElements) {
+        if (c == null) throw new NullPointerException("collection can not be null");
+        if (c == this) throw new IllegalArgumentException("Unable to drain to itself");
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,390 @@
+package com.champsworld.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands over the tasks of each orderingId strictly in the order of their update id (1, 2, 3 ...),
+ * whatever the order they arrive in from concurrent producers
+ * an arrival ahead of the expected id is buffered in a per orderingId ring window, which is allocated only when needed
+ * when the expected id does not arrive within the gap timeout it is skipped and the buffered tasks are handed over
+ * an id arriving after it was skipped is handed over immediately and counted as late
+ * the tasks are handed over outside the window lock by a single thread at a time, the others only queue theirs behind;
+ * the timer thread never waits for a full lane, a task refused by a full lane is held again in front and retried shortly
+ * @author agrsachin81
+ */
+class SequenceReorderBuffer {
+
+    private static final int INITIAL_WINDOW = 8;
+    /**
+     * delay before a task refused by a full lane is handed over again
+     */
+    private static final long FULL_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * hands over a task in sequence, to the lane or actor of the orderingId
+     */
+    interface SequencedDispatcher {
+        /**
+         * @param mayBlock, false on the timer thread, a full lane or orderingId must not be waited for then
+         * @return false if not handed over as the lane or the orderingId is full, only when mayBlock is false
+         */
+        boolean dispatch(int orderingId, Runnable task, boolean mayBlock);
+    }
+
+    private final ConcurrentHashMap<Integer, KeyWindow> windows = new ConcurrentHashMap<>();
+    /**
+     * orderingIds whose update id sequence restarted, their windows are removed by the next producer
+     */
+    private final ConcurrentLinkedQueue<Integer> restarted = new ConcurrentLinkedQueue<>();
+    private final int maxWindow;
+    private final long gapTimeoutNanos;
+    private final SequencedDispatcher dispatcher;
+    private final OrderedTaskErrorHandler errorHandler;
+    /**
+     * checks the gaps and retries the tasks refused by a full lane
+     */
+    private final ScheduledExecutorService timer;
+    private final LongAdder skippedGaps = new LongAdder();
+    private final LongAdder lateArrivals = new LongAdder();
+
+    /**
+     * @param maxWindow, maximum distance of a buffered id from the expected id, and of the tasks waiting for the hand over
+     * @param gapTimeoutNanos, how long a missing id is waited for; Long.MAX_VALUE to wait forever
+     * @param dispatcher, receives the tasks in sequence
+     * @param errorHandler, receives buffered tasks without a future which could not be handed over
+     */
+    SequenceReorderBuffer(final int maxWindow, final long gapTimeoutNanos, final SequencedDispatcher dispatcher, final OrderedTaskErrorHandler errorHandler) {
+        if (maxWindow <= 0) throw new IllegalArgumentException("maxWindow must be positive " + maxWindow);
+        if (gapTimeoutNanos <= 0) throw new IllegalArgumentException("gapTimeout must be positive " + gapTimeoutNanos);
+        this.maxWindow = maxWindow;
+        this.gapTimeoutNanos = gapTimeoutNanos;
+        this.dispatcher = dispatcher;
+        this.errorHandler = errorHandler;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "OrderedTaskExecutor-" + System.identityHashCode(this) + "-reorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param orderingId, of the task
+     * @param sequence, update id of the task, starting at 1 for each orderingId
+     * @param task, to hand over
+     * @param mayBlock, false when a full lane must not be waited for, the task is then held and retried by the timer
+     * @throws RejectedExecutionException if the sequence is too far ahead of the expected one
+     */
+    void submit(final int orderingId, final int sequence, final Runnable task, final boolean mayBlock) {
+        removeRestartedWindows(mayBlock);
+        while (true) {
+            final KeyWindow window = windows.computeIfAbsent(orderingId, KeyWindow::new);
+            synchronized (window) {
+                if (mayBlock) window.awaitHandOver();
+                if (window.removed) continue;
+                if (!window.accept(sequence, task)) return;
+            }
+            handOver(window, task, mayBlock);
+            return;
+        }
+    }
+
+    /**
+     * the update id sequence of the orderingId restarts from 1; must not block, called while the allocator is locked
+     *
+     * @param orderingId, no longer mapped
+     */
+    void restart(final int orderingId) {
+        restarted.offer(orderingId);
+    }
+
+    private void removeRestartedWindows(final boolean mayBlock) {
+        Integer orderingId;
+        while ((orderingId = restarted.poll()) != null) {
+            final KeyWindow window = windows.remove(orderingId);
+            if (window == null) continue;
+            final boolean release;
+            synchronized (window) {
+                window.removed = true;
+                // nothing more will arrive for the old sequence
+                window.skipGaps();
+                release = window.claimRelease();
+            }
+            if (release) handOver(window, null, mayBlock);
+        }
+    }
+
+    long getSkippedGapCount() {
+        return skippedGaps.sum();
+    }
+
+    long getLateArrivalCount() {
+        return lateArrivals.sum();
+    }
+
+    /**
+     * tasks still waiting for a missing update id are discarded, they can not be handed over to a shutdown executor
+     */
+    void shutdown() {
+        final RejectedExecutionException reason = new RejectedExecutionException("Shutdown while waiting for a missing update id");
+        for (Runnable task : shutdownNow()) LaneBackpressure.discardTask(task, reason, errorHandler);
+    }
+
+    /**
+     * @return buffered tasks, they will never be handed over
+     */
+    List<Runnable> shutdownNow() {
+        timer.shutdownNow();
+        final List<Runnable> notExecuted = new ArrayList<>();
+        for (KeyWindow window : windows.values()) {
+            synchronized (window) {
+                window.removed = true;
+                window.drainTo(notExecuted);
+                window.notifyAll();
+            }
+        }
+        windows.clear();
+        return notExecuted;
+    }
+
+    /**
+     * hands over the ready tasks of the window outside its lock, the caller must have claimed the release
+     * a task refused by a full lane is held again in front and retried by the timer
+     *
+     * @param producerTask, whose failure is thrown to the caller, null on the timer thread
+     */
+    private void handOver(final KeyWindow window, final Runnable producerTask, final boolean mayBlock) {
+        RuntimeException producerFailure = null;
+        while (true) {
+            final Runnable next;
+            synchronized (window) {
+                next = window.ready.poll();
+                if (next == null) {
+                    window.releasing = false;
+                    break;
+                }
+                if (window.waiters > 0) window.notifyAll();
+            }
+            boolean handedOver = true;
+            try {
+                handedOver = dispatch(window.orderingId, next, producerTask, mayBlock);
+            } catch (RuntimeException e) {
+                producerFailure = e;
+            }
+            if (!handedOver) {
+                synchronized (window) {
+                    window.ready.addFirst(next);
+                    window.releasing = false;
+                    window.notifyAll();
+                }
+                scheduleRetry(window);
+                break;
+            }
+        }
+        if (producerFailure != null) throw producerFailure;
+    }
+
+    private void scheduleRetry(final KeyWindow window) {
+        try {
+            timer.schedule(() -> retry(window), FULL_RETRY_NANOS, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutdown meanwhile, the held tasks are drained by shutdownNow
+        }
+    }
+
+    private void retry(final KeyWindow window) {
+        synchronized (window) {
+            if (!window.claimRelease()) return;
+        }
+        handOver(window, null, false);
+    }
+
+    private boolean dispatch(final int orderingId, final Runnable task, final Runnable producerTask, final boolean mayBlock) {
+        try {
+            return dispatcher.dispatch(orderingId, task, mayBlock);
+        } catch (RuntimeException | Error e) {
+            // the producer gets its own failure, a buffered task has no producer waiting anymore
+            if (task == producerTask) throw e;
+            LaneBackpressure.discardTask(task, e, errorHandler);
+            return true;
+        }
+    }
+
+    /**
+     * guarded by this
+     */
+    private final class KeyWindow {
+        private final int orderingId;
+        private int expected = 1;
+        /**
+         * ring of buffered tasks, slot of the expected id is head; null while nothing is buffered
+         */
+        private Runnable[] slots;
+        private int head = 0;
+        private int buffered = 0;
+        /**
+         * tasks in sequence, waiting to be handed over
+         */
+        private final ArrayDeque<Runnable> ready = new ArrayDeque<>();
+        /**
+         * true while a thread hands over the ready tasks outside the lock
+         */
+        private boolean releasing = false;
+        /**
+         * producers waiting for the ready tasks to be handed over
+         */
+        private int waiters = 0;
+        private boolean gapCheckScheduled = false;
+        private boolean removed = false;
+
+        private KeyWindow(int orderingId) {
+            this.orderingId = orderingId;
+        }
+
+        /**
+         * @return true if the caller must hand over the ready tasks, as no other thread is doing it
+         */
+        private boolean accept(final int sequence, final Runnable task) {
+            if (sequence < expected) {
+                lateArrivals.increment();
+                ready.add(task);
+                return claimRelease();
+            }
+            final int offset = sequence - expected;
+            if (offset == 0 && buffered == 0) {
+                // in order, the common case
+                expected++;
+                ready.add(task);
+                return claimRelease();
+            }
+            if (offset >= maxWindow)
+                throw new RejectedExecutionException("Update id " + sequence + " of " + orderingId + " is beyond the reorder window, expected " + expected);
+            ensureCapacity(offset + 1);
+            final int slot = (head + offset) & (slots.length - 1);
+            if (slots[slot] != null) throw new IllegalArgumentException("Duplicate update id " + sequence + " of " + orderingId);
+            slots[slot] = task;
+            buffered++;
+            drain();
+            if (buffered > 0) scheduleGapCheck();
+            return claimRelease();
+        }
+
+        private boolean claimRelease() {
+            if (releasing || ready.isEmpty()) return false;
+            releasing = true;
+            return true;
+        }
+
+        /**
+         * a producer which may block waits while another thread hands over a full window of ready tasks
+         */
+        private void awaitHandOver() {
+            if (!releasing || ready.size() < maxWindow) return;
+            waiters++;
+            try {
+                while (releasing && ready.size() >= maxWindow && !removed) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the reorder buffer of " + orderingId, e);
+            } finally {
+                waiters--;
+            }
+        }
+
+        private void ensureCapacity(final int needed) {
+            if (slots == null) {
+                slots = new Runnable[Math.max(INITIAL_WINDOW, Integer.highestOneBit(needed - 1) << 1)];
+                head = 0;
+                return;
+            }
+            if (needed <= slots.length) return;
+            final Runnable[] grown = new Runnable[Integer.highestOneBit(needed - 1) << 1];
+            for (int i = 0; i < slots.length; i++) grown[i] = slots[(head + i) & (slots.length - 1)];
+            slots = grown;
+            head = 0;
+        }
+
+        /**
+         * moves the buffered tasks now in sequence to the ready ones
+         */
+        private void drain() {
+            while (buffered > 0 && slots[head] != null) {
+                ready.add(slots[head]);
+                slots[head] = null;
+                head = (head + 1) & (slots.length - 1);
+                expected++;
+                buffered--;
+            }
+            if (buffered == 0) {
+                // in order arrivals never touch the ring, it is allocated again on the next gap
+                slots = null;
+                head = 0;
+            }
+        }
+
+        private void skipGaps() {
+            while (buffered > 0) {
+                while (slots[head] == null) {
+                    head = (head + 1) & (slots.length - 1);
+                    expected++;
+                    skippedGaps.increment();
+                }
+                drain();
+            }
+        }
+
+        private void scheduleGapCheck() {
+            if (gapTimeoutNanos == Long.MAX_VALUE || gapCheckScheduled) return;
+            gapCheckScheduled = true;
+            final int missing = expected;
+            try {
+                timer.schedule(() -> onGapTimeout(missing), gapTimeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutdown, buffered tasks are handed over or drained by shutdownNow
+                gapCheckScheduled = false;
+            }
+        }
+
+        /**
+         * runs on the timer thread, which hands over the tasks after the skipped id without waiting for a full lane
+         */
+        private void onGapTimeout(final int missing) {
+            synchronized (this) {
+                gapCheckScheduled = false;
+                if (removed || buffered == 0) return;
+                if (expected == missing) {
+                    //TODO: WARN LEVEL LOG
+                    //"SKIPPING UPDATE ID " + missing + " OF " + orderingId);
+                    while (slots[head] == null) {
+                        head = (head + 1) & (slots.length - 1);
+                        expected++;
+                        skippedGaps.increment();
+                    }
+                    drain();
+                }
+                if (buffered > 0) scheduleGapCheck();
+                if (!claimRelease()) return;
+            }
+            handOver(this, null, false);
+        }
+
+        private void drainTo(final List<Runnable> notExecuted) {
+            notExecuted.addAll(ready);
+            ready.clear();
+            if (slots == null) return;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null) notExecuted.add(slots[i]);
+                slots[i] = null;
+            }
+            buffered = 0;
+        }
+    }
+}
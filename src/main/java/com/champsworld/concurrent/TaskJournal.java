@@ -0,0 +1,458 @@
+package com.champsworld.concurrent;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write ahead journal of submitted tasks, kept in memory mapped segment files of a fixed size
+ * a record is written into the mapping under the journal lock, so it reaches the page cache at once and survives the death of the JVM
+ * a single committer thread forces the segments to the disk once for all the records appended since its previous force
+ * (group commit) and only then hands the records over, in append order, on a handover thread of its own so a slow
+ * receiver never delays the next commit; no record is ever forced on its own
+ * completion records are appended without waiting, they are forced by the next commit; a completion lost by a crash of the
+ * machine makes its task replay again, so tasks are executed at least once
+ * a segment is deleted once it and all the older segments have no pending task
+ * Record: length of body, crc32 of body, body = type, sequence, orderingId, payload; the length is written last
+ * so a record torn by a crash never reads as valid, the recovery of a segment stops at the first invalid record
+ * a recovered record which can not be replayed is moved to a quarantine file of its own instead of being dropped
+ * @author agrsachin81
+ */
+class TaskJournal {
+
+    private static final byte SUBMITTED = 1;
+    private static final byte COMPLETED = 2;
+    private static final int HEADER = 8;
+    private static final int BODY_HEADER = 1 + 8 + 4;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".journal";
+    private static final String QUARANTINE_PREFIX = "quarantine-";
+
+    /**
+     * a journaled task, pending until marked completed
+     */
+    static final class Entry {
+        private final long sequence;
+        private final int orderingId;
+        private final Segment segment;
+        private final BiConsumer<Entry, Throwable> onCommitted;
+        /**
+         * guarded by the journal
+         */
+        private boolean completed = false;
+
+        private Entry(long sequence, int orderingId, Segment segment, BiConsumer<Entry, Throwable> onCommitted) {
+            this.sequence = sequence;
+            this.orderingId = orderingId;
+            this.segment = segment;
+            this.onCommitted = onCommitted;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        int getOrderingId() {
+            return orderingId;
+        }
+    }
+
+    /**
+     * a submitted task found without its completion record
+     */
+    static final class RecoveredRecord {
+        private final long sequence;
+        private final int orderingId;
+        private final byte[] payload;
+
+        private RecoveredRecord(long sequence, int orderingId, byte[] payload) {
+            this.sequence = sequence;
+            this.orderingId = orderingId;
+            this.payload = payload;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        int getOrderingId() {
+            return orderingId;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    /**
+     * oldest first, guarded by this
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private Segment current;
+    private long nextSegmentIndex;
+    private long nextSequence;
+    private int pending = 0;
+    /**
+     * appended since the last commit, guarded by this
+     */
+    private List<Entry> uncommitted = new ArrayList<>();
+    /**
+     * rolled segments not forced since their last append, guarded by this
+     */
+    private final List<Segment> unforced = new ArrayList<>();
+    private List<Runnable> afterNextCommit = new ArrayList<>();
+    private boolean closed = false;
+    private final List<RecoveredRecord> recovered;
+    private final List<Path> recoveredFiles;
+    private final LongAdder commits = new LongAdder();
+    private final Thread committer;
+    /**
+     * hands over the committed records in commit order
+     */
+    private final ExecutorService handover;
+
+    /**
+     * recovers the pending tasks of the segments already present in the directory, then starts a new segment
+     *
+     * @param directory, of the segment files, created if needed
+     * @param segmentSize, size of each segment file in bytes, a record must fit in a segment
+     */
+    TaskJournal(final Path directory, final int segmentSize) throws IOException {
+        if (segmentSize < HEADER + BODY_HEADER) throw new IllegalArgumentException("segmentSize is too small " + segmentSize);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) files.add(file);
+        }
+        // zero padded indexes, so the name order is the append order
+        Collections.sort(files);
+        final TreeMap<Long, RecoveredRecord> found = new TreeMap<>();
+        long maxSequence = 0;
+        long maxIndex = -1;
+        for (Path file : files) {
+            maxIndex = Math.max(maxIndex, segmentIndex(file));
+            maxSequence = Math.max(maxSequence, readSegment(file, found));
+        }
+        this.recovered = Collections.unmodifiableList(new ArrayList<>(found.values()));
+        this.recoveredFiles = files;
+        this.nextSequence = maxSequence + 1;
+        this.nextSegmentIndex = maxIndex + 1;
+        this.current = openSegment();
+        this.handover = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "OrderedTaskExecutor-" + System.identityHashCode(this) + "-journal-handover");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.committer = new Thread(this::commitLoop, "OrderedTaskExecutor-" + System.identityHashCode(this) + "-journal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    private static long segmentIndex(final Path file) {
+        final String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * @return highest sequence found in the segment
+     */
+    private static long readSegment(final Path file, final TreeMap<Long, RecoveredRecord> found) throws IOException {
+        long maxSequence = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final CRC32 crc = new CRC32();
+            int position = 0;
+            while (position + HEADER + BODY_HEADER <= buffer.limit()) {
+                final int length = buffer.getInt(position);
+                if (length < BODY_HEADER || position + HEADER + length > buffer.limit()) break;
+                final ByteBuffer body = buffer.duplicate();
+                body.limit(position + HEADER + length).position(position + HEADER);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+                final byte type = buffer.get(position + HEADER);
+                final long sequence = buffer.getLong(position + HEADER + 1);
+                final int orderingId = buffer.getInt(position + HEADER + 9);
+                if (type == SUBMITTED) {
+                    final byte[] payload = new byte[length - BODY_HEADER];
+                    final ByteBuffer source = buffer.duplicate();
+                    source.position(position + HEADER + BODY_HEADER);
+                    source.get(payload);
+                    // a replayed task is journaled again with its original sequence
+                    found.put(sequence, new RecoveredRecord(sequence, orderingId, payload));
+                } else if (type == COMPLETED) {
+                    found.remove(sequence);
+                }
+                maxSequence = Math.max(maxSequence, sequence);
+                position += HEADER + length;
+            }
+        }
+        return maxSequence;
+    }
+
+    private Segment openSegment() throws IOException {
+        final Path file = directory.resolve(String.format("%s%020d%s", PREFIX, nextSegmentIndex++, SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(segmentSize);
+            // the mapping stays valid after the channel is closed
+            final Segment segment = new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+            segments.add(segment);
+            return segment;
+        }
+    }
+
+    /**
+     * @return tasks pending when the journal was opened, in their original append order
+     */
+    List<RecoveredRecord> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * writes a recovered record that can not be replayed to a quarantine file of the directory and forces it, the file
+     * holds the raw payload; recovery never reads it, so it must be called before {@link #retireRecovered()}
+     *
+     * @param record, recovered
+     * @return the quarantine file
+     */
+    Path quarantine(final RecoveredRecord record) throws IOException {
+        final Path file = directory.resolve(String.format("%s%020d-%d.payload", QUARANTINE_PREFIX, record.sequence, record.orderingId));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer payload = ByteBuffer.wrap(record.payload);
+            while (payload.hasRemaining()) channel.write(payload);
+            channel.force(true);
+        }
+        return file;
+    }
+
+    /**
+     * appends a submitted task, it is handed over to onCommitted on the handover thread once it is forced to the disk
+     *
+     * @param orderingId, of the task
+     * @param payload, the encoded task
+     * @param onCommitted, receives the entry and the failure of the commit, null if committed
+     * @return the journaled entry
+     */
+    synchronized Entry append(final int orderingId, final byte[] payload, final BiConsumer<Entry, Throwable> onCommitted) {
+        return appendSubmitted(nextSequence++, orderingId, payload, onCommitted);
+    }
+
+    /**
+     * journals a recovered task again, keeping its sequence; if the machine crashes before the recovered segments are deleted
+     * both copies are read on the next recovery and counted once
+     */
+    synchronized Entry append(final RecoveredRecord record, final BiConsumer<Entry, Throwable> onCommitted) {
+        return appendSubmitted(record.sequence, record.orderingId, record.payload, onCommitted);
+    }
+
+    private Entry appendSubmitted(final long sequence, final int orderingId, final byte[] payload, final BiConsumer<Entry, Throwable> onCommitted) {
+        if (closed) throw new RejectedExecutionException("Journal is already closed, rejected " + orderingId);
+        final Segment segment = write(SUBMITTED, sequence, orderingId, payload);
+        final Entry entry = new Entry(sequence, orderingId, segment, onCommitted);
+        segment.pending++;
+        pending++;
+        uncommitted.add(entry);
+        if (uncommitted.size() == 1) notifyAll();
+        return entry;
+    }
+
+    /**
+     * appends the completion of the entry, its task is not replayed anymore; allowed after close
+     *
+     * @param entry, completed
+     */
+    synchronized void markCompleted(final Entry entry) {
+        if (entry.completed) return;
+        entry.completed = true;
+        write(COMPLETED, entry.sequence, entry.orderingId, new byte[0]);
+        entry.segment.pending--;
+        pending--;
+        deleteCompletedSegments();
+    }
+
+    /**
+     * the recovered segments are deleted after the next commit, which makes the tasks journaled again durable
+     */
+    synchronized void retireRecovered() {
+        if (recoveredFiles.isEmpty()) return;
+        afterNextCommit.add(() -> {
+            for (Path file : recoveredFiles) deleteFile(file);
+        });
+        notifyAll();
+    }
+
+    private Segment write(final byte type, final long sequence, final int orderingId, final byte[] payload) {
+        final int length = BODY_HEADER + payload.length;
+        if (HEADER + length > segmentSize)
+            throw new IllegalArgumentException("Record of " + (HEADER + length) + " bytes exceeds the segment size " + segmentSize);
+        if (current.position + HEADER + length > segmentSize) roll();
+        final Segment segment = current;
+        final MappedByteBuffer buffer = segment.buffer;
+        final int position = segment.position;
+        buffer.put(position + HEADER, type);
+        buffer.putLong(position + HEADER + 1, sequence);
+        buffer.putInt(position + HEADER + 9, orderingId);
+        final ByteBuffer target = buffer.duplicate();
+        target.position(position + HEADER + BODY_HEADER);
+        target.put(payload);
+        final ByteBuffer body = buffer.duplicate();
+        body.limit(position + HEADER + length).position(position + HEADER);
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, length);
+        segment.position = position + HEADER + length;
+        return segment;
+    }
+
+    private void roll() {
+        current.rolled = true;
+        unforced.add(current);
+        try {
+            current = openSegment();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create a journal segment in " + directory, e);
+        }
+        deleteCompletedSegments();
+    }
+
+    private void deleteCompletedSegments() {
+        // in order, so a completion record is never deleted before the record it completes
+        while (!segments.isEmpty() && segments.peekFirst().rolled && segments.peekFirst().pending == 0) {
+            final Segment segment = segments.pollFirst();
+            unforced.remove(segment);
+            // on Java 8 a mapping can not be released explicitly, it is released once garbage collected
+            deleteFile(segment.file);
+        }
+    }
+
+    private static void deleteFile(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            //TODO: WARN LOG; the segment is read again on the next recovery, its tasks are counted once
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            final List<Entry> batch;
+            final List<Runnable> actions;
+            final List<Segment> toForce;
+            synchronized (this) {
+                while (uncommitted.isEmpty() && afterNextCommit.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                        // stopped only by close
+                    }
+                }
+                if (uncommitted.isEmpty() && afterNextCommit.isEmpty()) return;
+                batch = uncommitted;
+                uncommitted = new ArrayList<>();
+                actions = afterNextCommit;
+                afterNextCommit = new ArrayList<>();
+                toForce = new ArrayList<>(unforced);
+                unforced.clear();
+                toForce.add(current);
+            }
+            Throwable failure = null;
+            try {
+                // a single force for every record appended meanwhile, by any producer
+                for (Segment segment : toForce) segment.buffer.force();
+                commits.increment();
+            } catch (Throwable t) {
+                failure = t;
+            }
+            final Throwable commitFailure = failure;
+            handover.execute(() -> handOver(batch, commitFailure));
+            if (failure != null) continue;
+            for (Runnable action : actions) action.run();
+        }
+    }
+
+    private static void handOver(final List<Entry> batch, final Throwable failure) {
+        for (Entry entry : batch) {
+            try {
+                entry.onCommitted.accept(entry, failure);
+            } catch (Throwable ignored) {
+                //TODO: ERROR LOG; must not stop the handover of the other records
+            }
+        }
+    }
+
+    /**
+     * stops accepting tasks, waits for the committer to commit and hand over the tasks already appended
+     *
+     * @param timeoutNanos, maximum time to wait
+     * @return false if the timeout elapsed first
+     */
+    boolean close(final long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        TimeUnit.NANOSECONDS.timedJoin(committer, timeoutNanos);
+        if (committer.isAlive()) return false;
+        // every batch is queued to the handover once the committer exits
+        handover.shutdown();
+        return handover.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * forces the completion records appended since the last commit
+     */
+    synchronized void sync() {
+        for (Segment segment : unforced) segment.buffer.force();
+        unforced.clear();
+        current.buffer.force();
+    }
+
+    long getCommitCount() {
+        return commits.sum();
+    }
+
+    synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * guarded by the journal
+     */
+    private static final class Segment {
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private int position = 0;
+        private int pending = 0;
+        private boolean rolled = false;
+
+        private Segment(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.champsworld.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Always on metrics of the tasks executed by a lane (or by the keyed actors), recorded by the executing threads
+ * all counters are LongAdders, the hottest orderingIds are estimated from a sample of the tasks
+ * so recording costs a few uncontended increments per task
+ * @author agrsachin81
+ */
+final class TaskMetrics {
+
+    /**
+     * bucket i counts the durations in [2^(i+5), 2^(i+6)) nanos, the first one everything below 64 nanos
+     */
+    static final int LATENCY_BUCKETS = 32;
+    private static final int LATENCY_SHIFT = 5;
+    /**
+     * one task in SAMPLE_RATE is counted for the hottest orderingIds
+     */
+    static final int SAMPLE_RATE = 16;
+    private static final int HOT_KEY_CAPACITY = 32;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder[] queueWait = newBuckets();
+    private final LongAdder queueWaitTotal = new LongAdder();
+    private final LongAdder[] executionTime = newBuckets();
+    private final LongAdder executionTimeTotal = new LongAdder();
+    /**
+     * space saving summary of the sampled orderingIds, guarded by itself
+     */
+    private final HashMap<Integer, long[]> hotKeys = new HashMap<>();
+
+    private static LongAdder[] newBuckets() {
+        final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS];
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        return buckets;
+    }
+
+    static int bucketOf(final long nanos) {
+        if (nanos <= 0) return 0;
+        final int bucket = (63 - Long.numberOfLeadingZeros(nanos)) - LATENCY_SHIFT;
+        return bucket < 0 ? 0 : Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * a unit queued in a lane or an actor carrying the time it was handed over, so its queue wait is recorded
+     * whatever wraps or queues it; a unit running several tasks, like a batch, counts each of them
+     */
+    interface Timed {
+        /**
+         * @return System.nanoTime when the unit was handed over
+         */
+        long queuedNanos();
+
+        /**
+         * @return number of tasks executed by the last run of the unit, read by the thread which ran it
+         */
+        default int taskCount() {
+            return 1;
+        }
+    }
+
+    /**
+     * @param task, handed over to a lane or an actor
+     * @return the task itself if it carries its queued time, else a wrapper stamped now keeping its orderingId and priority
+     */
+    static Runnable stamp(final Runnable task) {
+        if (task instanceof Timed) return task;
+        return task instanceof OrderedTaskSpec ? new TimedOrderedTask(task) : new TimedTask(task);
+    }
+
+    /**
+     * @param queued, as returned by {@link #stamp(Runnable)}
+     * @return the task handed over
+     */
+    static Runnable unwrap(final Runnable queued) {
+        return queued instanceof TimedTask ? ((TimedTask) queued).task : queued;
+    }
+
+    /**
+     * @param task, executed, its queue wait is recorded if it is {@link Timed}
+     * @param startNanos, System.nanoTime when the task started
+     * @param endNanos, System.nanoTime when the task returned
+     */
+    void record(final Runnable task, final long startNanos, final long endNanos) {
+        if (task instanceof Timed) record(task, ((Timed) task).queuedNanos(), startNanos, endNanos);
+        else record(task, 1, false, 0, startNanos, endNanos);
+    }
+
+    /**
+     * @param task, executed
+     * @param queuedNanos, System.nanoTime when the task was queued
+     * @param startNanos, System.nanoTime when the task started
+     * @param endNanos, System.nanoTime when the task returned
+     */
+    void record(final Runnable task, final long queuedNanos, final long startNanos, final long endNanos) {
+        record(task, task instanceof Timed ? ((Timed) task).taskCount() : 1, true, queuedNanos, startNanos, endNanos);
+    }
+
+    private void record(final Runnable task, final int count, final boolean timed, final long queuedNanos, final long startNanos, final long endNanos) {
+        if (count <= 0) return;
+        completed.add(count);
+        final long execution = endNanos - startNanos;
+        // the tasks of a unit run back to back, each is accounted an equal share of its execution time
+        final long share = execution / count;
+        executionTime[bucketOf(share)].add(count);
+        executionTimeTotal.add(execution);
+        if (timed) {
+            final long wait = startNanos - queuedNanos;
+            for (int i = 0; i < count; i++) {
+                final long taskWait = wait + i * share;
+                queueWait[bucketOf(taskWait)].increment();
+                queueWaitTotal.add(Math.max(0, taskWait));
+            }
+        }
+        if (task instanceof OrderedTaskSpec && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+            sample(((OrderedTaskSpec<?>) task).orderingId());
+        }
+    }
+
+    private void sample(final int orderingId) {
+        synchronized (hotKeys) {
+            final long[] count = hotKeys.get(orderingId);
+            if (count != null) {
+                count[0]++;
+                return;
+            }
+            if (hotKeys.size() < HOT_KEY_CAPACITY) {
+                hotKeys.put(orderingId, new long[]{1});
+                return;
+            }
+            // replaces the least counted one, inheriting its count as the possible overestimation
+            Integer weakest = null;
+            long[] weakestCount = null;
+            for (Map.Entry<Integer, long[]> entry : hotKeys.entrySet()) {
+                if (weakestCount == null || entry.getValue()[0] < weakestCount[0]) {
+                    weakest = entry.getKey();
+                    weakestCount = entry.getValue();
+                }
+            }
+            hotKeys.remove(weakest);
+            weakestCount[0]++;
+            hotKeys.put(orderingId, weakestCount);
+        }
+    }
+
+    long getCompletedCount() {
+        return completed.sum();
+    }
+
+    OrderedTaskExecutorMetrics.Latency getQueueWait() {
+        return snapshot(queueWait, queueWaitTotal);
+    }
+
+    OrderedTaskExecutorMetrics.Latency getExecutionTime() {
+        return snapshot(executionTime, executionTimeTotal);
+    }
+
+    private static OrderedTaskExecutorMetrics.Latency snapshot(final LongAdder[] buckets, final LongAdder total) {
+        final long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) counts[i] = buckets[i].sum();
+        return new OrderedTaskExecutorMetrics.Latency(counts, total.sum());
+    }
+
+    /**
+     * @param into, receives the estimated task count of each sampled orderingId, added to any count already present
+     */
+    void addHotKeys(final Map<Integer, Long> into) {
+        synchronized (hotKeys) {
+            for (Map.Entry<Integer, long[]> entry : hotKeys.entrySet()) {
+                into.merge(entry.getKey(), entry.getValue()[0] * SAMPLE_RATE, Long::sum);
+            }
+        }
+    }
+
+    /**
+     * a command stamped when handed over
+     */
+    private static class TimedTask implements Runnable, Timed {
+        private final Runnable task;
+        private final long queuedNanos = System.nanoTime();
+
+        private TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public long queuedNanos() {
+            return queuedNanos;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    /**
+     * a command carrying an orderingId, still matched by its orderingId and queued in its priority class
+     */
+    private static final class TimedOrderedTask extends TimedTask implements OrderedTaskSpec<Object> {
+
+        private TimedOrderedTask(Runnable task) {
+            super(task);
+        }
+
+        @Override
+        public int orderingId() {
+            return ((OrderedTaskSpec<?>) unwrap(this)).orderingId();
+        }
+
+        @Override
+        public int priority() {
+            return ((OrderedTaskSpec<?>) unwrap(this)).priority();
+        }
+    }
+}
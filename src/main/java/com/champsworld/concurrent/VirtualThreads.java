@@ -0,0 +1,30 @@
+package com.champsworld.concurrent;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the virtual threads of {@link OrderedTaskExecutor.SchedulingMode#VIRTUAL_THREADS}
+ * this version is used before Java 21 and supports none; the multi release jar carries the Java 21 version
+ * under META-INF/versions/21, compiled from src/main/java21 when building on Java 21 or later
+ * @author agrsachin81
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the runtime has virtual threads
+     */
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * @param namePrefix, of the threads
+     * @return executor starting a new virtual thread for each task, null if not supported
+     */
+    static ExecutorService newThreadPerTaskExecutor(final String namePrefix) {
+        return null;
+    }
+}
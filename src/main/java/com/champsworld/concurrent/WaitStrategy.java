@@ -0,0 +1,21 @@
+package com.champsworld.concurrent;
+
+/**
+ * Decides how the worker of a ring buffer lane waits for a task, and a producer for a free slot of a full ring
+ * the lower the latency the more cpu an idle lane burns
+ * @author agrsachin81
+ */
+public enum WaitStrategy {
+    /**
+     * spins without ever releasing the cpu, the lowest latency; an idle lane keeps a whole core busy
+     */
+    BUSY_SPIN,
+    /**
+     * spins for a while, then yields the cpu between attempts
+     */
+    YIELD,
+    /**
+     * spins for a while, then parks until a producer unparks it; the least cpu, a wake up costs a few microseconds
+     */
+    PARK
+}
@@ -89,6 +89,66 @@ class FixedResourceAllocatorTest {
         assertEquals(indexResourceMap.size(), RESOURCE_SIZE);
     }
 
+    @Test
+    public void testEvictionCount() {
+        // eldest entries are removed beyond twice the max unique resource users
+        for (int i = 0; i < 2 * 10; i++) allocator.getResourceIndex(i);
+        assertEquals(0, allocator.getEvictionCount());
+        for (int i = 2 * 10; i < 2 * 10 + 5; i++) allocator.getResourceIndex(i);
+        assertEquals(5, allocator.getEvictionCount());
+        assertEquals(2 * 10, allocator.getResourceUserCount());
+    }
+
+    @Test
+    public void testRecentlyUsedSurvivesEviction() {
+        for (int i = 0; i < 2 * 10; i++) allocator.getResourceIndex(i);
+        // the first overflow passes every mapping once, then the eldest ones not used since are evicted
+        allocator.getResourceIndex(100);
+        assertFalse(allocator.getResourceMapping().containsKey(0));
+        allocator.getResourceIndex(1);
+        allocator.getResourceIndex(101);
+        assertTrue(allocator.getResourceMapping().containsKey(1), "a used mapping gets a second chance");
+        assertFalse(allocator.getResourceMapping().containsKey(2), "the eldest unused mapping is evicted");
+        assertEquals(2 * 10, allocator.getResourceUserCount());
+    }
+
+    @Test
+    public void testConcurrentAllotment() throws InterruptedException {
+        final FixedResourceAllocator strategy = new FixedResourceAllocator(4, 1000);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 100;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    final int index = strategy.getResourceIndex(offset + i);
+                    assertEquals(index, strategy.getResourceIndex(offset + i), "mapping must be stable");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(400, strategy.getResourceUserCount());
+        assertEquals(Arrays.asList(100, 100, 100, 100), strategy.getCountMap(), "concurrent new users must be balanced");
+    }
+
+    @Test
+    public void testConcurrentClearAndAllotment() throws InterruptedException {
+        final FixedResourceAllocator strategy = new FixedResourceAllocator(4, 1000);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 1000;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) strategy.getResourceIndex(offset + (i % 1000));
+            });
+            threads[t].start();
+        }
+        for (int i = 0; i < 200; i++) strategy.clear();
+        for (Thread thread : threads) thread.join();
+        final int[] counts = new int[4];
+        for (int index : strategy.getResourceMapping().values()) counts[index]++;
+        assertEquals(Arrays.asList(counts[0], counts[1], counts[2], counts[3]), strategy.getCountMap(), "counts must match the mappings left after clear");
+    }
+
     @Test
     void testResourceIndexPurging() {
         final int resourceSize = 5;
@@ -139,7 +199,41 @@ class FixedResourceAllocatorTest {
         // test repeat call will return same values
         for(int i=0; i< maxUniqueResourceUsers;i++){
             assertEquals( index[i] , strategy.getResourceIndex(i), "already asked hence same index should have been returned");
+            assertEquals(Integer.valueOf(index[i]), strategy.getResourceIndex(Integer.valueOf(i)), "boxed lookup must return the same index");
+            assertEquals(index[i], strategy.getMappedResourceIndex(i, -1), "mapped index must be returned without allotting");
         }
+        assertEquals(-1, strategy.getMappedResourceIndex(maxUniqueResourceUsers, -1), "unmapped user must get the given default");
         assertEquals(count, strategy.getResourceUserCount(), "resource user count must remain same as no new user was added");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testLoadAwareResourceIndex() {
+        final long[] loads = new long[]{500, 0, 300};
+        final FixedResourceAllocator strategy = new FixedResourceAllocator(RESOURCE_SIZE, 10, index -> loads[index]);
+        assertEquals(1, strategy.getResourceIndex(1), "least loaded index must be allotted");
+        assertEquals(1, strategy.getResourceIndex(2), "load is preferred over user count");
+        loads[1] = 1000;
+        assertEquals(2, strategy.getResourceIndex(3), "least loaded index must be allotted after load changed");
+        assertEquals(1, strategy.getResourceIndex(1), "existing mapping never moves");
+        Arrays.fill(loads, 0);
+        assertEquals(0, strategy.getResourceIndex(4), "ties are broken by user count");
+        assertEquals(Arrays.asList(1, 2, 1), strategy.getCountMap());
+    }
+
+    @Test
+    public void testResizeActiveResources() {
+        for (int i = 1; i <= 6; i++) allocator.getResourceIndex(i);
+        allocator.resize(2);
+        assertEquals(2, allocator.getActiveResourceCount());
+        assertEquals(2, allocator.getResourceIndex(3), "existing mapping never moves on resize");
+        for (int i = 7; i <= 10; i++) assertTrue(allocator.getResourceIndex(i) < 2, "only active resources are allotted");
+        assertFalse(allocator.reassign(1, 0, 2), "a user can not be moved to an inactive resource");
+        assertTrue(allocator.reassign(3, 2, allocator.getLeastUsedResourceIndex()));
+        assertTrue(allocator.reassign(6, 2, allocator.getLeastUsedResourceIndex()));
+        assertEquals(Arrays.asList(5, 5, 0), allocator.getCountMap());
+        allocator.resize(3);
+        assertEquals(2, allocator.getLeastUsedResourceIndex(), "a resource coming back is the least used");
+        assertEquals(2, allocator.getResourceIndex(11));
+        assertThrows(IllegalArgumentException.class, () -> allocator.resize(4));
+    }
+}
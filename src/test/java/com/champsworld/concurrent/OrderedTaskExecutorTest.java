@@ -1,11 +1,28 @@
 package com.champsworld.concurrent;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import static java.util.stream.Collectors.mapping;
@@ -200,6 +217,1202 @@ class OrderedTaskExecutorTest {
         verifySubmissionAfterShutdown(executor, "an exception must have thrown as task submitted after shutdownNow");
     }
 
+    @Test
+    public void testKeyedActorsExecutionOrder() {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(2000, OrderedTaskExecutor.SchedulingMode.KEYED_ACTORS);
+        final int MAX = 10_000;
+        final int KEYS = 200;
+        final Map<Integer, List<Integer>> executed = new ConcurrentHashMap<>();
+        final List<CompletableFuture<Integer>> results = new ArrayList<>(MAX);
+        for (int i = 0; i < MAX; i++) results.add(executor.submit(recordingTask(i % KEYS, i, executed)));
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        assertEquals(KEYS, executed.size(), "all orderingIds must execute");
+        for (Map.Entry<Integer, List<Integer>> entry : executed.entrySet()) {
+            assertEquals(MAX / KEYS, entry.getValue().size(), "all tasks must execute for orderingId " + entry.getKey());
+        }
+        assertInOrder(executed, "Not executed in submission order");
+        executor.shutdown();
+    }
+
+    @Test
+    public void testKeyedActorsNoHeadOfLineBlocking() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.KEYED_ACTORS, 2);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<String> slow = executor.submit(new SampleBlockingTask(1, latch));
+        // every other orderingId must progress while orderingId 1 is blocked
+        for (int key = 2; key < 50; key++) {
+            final int orderingId = key;
+            final CompletableFuture<Integer> fast = executor.submit(new OrderedTask<Integer>() {
+                @Override
+                public int orderingId() {
+                    return orderingId;
+                }
+
+                @Override
+                public Integer get() {
+                    return orderingId;
+                }
+            });
+            assertEquals(orderingId, fast.get(5, TimeUnit.SECONDS), "other orderingIds must not wait behind a slow one");
+        }
+        assertFalse(slow.isDone(), "slow task must still be blocked");
+        latch.countDown();
+        assertEquals("RELEASED", slow.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSubmitAll() {
+        for (OrderedTaskExecutor.SchedulingMode mode : OrderedTaskExecutor.SchedulingMode.values()) {
+            final OrderedTaskExecutor executor = new OrderedTaskExecutor(2000, mode);
+            final int MAX = 10_000;
+            final List<SampleOrderedTask> orderedTasks = new ArrayList<>(MAX);
+            for (int i = 0; i < MAX; i++) {
+                orderedTasks.add(new SampleOrderedTask("Sam" + i, i % 200));
+            }
+            final List<OrderedTaskSpec<?>> batch = new ArrayList<>(orderedTasks);
+            final OrderedCallable<String> failing = () -> {
+                throw new IllegalStateException("failed in batch");
+            };
+            batch.add(failing);
+            final List<CompletableFuture<Object>> futures = executor.submitAll(batch);
+            assertEquals(batch.size(), futures.size(), "one future per task " + mode);
+            for (int i = 0; i < MAX; i++) {
+                assertTrue(((String) futures.get(i).join()).startsWith("Sam" + i + " "), "futures must follow submission order " + mode);
+            }
+            final Map<Integer, List<Object[]>> map = orderedTasks.stream().collect(Collectors.groupingBy(
+                    SampleOrderedTask::orderingId, mapping(SampleOrderedTask::getLastExec, Collectors.toList())));
+            for (Map.Entry<Integer, List<Object[]>> entry : map.entrySet()) {
+                final List<Object[]> execs = entry.getValue();
+                for (int i = 0; i < execs.size() - 1; i++) {
+                    assertTrue((int) execs.get(i)[1] < (int) execs.get(i + 1)[1], "Not in order for orderingId " + entry.getKey() + " " + mode);
+                }
+            }
+            final ExecutionException failure = assertThrows(ExecutionException.class, () -> futures.get(MAX).get());
+            assertEquals(IllegalStateException.class, failure.getCause().getClass(), "exception type did not match " + mode);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testExecuteWithoutFuture() throws InterruptedException {
+        for (OrderedTaskExecutor.SchedulingMode mode : OrderedTaskExecutor.SchedulingMode.values()) {
+            final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, mode);
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            executor.setUncaughtErrorHandler((task, error) -> errors.add(error));
+            final int MAX = 1000;
+            final List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+            final CountDownLatch latch = new CountDownLatch(MAX);
+            for (int i = 0; i < MAX; i++) {
+                final int seq = i;
+                executor.execute(7, () -> {
+                    executed.add(seq);
+                    latch.countDown();
+                    if (seq % 100 == 0) throw new IllegalStateException("failed " + seq);
+                });
+            }
+            assertTrue(latch.await(10, TimeUnit.SECONDS), "all tasks must execute " + mode);
+            executor.shutdown();
+            for (int i = 0; i < MAX; i++) {
+                assertEquals(i, executed.get(i), "Not executed in submission order " + mode);
+            }
+            assertEquals(MAX / 100, errors.size(), "every failure must reach the handler and lane must survive it " + mode);
+        }
+    }
+
+    @Test
+    public void testBoundedLaneOverflowPolicies() throws Exception {
+        final OrderedTaskExecutor rejecting = new OrderedTaskExecutor(20, 1, 2, Integer.MAX_VALUE, OverflowPolicy.REJECT);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<String> running = rejecting.submit(new SampleBlockingTask(1, latch));
+        final CompletableFuture<String> first = rejecting.submit(new SampleOrderedTask("first", 2));
+        final CompletableFuture<String> second = rejecting.submit(new SampleOrderedTask("second", 3));
+        assertThrows(RejectedExecutionException.class, () -> rejecting.submit(new SampleOrderedTask("third", 4)), "lane is full");
+        assertEquals(1, rejecting.getOverflowCount(OverflowPolicy.REJECT));
+        latch.countDown();
+        CompletableFuture.allOf(running, first, second).get(5, TimeUnit.SECONDS);
+        rejecting.shutdown();
+
+        final OrderedTaskExecutor dropping = new OrderedTaskExecutor(20, 1, 2, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST);
+        final CountDownLatch dropLatch = new CountDownLatch(1);
+        final CompletableFuture<String> dropRunning = dropping.submit(new SampleBlockingTask(1, dropLatch));
+        final CompletableFuture<String> oldest = dropping.submit(new SampleOrderedTask("oldest", 1));
+        final CompletableFuture<String> older = dropping.submit(new SampleOrderedTask("older", 1));
+        final CompletableFuture<String> newest = dropping.submit(new SampleOrderedTask("newest", 1));
+        assertTrue(oldest.isCancelled(), "oldest queued task of the same orderingId must be dropped");
+        assertEquals(1, dropping.getOverflowCount(OverflowPolicy.DROP_OLDEST));
+        dropLatch.countDown();
+        assertTrue(newest.get(5, TimeUnit.SECONDS).startsWith("newest"));
+        assertTrue(older.isDone() && dropRunning.isDone(), "remaining tasks must execute in order");
+        dropping.shutdown();
+
+        final OrderedTaskExecutor callerRuns = new OrderedTaskExecutor(20, 1, 1, Integer.MAX_VALUE, OverflowPolicy.CALLER_RUNS);
+        final CountDownLatch callerLatch = new CountDownLatch(1);
+        final CompletableFuture<String> callerRunning = callerRuns.submit(new SampleBlockingTask(1, callerLatch));
+        final CompletableFuture<String> queued = callerRuns.submit(new SampleOrderedTask("queued", 1));
+        final String caller = Thread.currentThread().getName();
+        final CompletableFuture<String> idleKey = callerRuns.submit(new SampleOrderedTask("idle", 2));
+        assertTrue(idleKey.isDone(), "task of an idle orderingId must run in the producer");
+        assertTrue(idleKey.get().contains(caller), "task of an idle orderingId must run in the producer thread");
+        assertEquals(1, callerRuns.getOverflowCount(OverflowPolicy.CALLER_RUNS));
+        callerLatch.countDown();
+        CompletableFuture.allOf(callerRunning, queued).get(5, TimeUnit.SECONDS);
+        callerRuns.shutdown();
+    }
+
+    @Test
+    public void testPerKeyCapacityBlocksProducer() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, 2, Integer.MAX_VALUE, 2, OverflowPolicy.BLOCK);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<String> running = executor.submit(new SampleBlockingTask(1, latch));
+        final CompletableFuture<String> queued = executor.submit(new SampleOrderedTask("queued", 1));
+        final CompletableFuture<CompletableFuture<String>> blocked = CompletableFuture.supplyAsync(() -> executor.submit(new SampleOrderedTask("blocked", 1)));
+        Thread.sleep(200);
+        assertFalse(blocked.isDone(), "producer must wait while orderingId is at its capacity");
+        assertEquals(1, executor.getOverflowCount(OverflowPolicy.BLOCK));
+        latch.countDown();
+        assertTrue(blocked.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).startsWith("blocked"));
+        assertTrue(running.isDone() && queued.isDone());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLeastLoadedLaneAssignment() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, 2, OrderedTaskExecutor.LaneAssignment.LEAST_LOADED);
+        final CountDownLatch latch = new CountDownLatch(1);
+        // orderingId 1 is heavy, orderingId 2 is idle; each one takes a lane
+        final CompletableFuture<String> heavy = executor.submit(new SampleBlockingTask(1, latch));
+        final List<CompletableFuture<String>> backlog = new ArrayList<>();
+        for (int i = 0; i < 10; i++) backlog.add(executor.submit(new SampleOrderedTask("heavy" + i, 1)));
+        executor.submit(new SampleOrderedTask("idle", 2)).get(5, TimeUnit.SECONDS);
+        // a new orderingId must be assigned to the idle lane even though both lanes have one orderingId each
+        assertTrue(executor.submit(new SampleOrderedTask("new", 3)).get(5, TimeUnit.SECONDS).startsWith("new"),
+                "new orderingId must not be queued behind the loaded lane");
+        assertFalse(heavy.isDone(), "heavy orderingId must still be blocked");
+        latch.countDown();
+        CompletableFuture.allOf(backlog.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testHotKeyMigrationKeepsOrder() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 2);
+        final CountDownLatch latch = new CountDownLatch(1);
+        // orderingId 1 and 3 share the first lane, orderingId 2 takes the second lane
+        final CompletableFuture<String> blocking = executor.submit(new SampleBlockingTask(1, latch));
+        final String idleLane = executor.submit(new SampleOrderedTask("idle", 2)).get(5, TimeUnit.SECONDS).split(" ")[5];
+        final List<CompletableFuture<String>> before = new ArrayList<>();
+        for (int i = 0; i < 5; i++) before.add(executor.submit(new SampleOrderedTask("before" + i, 3)));
+        assertTrue(executor.rebalance(OrderedTaskExecutor.KeyMigration.BUSIEST), "hot orderingId must be moved off the blocked lane");
+        assertEquals(1, executor.getMigrationCount());
+        final List<CompletableFuture<String>> after = new ArrayList<>();
+        for (int i = 0; i < 5; i++) after.add(executor.submit(new SampleOrderedTask("after" + i, 3)));
+        // the moved orderingId must not overtake its tasks still queued in the old lane
+        assertFalse(after.get(0).isDone(), "tasks of the moved orderingId must wait for the old lane to drain");
+        assertFalse(executor.rebalance(OrderedTaskExecutor.KeyMigration.BUSIEST), "nothing to relieve, the loaded lane has a single orderingId");
+        latch.countDown();
+        assertEquals("RELEASED", blocking.get(5, TimeUnit.SECONDS));
+        final List<CompletableFuture<String>> all = new ArrayList<>(before);
+        all.addAll(after);
+        int lastCounter = 0;
+        for (CompletableFuture<String> future : all) {
+            final String[] result = future.get(5, TimeUnit.SECONDS).split(" ");
+            final int counter = Integer.parseInt(result[2]);
+            assertTrue(counter > lastCounter, "tasks of the moved orderingId must execute in submission order");
+            lastCounter = counter;
+            assertEquals(after.contains(future), idleLane.equals(result[5]), "only the tasks submitted after the move run on the new lane");
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testResizeLanesKeepsOrder() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(100, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 4);
+        final Map<Integer, List<CompletableFuture<String>>> results = new HashMap<>();
+        final CountDownLatch submitted = new CountDownLatch(1);
+        final Thread producer = new Thread(() -> {
+            for (int i = 0; i < 4000; i++) {
+                final int orderingId = i % 40;
+                results.computeIfAbsent(orderingId, id -> new ArrayList<>()).add(executor.submit(new SampleOrderedTask("resize" + i, orderingId)));
+            }
+            submitted.countDown();
+        });
+        producer.start();
+        Thread.sleep(5);
+        executor.resizeLanes(1);
+        assertEquals(1, executor.getLaneCount());
+        executor.resizeLanes(3);
+        assertEquals(3, executor.getLaneCount());
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        final Set<String> lanes = new HashSet<>();
+        for (List<CompletableFuture<String>> futures : results.values()) {
+            int lastCounter = 0;
+            for (CompletableFuture<String> future : futures) {
+                final String[] result = future.get(5, TimeUnit.SECONDS).split(" ");
+                final int counter = Integer.parseInt(result[2]);
+                assertTrue(counter > lastCounter, "tasks of an orderingId must execute in submission order across resizes");
+                lastCounter = counter;
+                lanes.add(result[5]);
+            }
+        }
+        assertFalse(lanes.isEmpty());
+        final String lastLane = executor.submit(new SampleOrderedTask("new", 1000)).get(5, TimeUnit.SECONDS).split(" ")[5];
+        assertFalse(lastLane.endsWith("lane-3"), "a removed lane is never used again");
+        assertThrows(IllegalArgumentException.class, () -> executor.resizeLanes(0));
+        executor.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> executor.resizeLanes(2));
+        assertThrows(UnsupportedOperationException.class, () -> new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.KEYED_ACTORS, 2).resizeLanes(3));
+    }
+
+    @Test
+    public void testAwaitQuiescenceAndTermination() throws Exception {
+        for (OrderedTaskExecutor.SchedulingMode mode : OrderedTaskExecutor.SchedulingMode.values()) {
+            final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, mode, 2);
+            final CountDownLatch latch = new CountDownLatch(1);
+            final CompletableFuture<String> blocking = executor.submit(new SampleBlockingTask(1, latch));
+            final List<CompletableFuture<String>> queued = new ArrayList<>();
+            for (int i = 0; i < 5; i++) queued.add(executor.submit(new SampleOrderedTask("queued" + i, 1)));
+            final CompletableFuture<Void> quiescent = executor.awaitQuiescence(1);
+            assertTrue(executor.awaitQuiescence(99).isDone(), "an orderingId without tasks is already quiescent " + mode);
+            executor.submit(new SampleOrderedTask("other", 2)).get(5, TimeUnit.SECONDS);
+            executor.awaitQuiescence(2).get(5, TimeUnit.SECONDS);
+            assertFalse(quiescent.isDone(), "tasks of the orderingId are still in flight " + mode);
+            latch.countDown();
+            quiescent.get(5, TimeUnit.SECONDS);
+            assertTrue(blocking.isDone());
+            for (CompletableFuture<String> future : queued) assertTrue(future.isDone(), "quiescence must follow every earlier task " + mode);
+            for (int i = 0; i < 100; i++) executor.submit(new SampleOrderedTask("drain" + i, i));
+            executor.shutdown();
+            assertThrows(RejectedExecutionException.class, () -> executor.awaitQuiescence(1));
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS), "executor must terminate after shutdown " + mode);
+        }
+    }
+
+    @Test
+    public void testConflatingSubmit() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<String> running = executor.submit(new SampleBlockingTask(1, latch));
+        final List<CompletableFuture<String>> updates = new ArrayList<>();
+        for (int i = 0; i < 5; i++) updates.add(executor.submitConflating(new SampleOrderedTask("update" + i, 1)));
+        // a plain task fences the latest update, the next update must queue behind it
+        final CompletableFuture<String> plain = executor.submit(new SampleOrderedTask("plain", 1));
+        final CompletableFuture<String> afterPlain = executor.submitConflating(new SampleOrderedTask("afterPlain", 1));
+        for (int i = 0; i < 4; i++) assertTrue(updates.get(i).isCancelled(), "superseded update must be conflated " + i);
+        latch.countDown();
+        assertEquals("RELEASED", running.get(5, TimeUnit.SECONDS));
+        final int latest = Integer.parseInt(updates.get(4).get(5, TimeUnit.SECONDS).split(" ")[2]);
+        final int plainCounter = Integer.parseInt(plain.get(5, TimeUnit.SECONDS).split(" ")[2]);
+        final int lastCounter = Integer.parseInt(afterPlain.get(5, TimeUnit.SECONDS).split(" ")[2]);
+        assertTrue(latest < plainCounter && plainCounter < lastCounter, "executed tasks must keep submission order");
+        // nothing queued, so a new update executes
+        assertTrue(executor.submitConflating(new SampleOrderedTask("idle", 1)).get(5, TimeUnit.SECONDS).startsWith("idle"));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSubmitToBatch() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<String> running = executor.submit(new SampleBlockingTask(1, latch));
+        final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        final OrderedBatchTask<Integer, Integer> doubler = (orderingId, items) -> {
+            batches.add(new ArrayList<>(items));
+            return items.stream().map(i -> i * 2).collect(Collectors.toList());
+        };
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 7; i++) futures.add(executor.submitToBatch(1, i, doubler, 3));
+        final OrderedBatchTask<Integer, Integer> failing = (orderingId, items) -> {
+            throw new IllegalStateException("write failed");
+        };
+        final CompletableFuture<Integer> failed = executor.submitToBatch(1, 100, failing, 3);
+        latch.countDown();
+        assertEquals("RELEASED", running.get(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 7; i++) assertEquals(i * 2, futures.get(i).get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4, 5), Collections.singletonList(6)), batches,
+                "items queued meanwhile must be batched in order, up to the maximum size");
+        final ExecutionException error = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, error.getCause());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testAsyncTaskHoldsOrderingIdNotLane() throws Exception {
+        for (OrderedTaskExecutor.SchedulingMode mode : OrderedTaskExecutor.SchedulingMode.values()) {
+            final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, mode, 1);
+            final CompletableFuture<String> io = new CompletableFuture<>();
+            final CompletableFuture<String> async = executor.submitAsync(new OrderedAsyncTask<String>() {
+                @Override
+                public int orderingId() {
+                    return 1;
+                }
+
+                @Override
+                public CompletionStage<String> get() {
+                    return io;
+                }
+            });
+            final CompletableFuture<String> next = executor.submit(new SampleOrderedTask("next", 1));
+            // the only lane (or worker) is free for other orderingIds while the stage is pending
+            assertTrue(executor.submit(new SampleOrderedTask("other", 2)).get(5, TimeUnit.SECONDS).startsWith("other"), mode.name());
+            assertFalse(async.isDone(), mode.name());
+            assertFalse(next.isDone(), "next task of the orderingId must wait for the stage " + mode);
+            io.complete("WRITTEN");
+            assertEquals("WRITTEN", async.get(5, TimeUnit.SECONDS));
+            assertTrue(next.get(5, TimeUnit.SECONDS).startsWith("next"), mode.name());
+            // the orderingId is released, tasks go through the lane again
+            assertTrue(executor.submit(new SampleOrderedTask("after", 1)).get(5, TimeUnit.SECONDS).startsWith("after"), mode.name());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncContinuationNeverRunsOnCompletingThread() throws Exception {
+        // a single lane holding a single waiting task
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, 1, 1, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+        final CompletableFuture<String> io = new CompletableFuture<>();
+        final CompletableFuture<String> async = executor.submitAsync(new OrderedAsyncTask<String>() {
+            @Override
+            public int orderingId() {
+                return 1;
+            }
+
+            @Override
+            public CompletionStage<String> get() {
+                return io;
+            }
+        });
+        final CompletableFuture<String> next = executor.submit(new SampleOrderedTask("next", 1));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<String> blocking = executor.submit(new SampleBlockingTask(2, latch));
+        final CompletableFuture<String> queued = executor.submit(new SampleOrderedTask("queued", 3));
+        for (int i = 0; i < 500 && executor.getQueuedTaskCount() < 1; i++) Thread.sleep(10);
+        final long blocked = executor.getOverflowCount(OverflowPolicy.BLOCK);
+        // the lane is full when the stage completes
+        io.complete("WRITTEN");
+        assertEquals("WRITTEN", async.get(5, TimeUnit.SECONDS));
+        assertFalse(next.isDone(), "the continuation must wait for the lane, not run on the completing thread");
+        latch.countDown();
+        assertTrue(next.get(5, TimeUnit.SECONDS).contains("-lane-"), "the continuation must run on the lane");
+        blocking.get(5, TimeUnit.SECONDS);
+        assertTrue(queued.get(5, TimeUnit.SECONDS).startsWith("queued"));
+        assertEquals(blocked, executor.getOverflowCount(OverflowPolicy.BLOCK), "a continuation is not subject to the lane capacity");
+        executor.shutdown();
+    }
+
+    @Test
+    public void testReorderByUpdateId() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 1,
+                16, 200, TimeUnit.MILLISECONDS);
+        final int first = executor.getNextUpdateId(1);
+        final int second = executor.getNextUpdateId(1);
+        final int third = executor.getNextUpdateId(1);
+        // producers arrive in reverse order of their update ids
+        final CompletableFuture<String> thirdFuture = executor.submit(new SampleOrderedTask("third", 1), third);
+        final CompletableFuture<String> secondFuture = executor.submit(new SampleOrderedTask("second", 1), second);
+        assertFalse(thirdFuture.isDone() || secondFuture.isDone(), "must wait for the first update id");
+        final CompletableFuture<String> firstFuture = executor.submit(new SampleOrderedTask("first", 1), first);
+        final int firstCounter = Integer.parseInt(firstFuture.get(5, TimeUnit.SECONDS).split(" ")[2]);
+        final int secondCounter = Integer.parseInt(secondFuture.get(5, TimeUnit.SECONDS).split(" ")[2]);
+        final int thirdCounter = Integer.parseInt(thirdFuture.get(5, TimeUnit.SECONDS).split(" ")[2]);
+        assertTrue(firstCounter < secondCounter && secondCounter < thirdCounter, "tasks must execute in update id order");
+
+        final int missing = executor.getNextUpdateId(1);
+        final CompletableFuture<String> afterGap = executor.submit(new SampleOrderedTask("afterGap", 1), executor.getNextUpdateId(1));
+        assertTrue(afterGap.get(5, TimeUnit.SECONDS).startsWith("afterGap"), "missing update id must be skipped after the gap timeout");
+        assertEquals(1, executor.getSkippedUpdateIdCount());
+        assertTrue(executor.submit(new SampleOrderedTask("late", 1), missing).get(5, TimeUnit.SECONDS).startsWith("late"));
+        assertEquals(1, executor.getLateUpdateIdCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testReorderTimerNeverWaitsForFullLane() throws Exception {
+        final AtomicBoolean full = new AtomicBoolean(true);
+        final Map<Integer, List<Integer>> handedOver = new ConcurrentHashMap<>();
+        final SequenceReorderBuffer buffer = new SequenceReorderBuffer(16, TimeUnit.MILLISECONDS.toNanos(20), (id, task, mayBlock) -> {
+            // the lane of orderingId 1 is full, the timer must neither wait for it nor stall orderingId 2
+            if (id == 1 && full.get() && !mayBlock) return false;
+            task.run();
+            return true;
+        }, (task, error) -> { });
+        for (int id = 1; id <= 2; id++) {
+            final List<Integer> seqs = Collections.synchronizedList(new ArrayList<>());
+            handedOver.put(id, seqs);
+            // update id 1 never arrives
+            for (int seq = 2; seq <= 4; seq++) {
+                final int value = seq;
+                buffer.submit(id, seq, () -> seqs.add(value), true);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handedOver.get(2).size() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertEquals(Arrays.asList(2, 3, 4), handedOver.get(2), "a full lane of another orderingId must not stall the gap timer");
+        assertTrue(handedOver.get(1).isEmpty(), "refused tasks must be held");
+        full.set(false);
+        deadline = System.currentTimeMillis() + 5000;
+        while (handedOver.get(1).size() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        buffer.submit(1, 5, () -> handedOver.get(1).add(5), true);
+        assertEquals(Arrays.asList(2, 3, 4, 5), handedOver.get(1), "held tasks must be retried in order");
+        buffer.shutdown();
+    }
+
+    @Test
+    public void testDeadlineAndCancellationUnlinksQueuedTask() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, 1, 2, Integer.MAX_VALUE, OverflowPolicy.REJECT);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<String> running = executor.submit(new SampleBlockingTask(1, latch));
+        final CompletableFuture<String> expiring = executor.submit(new SampleOrderedTask("expiring", 1), 50, TimeUnit.MILLISECONDS);
+        final CompletableFuture<String> cancelled = executor.submit(new SampleOrderedTask("cancelled", 2));
+        assertThrows(RejectedExecutionException.class, () -> executor.submit(new SampleOrderedTask("rejected", 2)), "lane must be full");
+        assertTrue(cancelled.cancel(false));
+        // like CompletableFuture, cancelling again still reports cancelled, but is counted once
+        assertTrue(cancelled.cancel(false));
+        // the cancelled task no longer occupies the lane
+        final CompletableFuture<String> accepted = executor.submit(new SampleOrderedTask("accepted", 2));
+        Thread.sleep(100);
+        latch.countDown();
+        assertEquals("RELEASED", running.get(5, TimeUnit.SECONDS));
+        assertTrue(accepted.get(5, TimeUnit.SECONDS).startsWith("accepted"));
+        final ExecutionException expired = assertThrows(ExecutionException.class, () -> expiring.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, expired.getCause());
+        assertEquals(1, executor.getExpiredCount(1));
+        assertEquals(0, executor.getExpiredCount(2));
+        assertEquals(1, executor.getCancelledCount(2));
+        assertEquals(1, executor.getTotalCancelledCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testOrderedPipeline() throws Exception {
+        final Map<Integer, List<Integer>> received = new ConcurrentHashMap<>();
+        final OrderedPipelineStage<Integer, Void> sink = new OrderedPipelineStage<>("sink", 20, 2, 4,
+                (orderingId, item) -> {
+                    received.computeIfAbsent(orderingId, id -> Collections.synchronizedList(new ArrayList<>())).add(item);
+                    return null;
+                }, null);
+        final OrderedPipelineStage<Integer, Integer> filter = new OrderedPipelineStage<>("filter", 20, 3, 4,
+                (orderingId, item) -> item % 10 == 0 ? null : item, sink);
+        final OrderedPipelineStage<Integer, Integer> parse = new OrderedPipelineStage<>("parse", 20, 2, 4,
+                (orderingId, item) -> {
+                    if (item == 55) throw new IllegalStateException("bad item " + item);
+                    return item;
+                }, filter);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        parse.setUncaughtErrorHandler((task, t) -> errors.add(t));
+        for (int i = 1; i <= 100; i++) {
+            for (int id = 0; id < 5; id++) parse.submit(id, i);
+        }
+        assertTrue(parse.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(500, parse.getProcessedCount());
+        assertEquals(5, parse.getFailedCount());
+        assertEquals(5, errors.size());
+        assertEquals(495, filter.getProcessedCount());
+        assertEquals(445, sink.getProcessedCount());
+        assertEquals(0, sink.getQueueDepth());
+        assertTrue(sink.getAverageLatencyNanos() >= sink.getAverageServiceNanos());
+        for (int id = 0; id < 5; id++) {
+            final List<Integer> items = received.get(id);
+            assertEquals(89, items.size());
+            for (int i = 1; i < items.size(); i++) assertTrue(items.get(i - 1) < items.get(i), "out of order " + items);
+        }
+
+        // a stage not terminating in time still shuts down the stages after it
+        final OrderedPipelineStage<Integer, Void> downstream = new OrderedPipelineStage<>("downstream", 20, 1, 4, (orderingId, item) -> null, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OrderedPipelineStage<Integer, Integer> slow = new OrderedPipelineStage<>("slow", 20, 1, 4, (orderingId, item) -> {
+            release.await();
+            return item;
+        }, downstream);
+        slow.setUncaughtErrorHandler((task, t) -> { });
+        slow.submit(1, 1);
+        assertFalse(slow.shutdown(50, TimeUnit.MILLISECONDS), "the slow stage must not terminate in time");
+        assertThrows(RejectedExecutionException.class, () -> downstream.submit(1, 2), "the next stage must be shut down too");
+        release.countDown();
+        assertTrue(slow.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPriorityClassesOvertakeBulkTasks() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(20, 1, 7, Integer.MAX_VALUE, OverflowPolicy.REJECT);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        final CompletableFuture<String> running = executor.submit(new SampleBlockingTask(1, latch));
+        final List<CompletableFuture<String>> futures = new ArrayList<>();
+        futures.add(executor.submit(new PrioritizedTask("bulk-1", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed)));
+        futures.add(executor.submit(new PrioritizedTask("bulk-2", 2, OrderedTaskSpec.PRIORITY_NORMAL, executed)));
+        futures.add(executor.submit(new PrioritizedTask("bulk-3", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed)));
+        futures.add(executor.submit(new PrioritizedTask("high-1", 2, OrderedTaskSpec.PRIORITY_HIGH, executed)));
+        futures.add(executor.submit(new PrioritizedTask("urgent-1", 1, OrderedTaskSpec.PRIORITY_URGENT, executed)));
+        futures.add(executor.submit(new PrioritizedTask("urgent-2", 1, OrderedTaskSpec.PRIORITY_URGENT, executed)));
+        futures.add(executor.submit(new PrioritizedTask("urgent-3", 2, 100, executed)));
+        // every class shares the lane capacity
+        assertThrows(RejectedExecutionException.class, () -> executor.submit(new PrioritizedTask("bulk-4", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed)));
+        assertEquals(7, executor.getQueuedTaskCount());
+        latch.countDown();
+        assertEquals("RELEASED", running.get(5, TimeUnit.SECONDS));
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("urgent-1", "urgent-2", "urgent-3", "high-1", "bulk-1", "bulk-2", "bulk-3"), executed);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDropOldestWithMixedPriorities() throws Exception {
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        final OrderedTaskExecutor dropping = new OrderedTaskExecutor(20, 1, 3, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<String> running = dropping.submit(new SampleBlockingTask(1, latch));
+        final CompletableFuture<String> urgent1 = dropping.submit(new PrioritizedTask("urgent-1", 1, OrderedTaskSpec.PRIORITY_URGENT, executed));
+        final CompletableFuture<String> bulk1 = dropping.submit(new PrioritizedTask("bulk-1", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed));
+        final CompletableFuture<String> bulk2 = dropping.submit(new PrioritizedTask("bulk-2", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed));
+        final CompletableFuture<String> bulk3 = dropping.submit(new PrioritizedTask("bulk-3", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed));
+        assertTrue(bulk1.isCancelled(), "the oldest bulk task must be dropped");
+        assertFalse(urgent1.isDone(), "a task of another class must never be dropped for a bulk task");
+        final CompletableFuture<String> urgent2 = dropping.submit(new PrioritizedTask("urgent-2", 1, OrderedTaskSpec.PRIORITY_URGENT, executed));
+        assertTrue(urgent1.isCancelled(), "the oldest task of the same class must be dropped");
+        assertEquals(2, dropping.getOverflowCount(OverflowPolicy.DROP_OLDEST));
+        latch.countDown();
+        CompletableFuture.allOf(running, bulk2, bulk3, urgent2).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("urgent-2", "bulk-2", "bulk-3"), executed);
+        dropping.shutdown();
+
+        // priority tasks take the slots of the lane capacity too
+        final OrderedTaskExecutor rejecting = new OrderedTaskExecutor(20, 1, 2, Integer.MAX_VALUE, OverflowPolicy.REJECT);
+        final CountDownLatch rejectLatch = new CountDownLatch(1);
+        final CompletableFuture<String> blocked = rejecting.submit(new SampleBlockingTask(1, rejectLatch));
+        rejecting.submit(new PrioritizedTask("high-1", 2, OrderedTaskSpec.PRIORITY_HIGH, executed));
+        rejecting.submit(new PrioritizedTask("urgent-3", 3, OrderedTaskSpec.PRIORITY_URGENT, executed));
+        assertThrows(RejectedExecutionException.class,
+                () -> rejecting.submit(new PrioritizedTask("urgent-4", 4, OrderedTaskSpec.PRIORITY_URGENT, executed)), "lane is full of priority tasks");
+        assertThrows(RejectedExecutionException.class,
+                () -> rejecting.submit(new PrioritizedTask("bulk-4", 4, OrderedTaskSpec.PRIORITY_NORMAL, executed)), "lane is full of priority tasks");
+        rejectLatch.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+        rejecting.shutdown();
+        assertTrue(rejecting.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    private static class PrioritizedTask implements OrderedTask<String> {
+        private final String name;
+        private final int orderingId;
+        private final int priority;
+        private final List<String> executed;
+
+        private PrioritizedTask(String name, int orderingId, int priority, List<String> executed) {
+            this.name = name;
+            this.orderingId = orderingId;
+            this.priority = priority;
+            this.executed = executed;
+        }
+
+        @Override
+        public int orderingId() {
+            return orderingId;
+        }
+
+        @Override
+        public int priority() {
+            return priority;
+        }
+
+        @Override
+        public String get() {
+            executed.add(name);
+            return name;
+        }
+    }
+
+    @Test
+    public void testDurableExecutorReplaysPendingTasksInOrder(@TempDir Path journalDir) throws Exception {
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        final OrderedTaskCodec<String> codec = new OrderedTaskCodec<String>() {
+            @Override
+            public byte[] encode(OrderedTask<String> task) {
+                return ((PrioritizedTask) task).name.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public OrderedTask<String> decode(int orderingId, byte[] payload) {
+                return new PrioritizedTask(new String(payload, StandardCharsets.UTF_8), orderingId, OrderedTaskSpec.PRIORITY_NORMAL, executed);
+            }
+        };
+        final OrderedTaskExecutor crashing = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 1);
+        // small segments, so the journal rolls over
+        final DurableOrderedTaskExecutor<String> first = new DurableOrderedTaskExecutor<>(crashing, journalDir, 1024, codec);
+        assertEquals("done", first.submit(new PrioritizedTask("done", 3, OrderedTaskSpec.PRIORITY_NORMAL, executed)).get(5, TimeUnit.SECONDS));
+        crashing.submit(new SampleBlockingTask(1, new CountDownLatch(1)));
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final String name = "pending-" + (i % 2) + "-" + i;
+            expected.add(name);
+            first.submit(new PrioritizedTask(name, i % 2, OrderedTaskSpec.PRIORITY_NORMAL, executed));
+        }
+        for (int i = 0; i < 500 && crashing.getQueuedTaskCount() < 200; i++) Thread.sleep(10);
+        assertEquals(200, crashing.getQueuedTaskCount(), "journaled tasks are handed over once committed");
+        assertTrue(first.getCommitCount() > 0);
+        assertTrue(first.getCommitCount() <= 201, "tasks must be committed in groups");
+        assertEquals(200, first.getPendingCount());
+        // the queued tasks are lost, like on a crash
+        crashing.shutdownNow();
+        executed.clear();
+
+        final OrderedTaskExecutor restarted = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 2);
+        final DurableOrderedTaskExecutor<String> second = new DurableOrderedTaskExecutor<>(restarted, journalDir, 1024, codec);
+        assertEquals(200, second.getReplayedTasks().size(), "only the tasks never completed are replayed");
+        CompletableFuture.allOf(second.getReplayedTasks().toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        for (int key = 0; key < 2; key++) {
+            final String prefix = "pending-" + key + "-";
+            final List<String> expectedOfKey = expected.stream().filter(name -> name.startsWith(prefix)).collect(Collectors.toList());
+            final List<String> executedOfKey = executed.stream().filter(name -> name.startsWith(prefix)).collect(Collectors.toList());
+            assertEquals(expectedOfKey, executedOfKey, "replay must keep the original order of each orderingId");
+        }
+        assertEquals("after", second.submit(new PrioritizedTask("after", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed)).get(5, TimeUnit.SECONDS));
+        assertTrue(second.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(0, second.getPendingCount());
+
+        final OrderedTaskExecutor clean = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 1);
+        final DurableOrderedTaskExecutor<String> third = new DurableOrderedTaskExecutor<>(clean, journalDir, 1024, codec);
+        assertTrue(third.getReplayedTasks().isEmpty(), "completed tasks are never replayed");
+        assertTrue(third.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDurableExecutorQuarantinesUndecodableTasks(@TempDir Path journalDir) throws Exception {
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        final OrderedTaskCodec<String> codec = new OrderedTaskCodec<String>() {
+            @Override
+            public byte[] encode(OrderedTask<String> task) {
+                return ((PrioritizedTask) task).name.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public OrderedTask<String> decode(int orderingId, byte[] payload) {
+                final String name = new String(payload, StandardCharsets.UTF_8);
+                if (name.equals("bad")) throw new IllegalArgumentException("unknown task " + name);
+                return new PrioritizedTask(name, orderingId, OrderedTaskSpec.PRIORITY_NORMAL, executed);
+            }
+        };
+        final OrderedTaskExecutor crashing = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 1);
+        final DurableOrderedTaskExecutor<String> first = new DurableOrderedTaskExecutor<>(crashing, journalDir, 1024, codec);
+        crashing.submit(new SampleBlockingTask(1, new CountDownLatch(1)));
+        for (String name : Arrays.asList("good-1", "bad", "good-2")) {
+            first.submit(new PrioritizedTask(name, 1, OrderedTaskSpec.PRIORITY_NORMAL, executed));
+        }
+        for (int i = 0; i < 500 && crashing.getQueuedTaskCount() < 3; i++) Thread.sleep(10);
+        assertEquals(3, first.getPendingCount());
+        crashing.shutdownNow();
+
+        final OrderedTaskExecutor restarted = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 1);
+        final DurableOrderedTaskExecutor<String> second = new DurableOrderedTaskExecutor<>(restarted, journalDir, 1024, codec);
+        final List<CompletableFuture<String>> replayed = second.getReplayedTasks();
+        assertEquals(3, replayed.size());
+        assertEquals("good-1", replayed.get(0).get(5, TimeUnit.SECONDS));
+        assertEquals("good-2", replayed.get(2).get(5, TimeUnit.SECONDS));
+        final ExecutionException failure = assertThrows(ExecutionException.class, () -> replayed.get(1).get(5, TimeUnit.SECONDS));
+        assertTrue(failure.getCause().getCause() instanceof IllegalArgumentException, "the decode failure must be surfaced");
+        assertEquals(1, second.getQuarantinedFiles().size());
+        final Path quarantined = second.getQuarantinedFiles().get(0);
+        assertEquals("bad", new String(Files.readAllBytes(quarantined), StandardCharsets.UTF_8), "the undecodable task must be kept");
+        assertTrue(second.shutdown(5, TimeUnit.SECONDS));
+
+        final OrderedTaskExecutor clean = new OrderedTaskExecutor(20, OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES, 1);
+        final DurableOrderedTaskExecutor<String> third = new DurableOrderedTaskExecutor<>(clean, journalDir, 1024, codec);
+        assertTrue(third.getReplayedTasks().isEmpty(), "a quarantined task is never replayed");
+        assertTrue(Files.exists(quarantined));
+        assertTrue(third.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDurableExecutorCommitsWhileHandOverBlocks(@TempDir Path journalDir) throws Exception {
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        final OrderedTaskCodec<String> codec = new OrderedTaskCodec<String>() {
+            @Override
+            public byte[] encode(OrderedTask<String> task) {
+                return ((PrioritizedTask) task).name.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public OrderedTask<String> decode(int orderingId, byte[] payload) {
+                return new PrioritizedTask(new String(payload, StandardCharsets.UTF_8), orderingId, OrderedTaskSpec.PRIORITY_NORMAL, executed);
+            }
+        };
+        // a single lane holding a single waiting task, a further submit blocks
+        final OrderedTaskExecutor bounded = new OrderedTaskExecutor(20, 1, 1, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+        final DurableOrderedTaskExecutor<String> durable = new DurableOrderedTaskExecutor<>(bounded, journalDir, 1024, codec);
+        final CountDownLatch latch = new CountDownLatch(1);
+        bounded.submit(new SampleBlockingTask(1, latch));
+        final CompletableFuture<String> queued = durable.submit(new PrioritizedTask("queued", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed));
+        final CompletableFuture<String> blocked = durable.submit(new PrioritizedTask("blocked", 1, OrderedTaskSpec.PRIORITY_NORMAL, executed));
+        for (int i = 0; i < 500 && bounded.getQueuedTaskCount() < 1; i++) Thread.sleep(10);
+        // lets the committer hand over the blocked task
+        Thread.sleep(100);
+        final long commits = durable.getCommitCount();
+        final CompletableFuture<String> later = durable.submit(new PrioritizedTask("later", 2, OrderedTaskSpec.PRIORITY_NORMAL, executed));
+        for (int i = 0; i < 500 && durable.getCommitCount() == commits; i++) Thread.sleep(10);
+        assertTrue(durable.getCommitCount() > commits, "a blocked hand over must not stop the group commits");
+        assertFalse(blocked.isDone());
+        latch.countDown();
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+        assertEquals("blocked", blocked.get(5, TimeUnit.SECONDS));
+        assertEquals("later", later.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("queued", "blocked", "later"), executed);
+        assertTrue(durable.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    private static class SampleBlockingTask implements OrderedTask<String> {
+        private final int orderingId;
+        private final CountDownLatch latch;
+
+        private SampleBlockingTask(int orderingId, CountDownLatch latch) {
+            this.orderingId = orderingId;
+            this.latch = latch;
+        }
+
+        @Override
+        public int orderingId() {
+            return orderingId;
+        }
+
+        @Override
+        public String get() {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "RELEASED";
+        }
+    }
+
+    @Test
+    public void testRawExecutorEventListener() throws Exception {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        final AsyncBufferedEventListener listener = new AsyncBufferedEventListener(1024, lines::add);
+        final OrderedTaskExecutorRaw executor = new OrderedTaskExecutorRaw(listener);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final int orderingId = i % 2;
+            final String name = "Raw" + i;
+            futures.add(executor.submit(new OrderedCallable<String>() {
+                @Override
+                public String call() {
+                    return name;
+                }
+
+                @Override
+                public int orderingId() {
+                    return orderingId;
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get(5, TimeUnit.SECONDS);
+        // an idle writer parks until an event is offered, it does not poll the buffer
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (lines.stream().filter(line -> line.startsWith("CURRENT COUNT for ID")).count() < 10 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        final Thread writer = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("AsyncBufferedEventListener-" + System.identityHashCode(listener))).findFirst().orElse(null);
+        assertNotNull(writer);
+        for (int i = 0; i < 500 && writer.getState() != Thread.State.WAITING; i++) Thread.sleep(10);
+        assertEquals(Thread.State.WAITING, writer.getState(), "an idle writer must park without a timeout");
+        executor.shutdown();
+        listener.close(5000);
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("OrderedTaskExecutor CREATED")), "creation must be reported");
+        assertTrue(lines.stream().anyMatch(line -> line.contains("SUCCESSFULLY USED for ID")), "lane creation must be reported");
+        assertEquals(10, lines.stream().filter(line -> line.startsWith("CURRENT COUNT for ID")).count(), "one count per submit");
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("OrderedTaskExecutor Shutdown")), "shutdown must be reported");
+        assertTrue(lines.get(lines.size() - 1).startsWith("OrderedTaskExecutor Shutdown"), "the reaper must exit before the shutdown is reported " + lines);
+        final int written = lines.size();
+        listener.executorCreated(0);
+        assertEquals(written, lines.size(), "no event is written once closed");
+        assertEquals(1, listener.getDroppedCount(), "event after close must be dropped");
+    }
+
+    @Test
+    public void testRawReferenceCountedKeyLifecycle() throws Exception {
+        final OrderedTaskExecutorRaw executor = new OrderedTaskExecutorRaw(OrderedTaskExecutorRaw.KeyLifecycle.REFERENCE_COUNTED, ExecutorEventListener.NO_OP);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Map<Integer, List<Integer>> executed = new ConcurrentHashMap<>();
+        final List<Future<?>> futures = new ArrayList<>();
+        futures.add(executor.submit(rawTask(0, () -> {
+            release.await();
+            return -1;
+        })));
+        for (int i = 0; i < 100; i++) {
+            final int orderingId = i % 4;
+            final int seq = i;
+            futures.add(executor.submit(rawTask(orderingId, () -> {
+                executed.computeIfAbsent(orderingId, id -> Collections.synchronizedList(new ArrayList<>())).add(seq);
+                return seq;
+            })));
+        }
+        assertTrue(executor.getMappedOrderingIdCount() >= 1, "blocked orderingId must stay mapped");
+        release.countDown();
+        for (Future<?> future : futures) future.get(5, TimeUnit.SECONDS);
+        assertEquals(0, executor.getMappedOrderingIdCount(), "idle orderingIds must be released without gc");
+        assertInOrder(executed, "Not in order");
+
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final Future<?> blocking = executor.submit(rawTask(7, () -> {
+            blocker.await();
+            return 0;
+        }));
+        final Future<?> cancelled = executor.submit(rawTask(7, () -> 1));
+        assertTrue(cancelled.cancel(false), "queued task must be cancellable");
+        blocker.countDown();
+        blocking.get(5, TimeUnit.SECONDS);
+        assertEquals(0, executor.getMappedOrderingIdCount(), "cancelled task must release its orderingId");
+        executor.shutdown();
+    }
+
+    private static <V> OrderedCallable<V> rawTask(int orderingId, Callable<V> body) {
+        return new OrderedCallable<V>() {
+            @Override
+            public V call() throws Exception {
+                return body.call();
+            }
+
+            @Override
+            public int orderingId() {
+                return orderingId;
+            }
+        };
+    }
+
+    @Test
+    public void testKeyRateLimiter() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(100, 2, OrderedTaskExecutor.LaneAssignment.LEAST_KEYS);
+        final KeyRateLimiter rejecting = new KeyRateLimiter(5, 60, RateLimitPolicy.REJECT, 1, TimeUnit.MINUTES);
+        executor.setRateLimiter(rejecting);
+        int rejected = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                executor.submit(new SampleOrderedTask("Limited" + i, 1));
+            } catch (RejectedExecutionException e) {
+                rejected++;
+            }
+        }
+        assertEquals(5, rejected, "submissions beyond the burst must be rejected");
+        assertEquals(5, rejecting.getRejectedCount(1), "rejections must be counted per orderingId");
+        assertEquals(Collections.singletonMap(1, 5L), rejecting.getRejectedCounts(), "only the noisy orderingId has rejections");
+        assertEquals("Other", executor.submit(new SampleOrderedTask("Other", 2)).get(5, TimeUnit.SECONDS).split(" ")[0], "other orderingIds keep their own tokens");
+        rejecting.shutdown();
+
+        final KeyRateLimiter queueing = new KeyRateLimiter(20, 1, RateLimitPolicy.QUEUE, 50, TimeUnit.MILLISECONDS);
+        executor.setRateLimiter(queueing);
+        final Map<Integer, List<Integer>> executedById = new ConcurrentHashMap<>();
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 30; i++) futures.add(executor.submit(recordingTask(3, i, executedById)));
+        final CompletableFuture<Void> quiescent = executor.awaitQuiescence(3);
+        assertTrue(queueing.getTotalQueuedCount() >= 10, "submissions beyond the burst must be held");
+        quiescent.get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<Integer> future : futures) assertTrue(future.isDone(), "quiescence marker must wait for the held tasks");
+        final List<Integer> executed = executedById.get(3);
+        for (int i = 0; i < 30; i++) assertEquals(i, executed.get(i), "held tasks must keep the order");
+        Thread.sleep(300);
+        assertEquals(0, queueing.getTrackedOrderingIdCount(), "idle buckets must be evicted");
+        queueing.shutdown();
+
+        final KeyRateLimiter delaying = new KeyRateLimiter(20, 1, RateLimitPolicy.DELAY, 1, TimeUnit.MINUTES);
+        executor.setRateLimiter(delaying);
+        CompletableFuture<String> last = null;
+        for (int i = 0; i < 25; i++) last = executor.submit(new SampleOrderedTask("Delayed" + i, 4));
+        assertTrue(delaying.getTotalDelayedCount() >= 5, "producer must be delayed beyond the burst");
+        last.get(5, TimeUnit.SECONDS);
+        delaying.shutdown();
+        executor.shutdown();
+
+        // a held task of an orderingId whose lane is full must not stall the release of other orderingIds
+        final OrderedTaskExecutor bounded = new OrderedTaskExecutor(100, 2, 1, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+        final KeyRateLimiter limiter = new KeyRateLimiter(2, 1, RateLimitPolicy.QUEUE, 1, TimeUnit.MINUTES);
+        bounded.setRateLimiter(limiter);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> blockedKey = Collections.synchronizedList(new ArrayList<>());
+        bounded.execute(1, () -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            blockedKey.add(0);
+        });
+        // fills the lane, the next one is held by the limiter and refused by the full lane once released
+        bounded.execute(1, () -> blockedKey.add(1));
+        bounded.execute(1, () -> blockedKey.add(2));
+        final List<CompletableFuture<String>> otherKey = new ArrayList<>();
+        for (int i = 0; i < 3; i++) otherKey.add(bounded.submit(new SampleOrderedTask("Free" + i, 2)));
+        for (CompletableFuture<String> future : otherKey) future.get(5, TimeUnit.SECONDS);
+        assertTrue(blockedKey.isEmpty(), "orderingId of the full lane must still be blocked");
+        release.countDown();
+        bounded.awaitQuiescence(1).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0, 1, 2), blockedKey, "held task refused by the full lane must keep its order");
+        limiter.shutdown();
+        bounded.shutdown();
+    }
+
+    @Test
+    public void testKeyedExecutorViews() throws Exception {
+        for (OrderedTaskExecutor.SchedulingMode mode : OrderedTaskExecutor.SchedulingMode.values()) {
+            final OrderedTaskExecutor executor = new OrderedTaskExecutor(100, mode);
+            final Executor keyExecutor = executor.forKey(5);
+            assertSame(keyExecutor, executor.forKey(5), "view of an orderingId must be cached " + mode);
+            final List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+            final CountDownLatch done = new CountDownLatch(1);
+            for (int i = 0; i < 1000; i++) {
+                final int seq = i;
+                keyExecutor.execute(() -> executed.add(seq));
+            }
+            keyExecutor.execute(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS), "commands must execute " + mode);
+            for (int i = 0; i < 1000; i++) assertEquals(i, executed.get(i), "commands must keep the order " + mode);
+
+            final ExecutorService service = executor.asExecutorService(7);
+            final List<Integer> invoked = Collections.synchronizedList(new ArrayList<>());
+            final List<Callable<Integer>> callables = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                final int seq = i;
+                callables.add(() -> {
+                    invoked.add(seq);
+                    if (seq == 50) throw new IllegalStateException("failed " + seq);
+                    return seq;
+                });
+            }
+            final List<Future<Integer>> futures = service.invokeAll(callables);
+            assertEquals(100, futures.size(), "one future per callable " + mode);
+            for (int i = 0; i < 100; i++) {
+                assertTrue(futures.get(i).isDone(), "invokeAll must wait for every task " + mode);
+                assertEquals(i, invoked.get(i), "tasks of the default orderingId must keep the order " + mode);
+                if (i != 50) assertEquals(i, futures.get(i).get(), "result must match " + mode);
+            }
+            assertThrows(ExecutionException.class, () -> futures.get(50).get(), "failure must be reported " + mode);
+
+            final CountDownLatch release = new CountDownLatch(1);
+            final AtomicBoolean lateRan = new AtomicBoolean(false);
+            final List<Callable<Integer>> timed = new ArrayList<>();
+            timed.add(() -> {
+                release.await(5, TimeUnit.SECONDS);
+                return 0;
+            });
+            timed.add(() -> {
+                lateRan.set(true);
+                return 1;
+            });
+            final List<Future<Integer>> timedFutures = service.invokeAll(timed, 100, TimeUnit.MILLISECONDS);
+            assertTrue(timedFutures.get(1).isCancelled(), "pending task must be cancelled on timeout " + mode);
+            release.countDown();
+            // same orderingId, so the batch is over once this task has run
+            service.submit(() -> 2).get(5, TimeUnit.SECONDS);
+            assertFalse(lateRan.get(), "a task whose future was cancelled must never execute " + mode);
+
+            final CountDownLatch interruptedRelease = new CountDownLatch(1);
+            final AtomicBoolean interruptedLateRan = new AtomicBoolean(false);
+            final List<Callable<Integer>> interrupted = new ArrayList<>();
+            interrupted.add(() -> {
+                interruptedRelease.await(5, TimeUnit.SECONDS);
+                return 0;
+            });
+            interrupted.add(() -> {
+                interruptedLateRan.set(true);
+                return 1;
+            });
+            Thread.currentThread().interrupt();
+            assertThrows(InterruptedException.class, () -> service.invokeAll(interrupted), "invokeAll must stop waiting when interrupted " + mode);
+            interruptedRelease.countDown();
+            service.submit(() -> 3).get(5, TimeUnit.SECONDS);
+            assertFalse(interruptedLateRan.get(), "the pending tasks must be cancelled when interrupted " + mode);
+            assertEquals("Sam", service.submit(new SampleOrderedTask("Sam", 3)::get).get(5, TimeUnit.SECONDS).split(" ")[0], "submit must execute " + mode);
+            service.shutdown();
+            assertThrows(RejectedExecutionException.class, () -> service.execute(() -> { }), "facade must reject after shutdown " + mode);
+            assertTrue(service.awaitTermination(5, TimeUnit.SECONDS), "facade must terminate " + mode);
+            assertFalse(executor.isShutdown(), "facade shutdown must not stop the executor " + mode);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetricsAndMBean() throws Exception {
+        for (OrderedTaskExecutor.SchedulingMode mode : OrderedTaskExecutor.SchedulingMode.values()) {
+            final OrderedTaskExecutor executor = new OrderedTaskExecutor(100, mode, 2);
+            final List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                // orderingId 0 gets half of all the tasks
+                futures.add(executor.submit(new SampleOrderedTask("Metric" + i, i % 2 == 0 ? 0 : i % 50)));
+            }
+            for (CompletableFuture<String> future : futures) future.get(5, TimeUnit.SECONDS);
+            // a task is recorded after its future completes, quiescence of each orderingId waits for the record
+            for (int i = 0; i < 50; i++) executor.awaitQuiescence(i).get(5, TimeUnit.SECONDS);
+            final OrderedTaskExecutorMetrics metrics = executor.getMetrics(3);
+            assertEquals(mode == OrderedTaskExecutor.SchedulingMode.SINGLE_THREAD_LANES ? 2 : 1, metrics.getLanes().size(), "one entry per lane " + mode);
+            assertTrue(metrics.getCompletedCount() >= 2000, "every task must be counted " + mode);
+            assertTrue(metrics.getExecutionTime().getCount() >= 2000, "every task must be timed " + mode);
+            assertTrue(metrics.getQueueWait().getCount() >= 2000, "queue wait of tasks with a future must be recorded " + mode);
+            assertTrue(metrics.getExecutionTime().getPercentileNanos(99) >= metrics.getExecutionTime().getPercentileNanos(50), "percentiles must be monotonic " + mode);
+            assertTrue(metrics.getHottestOrderingIds().size() <= 3, "only top orderingIds " + mode);
+            assertEquals(Integer.valueOf(0), metrics.getHottestOrderingIds().keySet().iterator().next(), "orderingId 0 must be the hottest " + mode);
+
+            final ObjectName name = executor.registerMBean("metrics-test-" + mode);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertTrue((Long) server.getAttribute(name, "CompletedCount") >= 2000, "MBean must expose the snapshot " + mode);
+            assertEquals(executor.getSchedulingMode().name(), server.getAttribute(name, "SchedulingMode"), "MBean must expose the mode " + mode);
+            assertTrue(((String[]) server.getAttribute(name, "HottestOrderingIds"))[0].startsWith("0="), "MBean must expose the hottest orderingIds " + mode);
+            executor.shutdown();
+            assertFalse(server.isRegistered(name), "shutdown must unregister the MBean " + mode);
+        }
+        // plain commands and batches on bounded lanes tracking the orderingIds, and on ring buffer lanes
+        final List<OrderedTaskExecutor> executors = Arrays.asList(new OrderedTaskExecutor(100, 2, 50, 10, OverflowPolicy.BLOCK),
+                new OrderedTaskExecutor(100, 2, 64, WaitStrategy.PARK));
+        for (OrderedTaskExecutor executor : executors) {
+            final CountDownLatch executed = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) executor.execute(i % 5, executed::countDown);
+            final List<OrderedTask<String>> batch = new ArrayList<>();
+            for (int i = 0; i < 100; i++) batch.add(new SampleOrderedTask("Batch" + i, i % 5));
+            for (CompletableFuture<Object> future : executor.submitAll(batch)) future.get(5, TimeUnit.SECONDS);
+            assertTrue(executed.await(5, TimeUnit.SECONDS), "commands must execute");
+            // terminated, so no task is being recorded while the counts are compared
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            final OrderedTaskExecutorMetrics metrics = executor.getMetrics(3);
+            assertTrue(metrics.getCompletedCount() >= 200, "each command and each task of a batch must be counted " + metrics.getCompletedCount());
+            assertEquals(metrics.getCompletedCount(), metrics.getQueueWait().getCount(), "queue wait of every task must be recorded");
+            assertEquals(metrics.getCompletedCount(), metrics.getExecutionTime().getCount(), "every task must be timed");
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsMode() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(100, OrderedTaskExecutor.SchedulingMode.VIRTUAL_THREADS);
+        assertEquals(OrderedTaskExecutor.isVirtualThreadsSupported() ? OrderedTaskExecutor.SchedulingMode.VIRTUAL_THREADS
+                : OrderedTaskExecutor.SchedulingMode.KEYED_ACTORS, executor.getSchedulingMode(), "must fall back without virtual threads");
+        final Map<Integer, List<Integer>> executed = new ConcurrentHashMap<>();
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        // blocking tasks, each parks its virtual thread
+        for (int i = 0; i < 200; i++) futures.add(executor.submit(recordingTask(i % 20, i, executed, 1)));
+        for (CompletableFuture<Integer> future : futures) future.get(10, TimeUnit.SECONDS);
+        assertInOrder(executed, "Not in order");
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS), "must terminate");
+    }
+
+    @Test
+    public void testRingBufferLanes() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            final OrderedTaskExecutor executor = new OrderedTaskExecutor(100, 2, 8, waitStrategy);
+            final Map<Integer, List<Integer>> executed = new ConcurrentHashMap<>();
+            final List<Thread> producers = new ArrayList<>();
+            final List<CompletableFuture<Integer>> futures = Collections.synchronizedList(new ArrayList<>());
+            for (int p = 0; p < 4; p++) {
+                final int orderingId = p;
+                producers.add(new Thread(() -> {
+                    for (int i = 0; i < 500; i++) futures.add(executor.submit(recordingTask(orderingId, i, executed)));
+                }));
+            }
+            for (Thread producer : producers) producer.start();
+            for (Thread producer : producers) producer.join();
+            for (CompletableFuture<Integer> future : futures) future.get(10, TimeUnit.SECONDS);
+            assertEquals(4, executed.size(), waitStrategy + " must execute every orderingId");
+            for (List<Integer> seqs : executed.values()) assertEquals(500, seqs.size(), waitStrategy + " must execute every task");
+            assertInOrder(executed, waitStrategy + " Not in order");
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS), waitStrategy + " must terminate");
+        }
+    }
+
+    @Test
+    public void testKeyedSubmission() throws Exception {
+        final OrderedTaskExecutor executor = new OrderedTaskExecutor(100, 2, OrderedTaskExecutor.LaneAssignment.LEAST_KEYS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<String> blocked = executor.submitKeyed(7L, () -> {
+            release.await();
+            return "blocked";
+        });
+        // 7 and 7 + 2^32 truncate to the same int, they must still run concurrently
+        assertEquals("free", executor.submitKeyed(7L + (1L << 32), () -> "free").get(5, TimeUnit.SECONDS));
+        assertFalse(blocked.isDone());
+        release.countDown();
+        assertEquals("blocked", blocked.get(5, TimeUnit.SECONDS));
+
+        final Map<String, List<Integer>> executed = new ConcurrentHashMap<>();
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final String key = "entity-" + (i % 10);
+            final int seq = i;
+            futures.add(executor.submitKeyed(key, () -> {
+                executed.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).add(seq);
+                return seq;
+            }));
+            executor.executeKeyed((long) (i % 10), () -> executed.computeIfAbsent("long-" + (seq % 10), k -> Collections.synchronizedList(new ArrayList<>())).add(seq));
+        }
+        for (CompletableFuture<Integer> future : futures) future.get(5, TimeUnit.SECONDS);
+        assertEquals(300, executor.submitKeyed(new Object(), () -> 300).get(5, TimeUnit.SECONDS));
+        assertEquals(20, executed.size());
+        assertInOrder(executed, "Not in order");
+
+        final CountDownLatch hold = new CountDownLatch(1);
+        final CompletableFuture<Object> holding = executor.submitKeyed("held", () -> hold.await(5, TimeUnit.SECONDS));
+        final CompletableFuture<Object> cancelled = executor.submitKeyed("held", () -> "never");
+        assertTrue(cancelled.cancel(false));
+        hold.countDown();
+        holding.get(5, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getOrderingKeyCount() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        assertEquals(0, executor.getOrderingKeyCount(), "completed and cancelled tasks must release their keys");
+        // negative int orderingIds and keys coexist, whichever is used first
+        assertEquals("raw", executor.submit(new SampleOrderedTask("raw", Integer.MIN_VALUE | 1)).get(5, TimeUnit.SECONDS).split(" ")[0]);
+        assertEquals("keyed", executor.submitKeyed(7L, () -> "keyed").get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> executor.submitKeyed(7L, () -> "late"));
+
+        final OrderedTaskExecutor rawFirst = new OrderedTaskExecutor(100, OrderedTaskExecutor.SchedulingMode.KEYED_ACTORS, 2);
+        final CountDownLatch rawRelease = new CountDownLatch(1);
+        final CompletableFuture<String> raw = rawFirst.submit(new SampleBlockingTask(Integer.MIN_VALUE, rawRelease));
+        // the first key is interned to the same int value, it must not wait for the int orderingId
+        assertEquals("keyed", rawFirst.submitKeyed(7L, () -> "keyed").get(5, TimeUnit.SECONDS));
+        rawRelease.countDown();
+        assertEquals("RELEASED", raw.get(5, TimeUnit.SECONDS));
+        rawFirst.shutdown();
+    }
+
+    /**
+     * @return task of the orderingId adding its seq to the executed list of the orderingId
+     */
+    private static OrderedTask<Integer> recordingTask(final int orderingId, final int seq, final Map<Integer, List<Integer>> executed) {
+        return recordingTask(orderingId, seq, executed, 0);
+    }
+
+    /**
+     * @param sleepMillis, the task sleeps before recording, zero to never block
+     */
+    private static OrderedTask<Integer> recordingTask(final int orderingId, final int seq, final Map<Integer, List<Integer>> executed, final long sleepMillis) {
+        return new OrderedTask<Integer>() {
+            @Override
+            public Integer get() {
+                if (sleepMillis > 0) {
+                    try {
+                        Thread.sleep(sleepMillis);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                executed.computeIfAbsent(orderingId, id -> Collections.synchronizedList(new ArrayList<>())).add(seq);
+                return seq;
+            }
+
+            @Override
+            public int orderingId() {
+                return orderingId;
+            }
+        };
+    }
+
+    /**
+     * asserts the seqs recorded for each key are increasing, i.e. the tasks of a key executed in submission order
+     */
+    private static void assertInOrder(final Map<?, List<Integer>> executed, final String message) {
+        for (Map.Entry<?, List<Integer>> entry : executed.entrySet()) {
+            final List<Integer> seqs = entry.getValue();
+            for (int i = 0; i < seqs.size() - 1; i++) assertTrue(seqs.get(i) < seqs.get(i + 1), message + " for " + entry.getKey() + " " + seqs);
+        }
+    }
+
     private static void verifySubmissionAfterShutdown(OrderedTaskExecutor executor, String message) {
         Throwable excp = null;
         try {
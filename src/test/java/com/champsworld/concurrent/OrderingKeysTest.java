@@ -0,0 +1,75 @@
+package com.champsworld.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author agrsachin81
+ */
+public class OrderingKeysTest {
+
+    @Test
+    public void testLongKeys() {
+        final OrderingKeys keys = new OrderingKeys();
+        final int first = keys.acquire(1L);
+        assertEquals(first, keys.acquire(1L), "same key must keep its orderingId");
+        assertNotEquals(first, keys.acquire(1L + (1L << 32)), "keys equal in their low bits must not collide");
+        assertTrue(first < 0, "must never collide with an identity hash code");
+        for (long key = 100; key < 1100; key++) keys.acquire(key);
+        assertEquals(1002, keys.size());
+        for (long key = 100; key < 1100; key++) keys.release(key);
+        keys.release(1L);
+        assertEquals(first, keys.acquire(1L), "must stay mapped while referenced");
+        keys.release(1L);
+        keys.release(1L);
+        keys.release(1L + (1L << 32));
+        assertEquals(0, keys.size(), "released keys must not be counted");
+        assertEquals(first, keys.acquire(1L), "an idle key must keep its orderingId");
+        keys.release(1L);
+        keys.release(1L);
+        assertEquals(0, keys.size(), "releasing an idle key again must be ignored");
+    }
+
+    @Test
+    public void testStripeRehashDropsIdleKeys() {
+        final OrderingKeys keys = new OrderingKeys();
+        final int idle = keys.acquire(1L);
+        keys.release(1L);
+        final int live = keys.acquire(2L);
+        // every stripe fills up with idle keys and is rebuilt many times over
+        for (long key = 1_000; key < 101_000; key++) {
+            keys.acquire(key);
+            keys.release(key);
+        }
+        assertEquals(1, keys.size(), "only the key in use must be counted");
+        assertEquals(live, keys.acquire(2L), "a key in use must keep its orderingId across the rebuilds");
+        final int fresh = keys.acquire(1L);
+        assertNotEquals(idle, fresh, "an idle key must be forgotten by the rebuild of its stripe");
+        assertTrue(fresh < 0, "a fresh orderingId must still be negative");
+        assertEquals(fresh, keys.acquire(1L), "the fresh orderingId must be kept while in use");
+        assertEquals(2, keys.size());
+    }
+
+    @Test
+    public void testForgetIdleObjectKeys() {
+        final OrderingKeys keys = new OrderingKeys();
+        final String objectKey = "entity";
+        final int objectId = keys.acquire(objectKey);
+        keys.release(objectKey);
+        assertEquals(objectId, keys.acquire(new String("entity")), "an idle Object key must keep its orderingId");
+        keys.release(objectKey);
+        final int live = keys.acquire("live");
+        for (int i = 0; i < 10_000; i++) {
+            keys.acquire("unique-" + i);
+            keys.release("unique-" + i);
+        }
+        assertEquals(1, keys.size(), "idle keys must be forgotten once they outnumber the keys in use");
+        assertEquals(live, keys.acquire("live"), "a key in use must survive the sweep");
+        final int fresh = keys.acquire(objectKey);
+        assertNotEquals(objectId, fresh, "a forgotten key must get a fresh orderingId");
+        assertTrue(fresh < 0, "a fresh orderingId must still be negative");
+        assertEquals(fresh, keys.acquire(new String("entity")), "the fresh orderingId must be kept while in use");
+        assertEquals(2, keys.size());
+    }
+}
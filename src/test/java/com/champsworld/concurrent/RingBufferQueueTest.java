@@ -0,0 +1,140 @@
+package com.champsworld.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author agrsachin81
+ */
+public class RingBufferQueueTest {
+
+    @Test
+    public void testOfferRemoveAndReuse() throws Exception {
+        final RingBufferQueue<Integer> ring = new RingBufferQueue<>(3, WaitStrategy.PARK);
+        assertEquals(4, ring.capacity(), "must round up to a power of two");
+        for (int i = 0; i < 4; i++) assertTrue(ring.offer(i), "must accept till full");
+        assertFalse(ring.offer(4), "must be full");
+        assertTrue(ring.remove(1), "must remove a queued element");
+        assertEquals(Arrays.asList(0, 2, 3), new ArrayList<>(ring), "must skip the removed element");
+        assertEquals(0, ring.poll());
+        assertEquals(2, ring.poll(), "must skip the removed element");
+        assertTrue(ring.offer(4), "must reuse the freed slots");
+        assertEquals(3, ring.take());
+        assertEquals(4, ring.take());
+        assertNull(ring.poll(1, TimeUnit.MILLISECONDS), "must be empty");
+    }
+
+    @Test
+    public void testTombstoneAtHead() throws Exception {
+        final RingBufferQueue<Integer> ring = new RingBufferQueue<>(4, WaitStrategy.PARK);
+        for (int i = 0; i < 4; i++) assertTrue(ring.offer(i));
+        assertTrue(ring.remove(0), "must remove the head");
+        assertEquals(1, ring.peek(), "peek must skip the tombstone at the head");
+        assertFalse(ring.offer(4), "the tombstone holds its slot till the consumer reaches it");
+        assertEquals(1, ring.poll(), "poll must skip the tombstone at the head");
+        assertTrue(ring.offer(4), "the slot of the tombstone must be freed once skipped");
+
+        assertTrue(ring.remove(2));
+        assertTrue(ring.remove(3));
+        assertTrue(ring.remove(4));
+        assertTrue(ring.isEmpty(), "only tombstones are left");
+        assertNull(ring.poll(), "must skip every tombstone");
+        assertNull(ring.poll(1, TimeUnit.MILLISECONDS));
+        for (int i = 5; i < 9; i++) assertTrue(ring.offer(i), "every slot must be free again");
+        assertEquals(5, ring.take());
+    }
+
+    @Test
+    public void testFullRingPutAndTimedOffer() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            final RingBufferQueue<Integer> ring = new RingBufferQueue<>(2, waitStrategy);
+            assertTrue(ring.offer(0));
+            assertTrue(ring.offer(1));
+            final long start = System.nanoTime();
+            assertFalse(ring.offer(2, 20, TimeUnit.MILLISECONDS), waitStrategy + " must time out on a full ring");
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20), waitStrategy + " must wait for the timeout");
+
+            final CountDownLatch putting = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread producer = new Thread(() -> {
+                putting.countDown();
+                try {
+                    ring.put(2);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            producer.start();
+            assertTrue(putting.await(5, TimeUnit.SECONDS));
+            producer.join(50);
+            assertTrue(producer.isAlive(), waitStrategy + " put must wait for a free slot");
+            assertEquals(0, ring.poll());
+            producer.join(5000);
+            assertFalse(producer.isAlive(), waitStrategy + " put must complete once a slot is free");
+            assertNull(failure.get());
+            assertEquals(1, ring.poll());
+            assertEquals(2, ring.poll());
+
+            assertTrue(ring.offer(3));
+            assertTrue(ring.offer(4));
+            final Thread interrupted = new Thread(() -> {
+                try {
+                    ring.put(5);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            interrupted.start();
+            interrupted.interrupt();
+            interrupted.join(5000);
+            assertInstanceOf(InterruptedException.class, failure.get(), waitStrategy + " put must stop waiting when interrupted");
+            assertEquals(Arrays.asList(3, 4), new ArrayList<>(ring), waitStrategy + " an interrupted put must not queue its element");
+        }
+    }
+
+    @Test
+    public void testMultiProducerWrapAround() throws Exception {
+        final int producerCount = 4;
+        final int perProducer = 10_000;
+        // BUSY_SPIN assumes a core per spinning thread, which the producers here do not get
+        for (WaitStrategy waitStrategy : Arrays.asList(WaitStrategy.PARK, WaitStrategy.YIELD)) {
+            // a small ring so every slot is reused many laps over
+            final RingBufferQueue<Integer> ring = new RingBufferQueue<>(8, waitStrategy);
+            final List<Thread> producers = new ArrayList<>();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            for (int p = 0; p < producerCount; p++) {
+                final int producerId = p;
+                producers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < perProducer; i++) ring.put(producerId * perProducer + i);
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }));
+            }
+            for (Thread producer : producers) producer.start();
+            final int[] last = new int[producerCount];
+            Arrays.fill(last, -1);
+            for (int i = 0; i < producerCount * perProducer; i++) {
+                final Integer e = ring.poll(5, TimeUnit.SECONDS);
+                assertNotNull(e, waitStrategy + " must receive every element");
+                final int producerId = e / perProducer;
+                assertTrue(e % perProducer > last[producerId], waitStrategy + " elements of a producer must keep their order");
+                last[producerId] = e % perProducer;
+            }
+            for (Thread producer : producers) producer.join(5000);
+            assertNull(failure.get());
+            for (int p = 0; p < producerCount; p++) assertEquals(perProducer - 1, last[p], waitStrategy + " must receive the last element");
+            assertNull(ring.poll(), waitStrategy + " nothing must be left");
+            assertEquals(0, ring.size());
+        }
+    }
+}